@@ -27,6 +27,11 @@ HostServer hosts agents on different ports and provides access via the Firefox w
 8) Enter 'migrate' to move the agent to be hosted on new port.
 9) Open a second browser to start a new agent and see them synchronize data.
 
+Path Mode Execution Instructions:
+By default each agent listens on a port of its own. To host every agent behind the host server's own port instead, execute:
+   java -Dhost.agentPaths=true HostServer [host_server_port] [name_server_host] [host_server_host]
+Agents are then addressed by path, e.g. http://localhost:45050/agent/[name]/
+
 A browser from a different machine can perform all of the same actions as long as the firewall rules permit it.
 To test this, substitute the IP address or hostname of the server running HostServer for the localhost in the above instructions.
 
@@ -35,6 +40,11 @@ Included Files:
 - gradeagent.bat
 - HostServer.java 
 - NameServer.java
+- HybridClock.java
+- Registry.java
+- RegistryLog.java
+- Rpc.java
+- TimerWheel.java
 - MimeTypes.txt
 - console-log.txt
 - DIADiscussion.html
@@ -42,24 +52,52 @@ Included Files:
 Notes:
 - This has much of the important functionality from the assignment complete, but not all. The DIA discussion file covers these gaps. 
 - The best way to execute the system is to run: gradeagent.bat
+- In path mode agents cost no port & no listener thread, so one host server can hold very many of them.
+- Servers call each other over pooled keep-alive RPC connections on their usual ports (see Rpc.java).
+- Migrating agents travel as exact binary snapshots, deflated when large, in the RPC request body.
+- Agents migrate live: the snapshot is staged at the destination while the agent keeps serving, then rounds of
+  changed values follow (agent.migrateRounds, agent.stopCopyValues), & browser requests are held only while the last
+  few go across. Each migration logs its downtime. Destinations that predate this get the whole state stopped & copied.
+- Host servers report their load to the name server every host.heartbeat ms, which places migrating agents on the
+  lighter of two other host servers picked at random (nameServer.placement=leastLoaded or random to change that).
+- Agent values carry hybrid logical clock versions; writes return at once & only changed values go around the
+  peer ring, batched, with periodic digest comparison between peers repairing anything lost (see HybridClock.java).
+- With -Dagent.replicas=k an agent's writes go to k replicas, chosen by the name server, all at once instead of
+  around the ring, & the browser gets its answer once agent.quorum of them acknowledge (default a majority of copies).
+- Agent auto-migration checks share one timer wheel & a few threads per host server (agent.timerThreads, default 2).
 
 ----------------------------------------------------------*/
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * The server simulates hosting agents on different ports.
@@ -118,6 +156,24 @@ public class HostServer {
 	/** Data update command. */
 	static String SYNC_PEER = "syncPeer";
 	
+	/** Replicated changes command. */
+	static String SYNC_DELTA = "syncDelta";
+	
+	/** Anti-entropy digest command. */
+	static String SYNC_DIGEST = "syncDigest";
+	
+	/** Command asking a host server to hold an agent's state ahead of hosting her. */
+	static String STAGE_AGENT = "StageAgent";
+	
+	/** Command reporting a host server's load to the name server. */
+	static String HEARTBEAT = "Heartbeat";
+	
+	/** Command asking the name server to pick a host server to migrate an agent to. */
+	static String PICK_HOST_SERVER = "PickHostServer";
+	
+	/** Command asking the name server for the replicas of an agent. */
+	static String QUERY_AGENTS = "QueryAgents";
+	
 	/** Success flag. */
 	static String SUCCESS = "success";
 	
@@ -129,6 +185,27 @@ public class HostServer {
 		
 	/** Old Peer host server parameter. */
 	static final String PEER_HOST_OLD = "peerHostOld";
+	
+	/** Migrate parameter asking the host server to stage the agent's state at a destination & name it. */
+	static final String PRE_COPY = "preCopy";
+	
+	/** Heartbeat parameter: agents hosted. */
+	static final String AGENTS = "agents";
+	
+	/** Heartbeat parameter: live threads. */
+	static final String THREADS = "threads";
+	
+	/** Heartbeat parameter: requests handled per second since the last heartbeat. */
+	static final String RATE = "rate";
+	
+	/** Heartbeat parameter: percentage of the maximum heap in use. */
+	static final String HEAP = "heap";
+	
+	/** Stage agent parameter numbering a round of changes sent after the snapshot. */
+	static final String ROUND = "round";
+	
+	/** Host agent parameter saying the agent's state was staged beforehand & only the last changes come with it. */
+	static final String STAGED = "staged";
 		
 	/** None parameter. */
 	static final String NONE = "None";
@@ -175,6 +252,57 @@ public class HostServer {
 	/** Chance the agent migrates. */
 	static double MIGRATE_CHANCE = .1;
 	
+	/** Spread of agents' migration checks around TIMEOUT, in milliseconds. */
+	static final int TIMEOUT_JITTER = TIMEOUT / 10;
+	
+	/** Threads running agents' migration checks. */
+	static final int AGENT_TIMER_THREADS = Integer.getInteger("agent.timerThreads", 2);
+	
+	/** Shared timer for agents' migration checks. */
+	static TimerWheel agentTimer;
+	
+	/** Milliseconds an agent's changes wait, to be sent to her peer together. */
+	static final int REPLICATE_DELAY = Integer.getInteger("agent.replicateDelay", 50);
+	
+	/** Milliseconds between an agent's anti-entropy rounds with her peer. */
+	static final int ANTI_ENTROPY = Integer.getInteger("agent.antiEntropy", 10000);
+	
+	/** Buckets of the digest compared in anti-entropy. */
+	static final int DIGEST_BUCKETS = 64;
+	
+	/** Threads sending agents' replication traffic. */
+	static final int AGENT_REPLICATION_THREADS = Integer.getInteger("agent.replicationThreads", 4);
+	
+	/** Replicas each agent writes to in parallel, in place of passing changes around the peer ring; 0 keeps the ring. */
+	static final int REPLICAS = Integer.getInteger("agent.replicas", 0);
+	
+	/** Replica acknowledgments a write waits for; with the writer's own copy, a majority of the copies by default. */
+	static final int QUORUM = Math.min(REPLICAS, Integer.getInteger("agent.quorum", (REPLICAS + 1) / 2));
+	
+	/** Most rounds of changes copied to the destination while a migrating agent keeps serving. */
+	static final int MIGRATE_ROUNDS = Integer.getInteger("agent.migrateRounds", 4);
+	
+	/** Changed values few enough to copy while a migrating agent holds browser requests. */
+	static final int STOP_COPY_VALUES = Integer.getInteger("agent.stopCopyValues", 32);
+	
+	/** Milliseconds between a host server's heartbeats to the name server. */
+	static final int HEARTBEAT_INTERVAL = Integer.getInteger("host.heartbeat", 5000);
+	
+	/** Requests this process has handled, from browsers & servers alike. */
+	static final AtomicLong requestsHandled = new AtomicLong();
+	
+	/** Sends agents' replication traffic, off the timer's threads & the browsers' requests. */
+	static ExecutorService agentReplication;
+	
+	/** Versions agent values written on this host. */
+	static final HybridClock clock = new HybridClock();
+	
+	/** Host agents behind the host server's port, addressed by path, instead of on ports of their own. */
+	static final boolean AGENT_PATHS = Boolean.getBoolean("host.agentPaths");
+	
+	/** Path prefix of agents hosted behind the host server's port. */
+	static final String AGENT_PATH = "/agent/";
+	
 	/** Static block run when class loaded. */
 	static {
 		// Add HTTP responses here.
@@ -219,6 +347,10 @@ public class HostServer {
 		// Initialize server state.
 		serverState = new ServerState();
 		
+		// One timer for every agent: 100ms ticks, a turn of the wheel a little over TIMEOUT.
+		agentTimer = new TimerWheel("agent-timer", 100, 640, AGENT_TIMER_THREADS);
+		agentReplication = Executors.newFixedThreadPool(AGENT_REPLICATION_THREADS, Rpc.namedThreads("agent-replication"));
+		
 		// Start Host Server listener thread.
 		new Thread(new Server(hostServerPort, new HostServerStrategy(hostServerHost, hostServerPort, nameServerHost, nameServerPort))).start();
 		
@@ -255,6 +387,12 @@ public class HostServer {
 			this.serverStrategy = serverStrategy;
 		}
 		
+		/** Serves on a socket already bound, so no other server can take its port first. */
+		public Server(ServerSocket serverSocket, ServerStrategy serverStrategy) {
+			this(serverSocket.getLocalPort(), serverStrategy);
+			this.serverSocket = serverSocket;
+		}
+		
 		public int getPortNum() {
 			return portNum;
 		}
@@ -276,7 +414,9 @@ public class HostServer {
 		public void run() {
 			System.out.println("Starting " + serverStrategy.getTypeName() + " listener on port: " + getPortNum());			
 			try {
-				serverSocket = new ServerSocket(portNum);
+				if (serverSocket == null) {
+					serverSocket = new ServerSocket(portNum);
+				}
 				while (isControlSwitch()) {
 					// Wait for the next client connection.
 					Socket socket = serverSocket.accept();
@@ -351,12 +491,31 @@ public class HostServer {
 		
 		/** Processes a client request specific for the web server strategy. */
 		@Override
-		public void processRequest(Socket socket, Server server) {
+		public void processRequest(Socket socket, final Server server) {
 			BufferedReader reader =  null;
 			PrintStream writer = null;
 			try {
+				// A NUL first byte opens a keep-alive RPC connection from another server.
+				BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+				in.mark(1);
+				if (in.read() == 0) {
+					Rpc.serve(socket, in, new Rpc.Handler() {
+						@Override
+						public String handle(List<String> request) throws IOException {
+							requestsHandled.incrementAndGet();
+							ByteArrayOutputStream reply = new ByteArrayOutputStream();
+							PrintStream replyWriter = new PrintStream(reply, false, "UTF-8");
+							handleRequest(request, replyWriter, server);
+							replyWriter.flush();
+							return reply.toString("UTF-8");
+						}
+					});
+					return;
+				}
+				in.reset();
+				
 				// Get I/O streams from the socket.
-				reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				reader = new BufferedReader(new InputStreamReader(in));
 				writer = new PrintStream(socket.getOutputStream());
 
 				// Read all input from web browser via socket.
@@ -371,6 +530,7 @@ public class HostServer {
 				
 				// Process request.
 				if (input.size() > 0) {
+					requestsHandled.incrementAndGet();
 					System.out.println(input.get(0));
 					handleRequest(input, writer, server);
 				}
@@ -391,28 +551,6 @@ public class HostServer {
 			}
 		}
 		
-		/**
-		 * Get available port for binding server.
-		 */
-		protected static int getAvailablePort() {
-			int port = 0;
-			ServerSocket socket = null;
-			try {
-				socket = new ServerSocket(0);
-				port = socket.getLocalPort();
-			}
-			catch (Exception ex) {
-				ex.printStackTrace();
-			}
-			finally {
-				if (socket != null) {
-					try {socket.close();} catch (IOException ex){}
-				}
-			}
-			
-			return port;
-		}
-		
 		/**
 		 * Writes error code & html back to browser.
 		 */
@@ -465,8 +603,20 @@ public class HostServer {
 		/** Port of Name Server for registering agent servers. */
 		private int nameServerPort;
 
-		/** Map of agent names to agent servers (server:port) on this hostserver. */
-		private Map<String,String> agentServers = new HashMap<String,String>();		
+		/** Map of agent names to agent servers (server:port, or server:port/agent/name in path mode) on this hostserver. Thread safe. */
+		private ConcurrentHashMap<String,String> agentServers = new ConcurrentHashMap<String,String>();		
+
+		/** Map of agent names to the strategies of agents hosted behind this server's port. Thread safe. */
+		private ConcurrentHashMap<String,AbstractServerStrategy> agents = new ConcurrentHashMap<String,AbstractServerStrategy>();
+		
+		/** Requests handled as of the last heartbeat. Used by the heartbeat thread only. */
+		private long lastRequests;
+		
+		/** Time of the last heartbeat, from System.nanoTime(). Used by the heartbeat thread only. */
+		private long lastHeartbeat = System.nanoTime();
+		
+		/** States of agents migrating here, by name, copied ahead of hosting them. */
+		private ConcurrentHashMap<String,AgentState> staged = new ConcurrentHashMap<String,AgentState>();		
 
 		public HostServerStrategy(String hostServerHost, int hostServerPort, String nameServerHost, int nameServerPort) {
 			this.hostServerHost = hostServerHost;
@@ -477,6 +627,45 @@ public class HostServer {
 			// Register host server.
 			String registerRequest = REGISTER_HOST_SERVER + '?' + SERVER + '=' + hostServerHost + ':' + hostServerPort + CRLF;
 			genericRequest(nameServerHost, nameServerPort, registerRequest);
+			scheduleHeartbeat();
+		}
+		
+		/**
+		 * Schedules the next heartbeat to the name server.
+		 */
+		private void scheduleHeartbeat() {
+			agentTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					agentReplication.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								heartbeat();
+							}
+							finally {
+								scheduleHeartbeat();
+							}
+						}
+					});
+				}
+			}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL / 10);
+		}
+		
+		/**
+		 * Reports this host server's load to the name server, which places migrating agents by it.
+		 */
+		private void heartbeat() {
+			long now = System.nanoTime();
+			long requests = requestsHandled.get();
+			long rate = (requests - lastRequests) * 1000000000L / Math.max(1, now - lastHeartbeat);
+			lastRequests = requests;
+			lastHeartbeat = now;
+			Runtime runtime = Runtime.getRuntime();
+			long heap = (runtime.totalMemory() - runtime.freeMemory()) * 100 / runtime.maxMemory();
+			String heartbeatRequest = HEARTBEAT + '?' + SERVER + '=' + hostServerHost + ':' + hostServerPort + '&' + AGENTS + '=' + agentServers.size() 
+					+ '&' + THREADS + '=' + ManagementFactory.getThreadMXBean().getThreadCount() + '&' + RATE + '=' + rate + '&' + HEAP + '=' + heap + CRLF;
+			genericRequest(nameServerHost, nameServerPort, heartbeatRequest);
 		}
 
 		/** Echo type name specific for this strategy. */
@@ -498,21 +687,17 @@ public class HostServer {
 		    	while (toker.hasMoreTokens()) {
 		    		tokens.add(toker.nextToken());
 		    	}
+		    	if (tokens.size() > 1 && tokens.get(1).startsWith(AGENT_PATH)) {
+		    		// Request for an agent hosted behind this port.
+		    		handleAgentRequest(fullRequest, tokens, writer, server);
+		    		return;
+		    	}
 		    	String command = tokens.get(0);
-		    	if (!(command.equalsIgnoreCase(GET) || command.startsWith(MIGRATE) || command.startsWith(HOST_AGENT)) 
+		    	if (!(command.equalsIgnoreCase(GET) || command.startsWith(MIGRATE) || command.startsWith(HOST_AGENT) || command.startsWith(STAGE_AGENT)) 
 		    			|| (tokens.size() > 1 && tokens.get(1).contains(FAV_ICON))) {
 		    		writeError(BAD_REQUEST, "Invalid request for this server: " + request, writer);
 		    		return;
 		    	}
-		    	
-				// Parse host name from header.
-		    	String host = null;
-		    	for (String header : fullRequest) {
-		    		if (header.contains(HOST_HEADER)) {
-		    			host = header.substring(HOST_HEADER.length(), header.lastIndexOf(':'));
-		    			break;
-		    		}
-		    	}
 
 		    	// Parse request parameters.
 				Map<String,String> paramMap = parseParams(command);
@@ -523,14 +708,25 @@ public class HostServer {
 						handleGetRequest(writer);
 					}
 					else {
-						handleCreateAgentRequest(writer, paramMap, host, server.getPortNum());
+						handleCreateAgentRequest(writer);
 					}
 				}
 				else if (command.startsWith(MIGRATE)) {		// Migrate request from agent.
-					handleMigrateRequest(writer, paramMap);
+					if (paramMap.containsKey(PRE_COPY)) {
+						handlePreCopyRequest(writer, paramMap);
+					}
+					else if (paramMap.containsKey(SERVER)) {
+						handleMigratedRequest(writer, paramMap);
+					}
+					else {
+						handleMigrateRequest(writer, paramMap);
+					}
+				}
+				else if (command.startsWith(STAGE_AGENT)) {	// Agent state ahead of a live migration.
+					handleStageRequest(writer, paramMap);
 				}
 				else if (command.startsWith(HOST_AGENT)) {	// Host agent request from another host server.
-					handleHostRequest(writer, paramMap, server.getPortNum());
+					handleHostRequest(writer, paramMap);
 				}				
 				
 			} catch (IOException ex) {
@@ -541,16 +737,38 @@ public class HostServer {
 					writer.close();
 				}
 			}			
-			
-			while (serverState.isControlSwitch()) {
-				try {
-					Thread.sleep(TIMEOUT);
+	    }
+		
+		/** Hands a request for /agent/{name}/... to that agent, with the agent path stripped. */
+		private void handleAgentRequest(List<String> fullRequest, List<String> tokens, PrintStream writer, Server server) throws IOException {
+			String path = tokens.get(1).substring(AGENT_PATH.length());
+			int nameEnd = path.length();
+			for (int i = 0; i < path.length(); i++) {
+				if (path.charAt(i) == SLASH || path.charAt(i) == '?') {
+					nameEnd = i;
+					break;
 				}
-				catch (InterruptedException ex) {}
+			}
+			String agentName = path.substring(0, nameEnd);
+			AbstractServerStrategy agent = agents.get(agentName);
+			if (agent == null) {
+				writeError(NOT_FOUND, "No agent " + agentName + " on this server.", writer);
+				return;
+			}
+			String agentPath = path.substring(nameEnd);
+			if (agentPath.length() == 0 || agentPath.charAt(0) != SLASH) {
+				agentPath = SLASH + agentPath;
 			}
 			
-			System.out.println("Host Server exiting.");
-	    }
+			// Rebuild the request line as the agent would see it on a port of its own.
+			StringBuilder requestLine = new StringBuilder(tokens.get(0)).append(' ').append(agentPath);
+			for (int i = 2; i < tokens.size(); i++) {
+				requestLine.append(' ').append(tokens.get(i));
+			}
+			List<String> agentRequest = new ArrayList<String>(fullRequest);
+			agentRequest.set(0, requestLine.toString());
+			agent.handleRequest(agentRequest, writer, server);
+		}
 		
 		private void handleGetRequest(PrintStream writer) throws IOException {
 			// Display host server UI in browser.
@@ -565,9 +783,9 @@ public class HostServer {
 
 			responseBuilder.append("<h2>").append("Agents").append("</h2>").append(CRLF);
 			responseBuilder.append("<pre>").append(CRLF);
-			for (String agentName : agentServers.keySet()) {
-				responseBuilder.append("<a href=\"http://").append(agentServers.get(agentName)).append("/\">");
-				responseBuilder.append(agentName).append("</a>").append(CRLF);
+			for (Map.Entry<String,String> agentServer : agentServers.entrySet()) {
+				responseBuilder.append("<a href=\"http://").append(agentServer.getValue()).append("/\">");
+				responseBuilder.append(agentServer.getKey()).append("</a>").append(CRLF);
 			}
 			responseBuilder.append("</pre>").append(CRLF);
 			responseBuilder.append("</body></html>").append(CRLF);			
@@ -579,41 +797,43 @@ public class HostServer {
 		}
 
 		/** Start new agent request from browser. */
-		private void handleCreateAgentRequest(PrintStream writer, Map<String,String> paramMap, String hostServer, int hostServerPort) throws IOException {
-	    	// Get next available port.
-	    	int agentPort = getAvailablePort();
-			// Register new agent with name server & receive her name.
-			String registerRequest = REGISTER_NEW_AGENT + '?' + SERVER + '=' + hostServerHost + ':' + agentPort + CRLF;
-			List<String> registerResponse = genericRequest(nameServerHost, nameServerPort, registerRequest);
-			List<String> responseParams = parseDelimited(registerResponse.get(0), "&");
-			// Retrieve agent name.
-			String agentName = responseParams.get(0);
-			// Retrieve peer endpoint.
-			String peerEndpoint = responseParams.get(1);
-			List<String> peerHostAndPort = parseDelimited(peerEndpoint, ":");
-			String peerServer = peerHostAndPort.get(0);
-			int peerServerPort = Integer.parseInt(peerHostAndPort.get(1));
-			
-			// Add agent to map of hosted agents.
-			agentServers.put(agentName, hostServerHost + ':' + agentPort);
-
-			// Initialize agent state.
-			AgentState agentState = new AgentState(agentName);
+		private void handleCreateAgentRequest(PrintStream writer) throws IOException {
+			// Bind the agent's own port now, unless it is to live behind this server's port.
+			ServerSocket agentSocket = AGENT_PATHS ? null : new ServerSocket(0);
+			String agentEndpoint = (agentSocket == null) ? hostServerHost + ':' + hostServerPort + AGENT_PATH : hostServerHost + ':' + agentSocket.getLocalPort();
+			String agentName, peerEndpoint;
+			try {
+				// Register new agent with name server & receive her name; the name server completes a path endpoint with it.
+				String registerRequest = REGISTER_NEW_AGENT + '?' + SERVER + '=' + agentEndpoint + CRLF;
+				List<String> registerResponse = genericRequest(nameServerHost, nameServerPort, registerRequest);
+				List<String> responseParams = parseDelimited(registerResponse.get(0), "&");
+				// Retrieve agent name.
+				agentName = responseParams.get(0);
+				// Retrieve peer endpoint.
+				peerEndpoint = responseParams.get(1);
+			}
+			catch (RuntimeException ex) {
+				// Agent never started.
+				if (agentSocket != null) {
+					try {agentSocket.close();} catch (IOException closeEx) {}
+				}
+				throw ex;
+			}
+			if (agentSocket == null) {
+				agentEndpoint += agentName;
+			}
 			
-			// Start Agent listener thread with new agent.
-			AgentServerStrategy strategy = new AgentServerStrategy(agentState, hostServer, agentPort, hostServerPort, peerServer, peerServerPort);
-			new Thread(new Server(agentPort, strategy)).start();
-			System.out.println("Hosting Agent at: " + hostServerHost + ':' + agentPort);
-			strategy.initializeAgent(null);
+			// Start agent with new state.
+			hostAgent(new AgentState(agentName), agentEndpoint, agentSocket, peerEndpoint, null);
 			
 			// Build HTML redirection response for browser client.
 			StringBuilder responseBuilder = new StringBuilder();
 			responseBuilder.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">").append(CRLF);
 			responseBuilder.append("<html><head>").append(CRLF);
 			responseBuilder.append("<meta charset=\"UTF-8\">").append(CRLF);
-			responseBuilder.append("<meta http-equiv=\"refresh\" content=\"1;url=http://").append(hostServerHost).append(':').append(agentPort).append("\">").append(CRLF);
+			responseBuilder.append("<meta http-equiv=\"refresh\" content=\"1;url=http://").append(agentEndpoint).append("\">").append(CRLF);
 			responseBuilder.append("<script type=\"text/javascript\">").append(CRLF);
-			responseBuilder.append("window.location.href = \"").append("http://").append(hostServerHost).append(':').append(agentPort).append('"').append(CRLF);
+			responseBuilder.append("window.location.href = \"").append("http://").append(agentEndpoint).append('"').append(CRLF);
 			responseBuilder.append("</script>").append(CRLF);
 			responseBuilder.append("<title>Page Redirection</title>").append(CRLF);
 			responseBuilder.append("</head><body></body></html>").append(CRLF);				
@@ -631,75 +851,206 @@ public class HostServer {
 			
 			// Retrieve peer endpoint.
 			String peerEndpoint = paramMap.get(PEER_HOST);
-			List<String> peerHostAndPort = parseDelimited(peerEndpoint, ":");
-			String peerServer = peerHostAndPort.get(0);
-			int peerServerPort = Integer.parseInt(peerHostAndPort.get(1));
 
-			// Query list of host servers to randomly migrate to.
-			String nameServerRequest = QUERY_HOST_SERVERS + CRLF;
-			List<String> response = genericRequest(nameServerHost, nameServerPort, nameServerRequest);
-			// Parse response into list of host servers.
-			List<String> hostServers = parseDelimited(response.get(0), "&");
-			// Pick a random host server as migration destination.
-			String randomHostServer = hostServers.get((int)(Math.random() * hostServers.size()));
-			// Parse host server into host & port.
-			List<String> hostAndPort = parseDelimited(randomHostServer, ":");
-			String hostServerHost = hostAndPort.get(0);
-			int hostServerPort = Integer.parseInt(hostAndPort.get(1));
+			// Pick a host server to migrate to.
+			String destination = pickHostServer();
+			String hostServerHost = endpointHost(destination);
+			int hostServerPort = endpointPort(destination);
 			
 			// Retrieve former host..
 			String exHost = paramMap.get(PEER_HOST_OLD);
 
 			// Notify new host server to host agent.
-			AgentState agentState = new AgentState(paramMap.get(NAME), Integer.parseInt(paramMap.get(COUNT)));
-			agentState.addNameValueParams(paramMap);
-			nameServerRequest =  HOST_AGENT + '?' + NAME + '=' + agentState.getName() + '&' + agentState.renderNameValueParams() + '&' 
-							+ COUNT + '=' + agentState.getCount() + '&' + PEER_HOST + '=' + peerServer + ':' + peerServerPort + '&' + PEER_HOST_OLD + '=' + exHost + CRLF;
-			response = genericRequest(hostServerHost, hostServerPort, nameServerRequest);
-			// Receive agent port from new host server.
-			String hostServerAgentPort = response.get(0);
+			AgentState agentState = requestState(paramMap);
+			String nameServerRequest =  HOST_AGENT + '?' + NAME + '=' + agentState.getName() + '&' + PEER_HOST + '=' + peerEndpoint + '&' + PEER_HOST_OLD + '=' + exHost;
+			List<String> response = stateRequest(hostServerHost, hostServerPort, nameServerRequest, agentState);
+			// Receive agent endpoint from new host server.
+			String agentEndpoint = response.get(0);
 			// Notify name server of agent migration.
-			nameServerRequest = MIGRATE + '?' + NAME + '=' + agentState.getName() + '&' + SERVER + '=' + hostServerHost + ':' + hostServerAgentPort + CRLF;
+			nameServerRequest = MIGRATE + '?' + NAME + '=' + agentState.getName() + '&' + SERVER + '=' + agentEndpoint + CRLF;
 			response = genericRequest(nameServerHost, nameServerPort, nameServerRequest);
 			// Handle migration response to agent.
-			writer.print(hostServerHost + ':' + hostServerAgentPort);
+			writer.print(agentEndpoint);
+			writer.print(CRLF);
+			writer.flush();
+		}
+		
+		/**
+		 * Picks a host server, as server:port, to migrate an agent to: the name server places her by the host servers' load,
+		 * away from this one. A name server that predates load reports gives its list to pick from at random.
+		 */
+		private String pickHostServer() {
+			String thisHostServer = hostServerHost + ':' + hostServerPort;
+			List<String> response = genericRequest(nameServerHost, nameServerPort, PICK_HOST_SERVER + '?' + SERVER + '=' + thisHostServer + CRLF);
+			if (!response.isEmpty() && response.get(0) != null) {
+				String picked = response.get(0).trim();
+				List<String> hostAndPort = parseDelimited(picked, ":");
+				if (hostAndPort.size() == 2 && hostAndPort.get(1).matches("[0-9]+")) {
+					return picked;
+				}
+			}
+			
+			// Query list of host servers to randomly migrate to.
+			String nameServerRequest = QUERY_HOST_SERVERS + CRLF;
+			response = genericRequest(nameServerHost, nameServerPort, nameServerRequest);
+			// Parse response into list of host servers.
+			List<String> hostServers = parseDelimited(response.get(0), "&");
+			if (hostServers.size() > 1) {
+				hostServers.remove(thisHostServer);
+			}
+			return hostServers.get((int)(Math.random() * hostServers.size()));
+		}
+		
+		/**
+		 * Live migration, first step: stages the agent's snapshot at a destination host server & replies with the destination,
+		 * or with None when it cannot stage it, e.g. because the destination predates live migration.
+		 */
+		private void handlePreCopyRequest(PrintStream writer, Map<String,String> paramMap) {
+			String destination = NONE;
+			try {
+				String candidate = pickHostServer();
+				String stageRequest = STAGE_AGENT + '?' + NAME + '=' + paramMap.get(NAME) + CRLF;
+				String reply = Rpc.call(endpointHost(candidate), endpointPort(candidate), stageRequest, Rpc.requestBody());
+				if (reply != null && reply.startsWith(SUCCESS)) {
+					destination = candidate;
+				}
+			}
+			catch (IOException ex) {
+				System.out.println("Staging agent " + paramMap.get(NAME) + " failed: " + ex.getMessage());
+			}
+			catch (RuntimeException ex) {
+				System.out.println("Staging agent " + paramMap.get(NAME) + " failed: " + ex);
+			}
+			writer.print(destination);
+			writer.print(CRLF);
+			writer.flush();
+		}
+		
+		/**
+		 * Live migration, last step: the agent now lives at a new endpoint, so forget her here & tell the name server.
+		 */
+		private void handleMigratedRequest(PrintStream writer, Map<String,String> paramMap) {
+			String agentName = paramMap.get(NAME);
+			String agentEndpoint = paramMap.get(SERVER);
+			String exHost = paramMap.get(PEER_HOST_OLD);
+			// Unless she moved back to the same endpoint.
+			if (exHost != null && !exHost.equalsIgnoreCase(agentEndpoint)) {
+				agentServers.remove(agentName, exHost);
+			}
+			String nameServerRequest = MIGRATE + '?' + NAME + '=' + agentName + '&' + SERVER + '=' + agentEndpoint + CRLF;
+			genericRequest(nameServerHost, nameServerPort, nameServerRequest);
+			writer.print(SUCCESS);
+			writer.print(CRLF);
+			writer.flush();
+		}
+		
+		/**
+		 * Holds an agent's snapshot, or applies a round of her changes to it, until she is hosted here.
+		 * A staged state never hosted is dropped after TIMEOUT.
+		 */
+		private void handleStageRequest(PrintStream writer, Map<String,String> paramMap) throws IOException {
+			final String agentName = paramMap.get(NAME);
+			if (paramMap.get(ROUND) == null) {
+				final AgentState agentState = requestState(paramMap);
+				staged.put(agentName, agentState);
+				agentTimer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						staged.remove(agentName, agentState);
+					}
+				}, TIMEOUT);
+			}
+			else {
+				AgentState agentState = staged.get(agentName);
+				byte[] body = Rpc.requestBody();
+				if (agentState == null || body == null) {
+					writer.print(NONE);
+					writer.print(CRLF);
+					writer.flush();
+					return;
+				}
+				for (Delta delta : AgentState.decodeDeltas(body)) {
+					agentState.merge(delta);
+				}
+			}
+			writer.print(SUCCESS);
 			writer.print(CRLF);
 			writer.flush();
 		}
 		
     	
 		/** Host agent on this server. */
-		private void handleHostRequest(PrintStream writer, Map<String,String> paramMap, int hostServerPort) throws IOException {
-	    	// Get next available port.
-	    	int agentPort = getAvailablePort();
-	    	
+		private void handleHostRequest(PrintStream writer, Map<String,String> paramMap) throws IOException {
 	    	// Initialize agent state.
-			AgentState agentState = new AgentState(paramMap.get(NAME), Integer.parseInt(paramMap.get(COUNT)));
-			agentState.addNameValueParams(paramMap);
+			AgentState agentState;
+			if (paramMap.containsKey(STAGED)) {
+				// Staged beforehand; the body holds the changes made since the last round.
+				agentState = staged.remove(paramMap.get(NAME));
+				byte[] body = Rpc.requestBody();
+				if (agentState == null || body == null) {
+					writer.print(NONE);
+					writer.print(CRLF);
+					writer.flush();
+					return;
+				}
+				for (Delta delta : AgentState.decodeDeltas(body)) {
+					agentState.merge(delta);
+				}
+				agentState.setCount(Integer.parseInt(paramMap.get(COUNT)));
+			}
+			else {
+				agentState = requestState(paramMap);
+			}
 
 			// Retrieve peer endpoint.
 			String peerEndpoint = paramMap.get(PEER_HOST);
-			List<String> peerHostAndPort = parseDelimited(peerEndpoint, ":");
-			String peerServer = peerHostAndPort.get(0);
-			int peerServerPort = Integer.parseInt(peerHostAndPort.get(1));
 			
 			// Retrieve former host..
 			String exHost = paramMap.get(PEER_HOST_OLD);
 			
-			// Add agent to map of hosted agents.
-			agentServers.put(paramMap.get(NAME), hostServerHost + ':' + agentPort);
-	
-			// Start Agent listener thread.
-			AgentServerStrategy strategy = new AgentServerStrategy(agentState, hostServerHost, agentPort, hostServerPort, peerServer, peerServerPort);
-			new Thread(new Server(agentPort, strategy)).start();
-			System.out.println("Hosting Agent at: " + hostServerHost + ':' + agentPort);
-			strategy.initializeAgent(exHost);
+			// Bind the agent's own port, unless it is to live behind this server's port.
+			ServerSocket agentSocket = AGENT_PATHS ? null : new ServerSocket(0);
+			String agentEndpoint = (agentSocket == null) ? hostServerHost + ':' + hostServerPort + AGENT_PATH + agentState.getName() : hostServerHost + ':' + agentSocket.getLocalPort();
+			hostAgent(agentState, agentEndpoint, agentSocket, peerEndpoint, exHost);
 			
 			// Respond to host server.
-			writer.print(agentPort);
+			writer.print(agentEndpoint);
 			writer.print(CRLF);
 			writer.flush();
 		}
+		
+		/**
+		 * Starts hosting an agent, on its own bound socket or, when that is null, behind this server's port.
+		 */
+		private void hostAgent(AgentState agentState, String agentEndpoint, ServerSocket agentSocket, String peerEndpoint, String peerHostOld) {
+			// Add agent to map of hosted agents.
+			agentServers.put(agentState.getName(), agentEndpoint);
+	
+			AgentServerStrategy strategy = new AgentServerStrategy(agentState, hostServerHost, hostServerPort, nameServerHost, nameServerPort, 
+					agentEndpoint, peerEndpoint, (agentSocket == null) ? agents : null);
+			if (agentSocket == null) {
+				// Replaces any zombie left by an earlier stay on this server.
+				agents.put(agentState.getName(), strategy);
+			}
+			else {
+				// Start Agent listener thread.
+				new Thread(new Server(agentSocket, strategy)).start();
+			}
+			System.out.println("Hosting Agent at: " + agentEndpoint);
+			if (peerHostOld == null) {
+				strategy.initializeAgent(peerHostOld);
+				return;
+			}
+			// A migrated agent serves at once; telling her peers where she went need not hold up her old host.
+			final AgentServerStrategy migratedStrategy = strategy;
+			final String exHost = peerHostOld;
+			agentReplication.execute(new Runnable() {
+				@Override
+				public void run() {
+					migratedStrategy.initializeAgent(exHost);
+				}
+			});
+		}
 
 	}
 		
@@ -714,31 +1065,76 @@ public class HostServer {
 		/** Host server. */
 		private String hostServer;
 		
-		/** Agent server port. */
-		private int agentServerPort;
-
 		/** Host server port. */
 		private int hostServerPort;
+		
+		/** Name server. */
+		private String nameServerHost;
+		
+		/** Name server port. */
+		private int nameServerPort;
 
-		/** Peer server. */
-		private String peerServer;		
+		/** This agent's endpoint (server:port, or server:port/agent/name in path mode). */
+		private String agentEndpoint;
+		
+		/** Peer agent's endpoint. */
+		private volatile String peerEndpoint;		
+		
+		/** Host server's table of agents behind its port, null when this agent has a port of its own. */
+		private ConcurrentHashMap<String,AbstractServerStrategy> agentTable;
+		
+		/** Pending auto-migration check. Guarded by this. */
+		private TimerWheel.Timeout migrationCheck;
+		
+		/** Set once the agent has migrated away, ending auto-migration checks & replication. Guarded by this. */
+		private boolean migrated;
 		
-		/** Peer server port. */
-		private int peerServerPort;
+		/** Set from the start of a migration, so only one runs. Guarded by this. */
+		private boolean migrating;
 		
-		/** Migration timer. */
-		Timer timer;
+		/** Set while browser requests are held for the last step of a migration. Guarded by this. */
+		private boolean frozen;
 		
-		public AgentServerStrategy(AgentState agentState, String hostServer, int agentServerPort, int hostServerPort, String peerServer, int peerServerPort) {
+		/** Read locked by browser requests, write locked by the last step of a migration, so no write lands after the last copy. */
+		private final ReentrantReadWriteLock handoffLock = new ReentrantReadWriteLock();
+		
+		/** Where the agent migrated to, null until she has. Guarded by this. */
+		private String forwardingAddress;
+		
+		/** Names changed since changes were last sent to the peer. Guarded by this. */
+		private Set<String> dirty = new HashSet<String>();
+		
+		/** Set while sending changes to the peer is scheduled. Guarded by this. */
+		private boolean flushScheduled;
+		
+		/** Endpoints of the agents this one's writes go to when REPLICAS is set, from the name server. */
+		private volatile List<String> replicaEndpoints = new ArrayList<String>();
+		
+		/** Set while asking the name server for replicas again after a failed send. */
+		private AtomicBoolean refreshingReplicas = new AtomicBoolean();
+		
+		public AgentServerStrategy(AgentState agentState, String hostServer, int hostServerPort, String nameServerHost, int nameServerPort, 
+				String agentEndpoint, String peerEndpoint, ConcurrentHashMap<String,AbstractServerStrategy> agentTable) {
 			this.agentState = agentState;
 			this.hostServer = hostServer;
-			this.agentServerPort = agentServerPort;
 			this.hostServerPort = hostServerPort;
-			this.peerServer = peerServer;
-			this.peerServerPort = peerServerPort;
+			this.nameServerHost = nameServerHost;
+			this.nameServerPort = nameServerPort;
+			this.agentEndpoint = agentEndpoint;
+			this.peerEndpoint = peerEndpoint;
+			this.agentTable = agentTable;
 			
-			timer = new Timer();
-			timer.schedule(new AgentMigratorTimerTask(hostServer, agentServerPort, timer), TIMEOUT, TIMEOUT);			
+			scheduleMigrationCheck();
+			scheduleAntiEntropy();
+		}
+		
+		/**
+		 * Schedules the next auto-migration check, unless the agent has migrated.
+		 */
+		private synchronized void scheduleMigrationCheck() {
+			if (!migrated) {
+				migrationCheck = agentTimer.schedule(new AgentMigratorTimerTask(this), TIMEOUT, TIMEOUT_JITTER);
+			}
 		}
 
 		/** Echo type name specific for this strategy. */
@@ -751,127 +1147,572 @@ public class HostServer {
 		 * Initialize this Agent.
 		 */
 		public void initializeAgent(String peerHostOld) {
-			if (!(peerServer.equalsIgnoreCase(hostServer) && peerServerPort == agentServerPort)) {
+			if (REPLICAS > 0) {
+				// Replicas come from the name server, so the peer ring is not joined.
+				refreshReplicas();
+				antiEntropy();
+				return;
+			}
+			if (!peerEndpoint.equalsIgnoreCase(agentEndpoint)) {
 				if (peerHostOld == null) {
-					String makePeerRequest = GET + " /" + MAKE_PEER + '?' + INPUT + '=' + MAKE_PEER + '&' + PEER_HOST + '=' + hostServer + ':' + agentServerPort + CRLF + CRLF;
-					List<String> migrateResponse = genericRequest(peerServer, peerServerPort, makePeerRequest);
+					String makePeerRequest = MAKE_PEER + '?' + INPUT + '=' + MAKE_PEER + '&' + PEER_HOST + '=' + agentEndpoint + CRLF + CRLF;
+					List<String> migrateResponse = agentRequest(peerEndpoint, makePeerRequest);
 					// Retrieve peer endpoint.
-					String peerEndpoint = migrateResponse.get(0);
-					List<String> peerHostAndPort = parseDelimited(peerEndpoint, ":");
-					this.peerServer = peerHostAndPort.get(0);
-					this.peerServerPort = Integer.parseInt(peerHostAndPort.get(1));
+					this.peerEndpoint = migrateResponse.get(0);
 				}
 				else {
 					// Already has peer, tell peers about new address.
-					String syncDataRequest = GET + " /" + SYNC_PEER + '?' + PEER_HOST + '=' + hostServer + ':' + agentServerPort + '&' + PEER_HOST_OLD + '=' + peerHostOld;
-					genericRequest(peerServer, peerServerPort, syncDataRequest);
+					String syncDataRequest = SYNC_PEER + '?' + PEER_HOST + '=' + agentEndpoint + '&' + PEER_HOST_OLD + '=' + peerHostOld;
+					agentRequest(peerEndpoint, syncDataRequest);
 				}
 				// Synchronize data.
-				String syncDataRequest = GET + " /" + SYNC_DATA + '?' + PEER_HOST + '=' + hostServer + ':' + agentServerPort;
-				List<String> syncResponse = genericRequest(peerServer, peerServerPort, syncDataRequest);
-				if (syncResponse != null && syncResponse.get(0) != null) {
-					Map<String,String> paramMap = parseParams(syncResponse.get(0));
-					agentState.addNameValueParams(paramMap);
-				}
+				antiEntropy();
 			}			
 		}
 		
 		/**
-		 * Process request string & delegate to handler functions.
+		 * Notes names changed here & schedules sending them to the peer, so changes made close together go in one batch.
 		 */
-		@Override
-		protected void handleRequest(List<String> fullRequest, PrintStream writer, Server server) throws IOException {
-			// Parse & validate request.
-			String request = fullRequest.get(0);
-	    	StringTokenizer toker = new StringTokenizer(request, " ");
-	    	List<String> tokens = new ArrayList<String>(); 
-	    	while (toker.hasMoreTokens()) {
-	    		tokens.add(toker.nextToken());
-	    	}
-	    	if (tokens.size() < 2 || !tokens.get(0).equalsIgnoreCase(GET) || tokens.get(1).contains(FAV_ICON)) {
-	    		writeError(BAD_REQUEST, "Invalid request for this server: " + request, writer);
-	    		return;
-	    	}	    	
-			System.out.println("Agent working at: " + hostServer + ':' + agentServerPort);
-
-			// Parse input parameters.
-			Map<String,String> paramMap = parseParams(tokens.get(1));
-			String input = paramMap.get(INPUT);
-	    	
-			if (MIGRATE.equalsIgnoreCase(input)) {		// Check for migration request.
-       			handleMigrateRequest(writer, server, hostServer, agentServerPort);
-	    	}
-			else if (tokens.get(1).startsWith("/" + MAKE_PEER)) {
-				handlePeerRequest(writer, paramMap);
+		private void changed(List<String> names) {
+			changed(names, false);
+		}
+		
+		/**
+		 * Notes changed names & schedules sending them to the peer.
+		 * @param forward the names arrived in a batch from the peer, so pass them on at once rather than wait for more.
+		 */
+		private synchronized void changed(List<String> names, boolean forward) {
+			if (names.isEmpty() || migrated || (forward && REPLICAS > 0)) {
+				// Replicas keep what they are sent; only the writer fans it out.
+				return;
 			}
-    		else if (tokens.get(1).startsWith("/" + SYNC_DATA)) {
-    			handleSyncDataRequest(writer, paramMap);
-     		}
-    		else if (tokens.get(1).startsWith("/" + SYNC_PEER)) {
-    			handleSyncPeerRequest(writer, paramMap);
-     		}
-    		else {
-				handleGetRequest(writer, input, paramMap, hostServer, agentServerPort);
+			dirty.addAll(names);
+			if (flushScheduled) {
+				return;
 			}
-	    }
-		
-		private void handleGetRequest(PrintStream writer, String input, Map<String,String> paramMap, String host, int port) throws IOException {
-   	    	// Set agent input state.
-   			agentState.addNameValueParams(paramMap);
-    		
-			if (input != null && paramMap.containsKey(VALUE)) { 
-				agentState.getContents().put(input.replace("+", " "), paramMap.get(VALUE).replace("+", " "));
-        		agentState.incCount();
-    			String makePeerRequest = GET + " /" + SYNC_DATA + '?' + PEER_HOST + '=' + hostServer + ':' + agentServerPort + '&' + agentState.renderNameValueParams();
-				//+ '?' + INPUT + '=' + MAKE_PEER + '&' + PEER_HOST + '=' + hostServer + ':' + agentServerPort + CRLF + CRLF;
-    			genericRequest(peerServer, peerServerPort, makePeerRequest);
+			flushScheduled = true;
+			final Runnable flush = new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			};
+			if (forward) {
+				agentReplication.execute(flush);
+			}
+			else {
+				agentTimer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						agentReplication.execute(flush);
+					}
+				}, REPLICATE_DELAY);
 			}
-    		
-			// Build HTML response for browser client.
-			StringBuilder responseBuilder = new StringBuilder();
-			responseBuilder.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">").append(CRLF);
-			responseBuilder.append("<html><head>").append(CRLF);
-			responseBuilder.append("<title>").append("Agent at: ").append(host).append(':').append(port).append("</title>").append(CRLF);
-			responseBuilder.append("</head><body>").append(CRLF);
-			responseBuilder.append("<h1>").append("Agent at&nbsp;&nbsp;&nbsp;").append(host).append(':').append(port).append("</h1>").append(CRLF);
-			responseBuilder.append("<h2>").append("Agent state: ").append(agentState.getCount()).append("</h2>").append(CRLF);
-			responseBuilder.append("<form method=\"GET\" action=\"http://").append(host).append(':').append(port).append("\">").append(CRLF);
-			responseBuilder.append("Name or <i>migrate</i>: <input type=\"text\" name=\"").append(INPUT).append("\" size=\"20\" value=\"").append("").append("\"/>");
-			responseBuilder.append(" Value: <input type=\"text\" name=\"").append(VALUE).append("\" size=\"20\" value=\"").append("\"/><p/>").append(CRLF);
-			responseBuilder.append("<input type=\"submit\" value=\"Submit\"<p/>").append(CRLF);
-			responseBuilder.append("<h2>Data Values:</h2>").append(CRLF);
-			responseBuilder.append(agentState.renderHtmlTable());
-			responseBuilder.append("</form></body></html>").append(CRLF);			
-			String response = responseBuilder.toString();				
-			writeOkHeader(response.length(), mimeTypes.get("html"), writer);
-			writer.print(response);
-			writer.print(CRLF);
-			writer.flush();
 		}
 		
-		private void handleMigrateRequest(PrintStream writer, Server server, String host, int port) throws IOException {
-			// Cancel migration timer.
-			timer.cancel();
-			// Request migration location from nameserver.
-			String migrateRequest = MIGRATE + '?' + NAME + '=' + agentState.getName() + '&' + agentState.renderNameValueParams() + '&' + 
-					COUNT + '=' + agentState.getCount() + '&' + PEER_HOST + '=' + peerServer + ':' + peerServerPort + '&' + PEER_HOST_OLD + '=' + hostServer + ':' + agentServerPort + CRLF;
-			migrateRequest += HOST_HEADER + host + ':' + port + CRLF + CRLF;
-			List<String> migrateResponse = genericRequest(host, hostServerPort, migrateRequest);
-			String forwardingAddress = migrateResponse.get(0);
-			
-			// Change this server to a zombie server.
-			server.setServerStrategy(new ZombieServerStrategy(host + ':' + port, forwardingAddress));
-
-			// Build HTML redirection for browser client.
-			StringBuilder responseBuilder = new StringBuilder();
-			responseBuilder.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">").append(CRLF);
-			responseBuilder.append("<html><head>").append(CRLF);
-			responseBuilder.append("<meta charset=\"UTF-8\">").append(CRLF);
-			responseBuilder.append("<meta http-equiv=\"refresh\" content=\"1;url=http://").append(host).append(':').append(port).append("\">").append(CRLF);
-			responseBuilder.append("<script type=\"text/javascript\">").append(CRLF);
-			responseBuilder.append("window.location.href = \"").append("http://").append(host).append(':').append(port).append('"').append(CRLF);
-			responseBuilder.append("</script>").append(CRLF);
-			responseBuilder.append("<title>Page Redirection</title>").append(CRLF);
+		/**
+		 * Sends the changes made since the last flush to the peer. One that fails is left to anti-entropy to repair.
+		 */
+		private void flush() {
+			List<Delta> deltas = new ArrayList<Delta>();
+			synchronized (this) {
+				for (String name : dirty) {
+					Delta delta = agentState.get(name);
+					if (delta != null) {
+						deltas.add(delta);
+					}
+				}
+				dirty.clear();
+				flushScheduled = false;
+			}
+			if (deltas.isEmpty()) {
+				return;
+			}
+			if (REPLICAS > 0) {
+				replicate(deltas, 0);
+				return;
+			}
+			String peer = peerEndpoint;
+			if (!peer.equalsIgnoreCase(agentEndpoint)) {
+				sendDeltas(peer, deltas);
+			}
+		}
+		
+		/**
+		 * Sends values to every replica at once & waits until a quorum of them acknowledge, the rest
+		 * finishing in the background. A replica that misses them is repaired by anti-entropy.
+		 * Short of REPLICAS known, the name server is asked again first, in case agents were created since.
+		 * @param quorum acknowledgments to wait for, capped by the replicas there are.
+		 * @return acknowledgments received by the time the quorum was met or could no longer be.
+		 */
+		private int replicate(final List<Delta> deltas, int quorum) {
+			if (replicaEndpoints.size() < REPLICAS) {
+				refreshReplicas();
+			}
+			final List<String> replicas = replicaEndpoints;
+			final int[] acks = new int[2];		// Acknowledged, answered.
+			for (final String replica : replicas) {
+				agentReplication.execute(new Runnable() {
+					@Override
+					public void run() {
+						boolean acked = sendDeltas(replica, deltas);
+						synchronized (acks) {
+							acks[0] += acked ? 1 : 0;
+							acks[1]++;
+							acks.notifyAll();
+						}
+					}
+				});
+			}
+			int needed = Math.min(quorum, replicas.size());
+			long deadline = System.currentTimeMillis() + Rpc.TIMEOUT;
+			synchronized (acks) {
+				for (long left = Rpc.TIMEOUT; acks[0] < needed && acks[1] < replicas.size() && left > 0; left = deadline - System.currentTimeMillis()) {
+					try {
+						acks.wait(left);
+					}
+					catch (InterruptedException ex) {
+						break;
+					}
+				}
+				return acks[0];
+			}
+		}
+		
+		/**
+		 * Asks the name server for this agent's replicas.
+		 */
+		private void refreshReplicas() {
+			String queryRequest = QUERY_AGENTS + '?' + NAME + '=' + agentState.getName() + '&' + COUNT + '=' + REPLICAS + CRLF;
+			List<String> response = genericRequest(nameServerHost, nameServerPort, queryRequest);
+			if (!response.isEmpty()) {
+				replicaEndpoints = (response.get(0) == null) ? new ArrayList<String>() : parseDelimited(response.get(0).trim(), "&");
+			}
+		}
+		
+		/**
+		 * Asks the name server for replicas again in the background, once at a time, after a replica failed, in case it moved.
+		 */
+		private void replicaFailed() {
+			if (REPLICAS > 0 && refreshingReplicas.compareAndSet(false, true)) {
+				agentReplication.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refreshReplicas();
+						}
+						finally {
+							refreshingReplicas.set(false);
+						}
+					}
+				});
+			}
+		}
+		
+		/**
+		 * Sends values to an agent, as a binary batch over RPC or, to a server that predates RPC, as request parameters.
+		 * @return true when the agent acknowledged them.
+		 */
+		private boolean sendDeltas(String endpoint, List<Delta> deltas) {
+			try {
+				String command = SYNC_DELTA + '?' + PEER_HOST + '=' + agentEndpoint;
+				String reply = agentCall(endpoint, command, AgentState.encodeDeltas(deltas));
+				if (reply == null) {
+					StringBuilder params = new StringBuilder();
+					for (Delta delta : deltas) {
+						params.append('&').append(delta.name.replace(" ", "%20")).append('=').append(delta.value.replace(" ", "%20"));
+					}
+					reply = agentRequest(endpoint, SYNC_DATA + '?' + PEER_HOST + '=' + agentEndpoint + params).get(0);
+				}
+				if (reply != null && reply.startsWith(SUCCESS)) {
+					return true;
+				}
+				// Not an agent there any more, e.g. a zombie after migration.
+				System.out.println("Replication from " + agentEndpoint + " to " + endpoint + " refused, anti-entropy will repair.");
+			}
+			catch (IOException ex) {
+				System.out.println("Replication from " + agentEndpoint + " to " + endpoint + " failed, anti-entropy will repair: " + ex.getMessage());
+			}
+			catch (IndexOutOfBoundsException ex) {
+				System.out.println("Replication from " + agentEndpoint + " to " + endpoint + " failed, anti-entropy will repair.");
+			}
+			replicaFailed();
+			return false;
+		}
+		
+		/**
+		 * Schedules the next anti-entropy round, unless the agent has migrated.
+		 */
+		private synchronized void scheduleAntiEntropy() {
+			if (migrated) {
+				return;
+			}
+			agentTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					agentReplication.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								antiEntropy();
+							}
+							finally {
+								scheduleAntiEntropy();
+							}
+						}
+					});
+				}
+			}, ANTI_ENTROPY, ANTI_ENTROPY / 5);
+		}
+		
+		/**
+		 * Compares digests with the peer, or with each replica when REPLICAS is set, after asking the name server for them again.
+		 */
+		private void antiEntropy() {
+			if (REPLICAS == 0) {
+				antiEntropy(peerEndpoint);
+				return;
+			}
+			refreshReplicas();
+			for (String replica : replicaEndpoints) {
+				antiEntropy(replica);
+			}
+		}
+		
+		/**
+		 * Compares digests with an agent & sends the values of buckets that differ; she sends hers back.
+		 */
+		private void antiEntropy(String peer) {
+			if (peer.equalsIgnoreCase(agentEndpoint)) {
+				return;
+			}
+			try {
+				String command = SYNC_DIGEST + '?' + PEER_HOST + '=' + agentEndpoint;
+				String reply = agentCall(peer, command, encodeDigest(agentState.digest(DIGEST_BUCKETS)));
+				if (reply == null) {
+					// Peer predates digests.
+					return;
+				}
+				Set<Integer> buckets = parseBuckets(reply.trim());
+				if (!buckets.isEmpty()) {
+					sendDeltas(peer, agentState.bucketDeltas(buckets, DIGEST_BUCKETS));
+				}
+			}
+			catch (IOException ex) {
+				System.out.println("Anti-entropy from " + agentEndpoint + " to " + peer + " failed: " + ex.getMessage());
+			}
+		}
+		
+		private static byte[] encodeDigest(long[] digest) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(digest.length * 8 + 4);
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(digest.length);
+				for (long bucket : digest) {
+					out.writeLong(bucket);
+				}
+			}
+			catch (IOException ex) {
+				// Not thrown by a byte array.
+				throw new IllegalStateException(ex);
+			}
+			return bytes.toByteArray();
+		}
+		
+		private static long[] decodeDigest(byte[] encoded) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+			long[] digest = new long[in.readInt()];
+			if (digest.length != DIGEST_BUCKETS) {
+				throw new IOException("Digest of " + digest.length + " buckets, expected " + DIGEST_BUCKETS + '.');
+			}
+			for (int i = 0; i < digest.length; i++) {
+				digest[i] = in.readLong();
+			}
+			return digest;
+		}
+		
+		private static Set<Integer> parseBuckets(String buckets) throws IOException {
+			Set<Integer> bucketSet = new HashSet<Integer>();
+			try {
+				for (String bucket : parseDelimited(buckets, "&")) {
+					bucketSet.add(Integer.parseInt(bucket));
+				}
+			}
+			catch (NumberFormatException ex) {
+				// Not an agent there any more, e.g. a zombie after migration.
+				throw new IOException("Unexpected digest reply.");
+			}
+			return bucketSet;
+		}
+		
+		/**
+		 * Process request string & delegate to handler functions.
+		 */
+		@Override
+		protected void handleRequest(List<String> fullRequest, PrintStream writer, Server server) throws IOException {
+			// Parse & validate request.
+			String request = fullRequest.get(0);
+	    	StringTokenizer toker = new StringTokenizer(request, " ");
+	    	List<String> tokens = new ArrayList<String>(); 
+	    	while (toker.hasMoreTokens()) {
+	    		tokens.add(toker.nextToken());
+	    	}
+	    	if (tokens.size() < 2 || !tokens.get(0).equalsIgnoreCase(GET) || tokens.get(1).contains(FAV_ICON)) {
+	    		writeError(BAD_REQUEST, "Invalid request for this server: " + request, writer);
+	    		return;
+	    	}	    	
+			System.out.println("Agent working at: " + agentEndpoint);
+
+			// Parse input parameters.
+			Map<String,String> paramMap = parseParams(tokens.get(1));
+			String input = paramMap.get(INPUT);
+	    	
+			if (MIGRATE.equalsIgnoreCase(input)) {		// Check for migration request.
+       			handleMigrateRequest(writer, server);
+	    	}
+			else if (tokens.get(1).startsWith("/" + MAKE_PEER)) {
+				handlePeerRequest(writer, paramMap);
+			}
+    		else if (tokens.get(1).startsWith("/" + SYNC_DATA)) {
+    			handleSyncDataRequest(writer, paramMap);
+     		}
+    		else if (tokens.get(1).startsWith("/" + SYNC_PEER)) {
+    			handleSyncPeerRequest(writer, paramMap);
+     		}
+    		else if (tokens.get(1).startsWith("/" + SYNC_DELTA)) {
+    			handleSyncDeltaRequest(writer);
+     		}
+    		else if (tokens.get(1).startsWith("/" + SYNC_DIGEST)) {
+    			handleSyncDigestRequest(writer, paramMap);
+     		}
+    		else {
+    			handoffLock.readLock().lock();
+    			try {
+    				String movedTo = awaitHandoff();
+    				if (movedTo != null) {
+    					// Held through a migration; the request goes on to the agent's new endpoint.
+    					String query = tokens.get(1).contains("?") ? tokens.get(1).substring(tokens.get(1).indexOf('?')) : "";
+    					writeRedirect(movedTo + query, writer);
+    				}
+    				else {
+    					handleGetRequest(writer, input, paramMap);
+    				}
+    			}
+    			finally {
+    				handoffLock.readLock().unlock();
+    			}
+			}
+	    }
+		
+		private void handleGetRequest(PrintStream writer, String input, Map<String,String> paramMap) throws IOException {
+   	    	// Set agent input state.
+   			List<String> changedNames = agentState.addNameValueParams(paramMap);
+    		
+			if (input != null && paramMap.containsKey(VALUE)) { 
+				String name = input.replace("+", " ");
+				agentState.write(name, paramMap.get(VALUE).replace("+", " "));
+				changedNames.add(name);
+        		agentState.incCount();
+			}
+			int acks = -1;
+			int replicas = 0;
+			if (REPLICAS > 0 && !changedNames.isEmpty()) {
+				// Wait for a quorum of replicas to take the writes.
+				List<Delta> deltas = new ArrayList<Delta>();
+				for (String name : changedNames) {
+					deltas.add(agentState.get(name));
+				}
+				acks = replicate(deltas, QUORUM);
+				replicas = replicaEndpoints.size();
+			}
+			else {
+				// Replicated in the background; the browser does not wait.
+				changed(changedNames);
+			}
+    		
+			// Build HTML response for browser client.
+			StringBuilder responseBuilder = new StringBuilder();
+			responseBuilder.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">").append(CRLF);
+			responseBuilder.append("<html><head>").append(CRLF);
+			responseBuilder.append("<title>").append("Agent at: ").append(agentEndpoint).append("</title>").append(CRLF);
+			responseBuilder.append("</head><body>").append(CRLF);
+			responseBuilder.append("<h1>").append("Agent at&nbsp;&nbsp;&nbsp;").append(agentEndpoint).append("</h1>").append(CRLF);
+			responseBuilder.append("<h2>").append("Agent state: ").append(agentState.getCount()).append("</h2>").append(CRLF);
+			if (acks >= 0) {
+				// Too few replicas known is a shortfall too, so a quorum write never passes for stored on none.
+				responseBuilder.append("<p>").append("Stored on ").append(acks).append(" of ").append(replicas).append(" replicas")
+					.append((acks < QUORUM) ? ", short of the quorum; anti-entropy will repair" : "").append(".</p>").append(CRLF);
+			}
+			responseBuilder.append("<form method=\"GET\" action=\"http://").append(agentEndpoint).append("\">").append(CRLF);
+			responseBuilder.append("Name or <i>migrate</i>: <input type=\"text\" name=\"").append(INPUT).append("\" size=\"20\" value=\"").append("").append("\"/>");
+			responseBuilder.append(" Value: <input type=\"text\" name=\"").append(VALUE).append("\" size=\"20\" value=\"").append("\"/><p/>").append(CRLF);
+			responseBuilder.append("<input type=\"submit\" value=\"Submit\"<p/>").append(CRLF);
+			responseBuilder.append("<h2>Data Values:</h2>").append(CRLF);
+			responseBuilder.append(agentState.renderHtmlTable());
+			responseBuilder.append("</form></body></html>").append(CRLF);			
+			String response = responseBuilder.toString();				
+			writeOkHeader(response.length(), mimeTypes.get("html"), writer);
+			writer.print(response);
+			writer.print(CRLF);
+			writer.flush();
+		}
+		
+		private void handleMigrateRequest(PrintStream writer, Server server) throws IOException {
+			synchronized (this) {
+				if (migrating) {
+					// Already on her way.
+					String movedTo = awaitHandoff();
+					writeRedirect((movedTo != null) ? movedTo : agentEndpoint, writer);
+					return;
+				}
+				migrating = true;
+				migrationCheck.cancel();
+			}
+			// Copy state to another host server while still serving.
+			agentState.startTracking();
+			int[] rounds = new int[1];
+			String destination = preCopy(rounds);
+			
+			// Hold browser requests while the last changes go across & the destination takes over,
+			// once those already running have made their writes.
+			long frozenAt = System.nanoTime();
+			handoffLock.writeLock().lock();
+			synchronized (this) {
+				frozen = true;
+			}
+			String movedTo = null;
+			int finalValues = 0;
+			try {
+				// Send changes not yet replicated.
+				flush();
+				List<Delta> changes = agentState.stopTracking();
+				finalValues = changes.size();
+				if (destination != null) {
+					movedTo = handOff(destination, changes);
+				}
+				if (movedTo == null) {
+					// Stop & copy everything, through this host server.
+					String migrateRequest = MIGRATE + '?' + NAME + '=' + agentState.getName() + '&' + PEER_HOST + '=' + peerEndpoint + '&' + PEER_HOST_OLD + '=' + agentEndpoint;
+					List<String> migrateResponse = stateRequest(hostServer, hostServerPort, migrateRequest, agentState);
+					movedTo = (migrateResponse.isEmpty()) ? null : migrateResponse.get(0);
+					destination = null;
+				}
+				if (movedTo != null) {
+					// Change this server to a zombie server.
+					if (agentTable == null) {
+						server.setServerStrategy(new ZombieServerStrategy(agentEndpoint, movedTo, null, null));
+					}
+					else {
+						// Unless the agent already came back to this host server.
+						agentTable.replace(agentState.getName(), this, new ZombieServerStrategy(agentEndpoint, movedTo, agentTable, agentState.getName()));
+					}
+				}
+			}
+			finally {
+				synchronized (this) {
+					forwardingAddress = movedTo;
+					// Ends auto-migration checks & replication, or lets the agent carry on where she is.
+					migrated = (movedTo != null);
+					migrating = migrated;
+					frozen = false;
+					notifyAll();
+				}
+				handoffLock.writeLock().unlock();
+			}
+			long downtime = (System.nanoTime() - frozenAt) / 1000000L;
+			if (movedTo == null) {
+				System.out.println("Agent " + agentState.getName() + " failed to migrate; staying at " + agentEndpoint + '.');
+				scheduleMigrationCheck();
+				handleGetRequest(writer, null, new HashMap<String,String>());
+				return;
+			}
+			System.out.println("Agent " + agentState.getName() + " migrated from " + agentEndpoint + " to " + movedTo 
+					+ ((destination != null) ? " live: " + rounds[0] + " pre-copy rounds, " + finalValues + " values in the last copy, " : ": ") 
+					+ "downtime " + downtime + " ms.");
+			if (destination != null) {
+				// Forget her here & tell the name server, now that browsers are no longer held.
+				String migratedRequest = MIGRATE + '?' + NAME + '=' + agentState.getName() + '&' + SERVER + '=' + movedTo + '&' + PEER_HOST_OLD + '=' + agentEndpoint + CRLF;
+				genericRequest(hostServer, hostServerPort, migratedRequest);
+			}
+			writeRedirect(agentEndpoint, writer);
+		}
+		
+		/**
+		 * Stages a snapshot at a host server picked by this one, then copies rounds of changes there until few are left.
+		 * @param rounds set to the rounds of changes copied.
+		 * @return the destination host server, null when live migration is not possible.
+		 */
+		private String preCopy(int[] rounds) {
+			String preCopyRequest = MIGRATE + '?' + NAME + '=' + agentState.getName() + '&' + PRE_COPY + "=true" + CRLF;
+			try {
+				String reply = Rpc.call(hostServer, hostServerPort, preCopyRequest, agentState.toSnapshot());
+				String destination = (reply == null) ? NONE : Rpc.lines(reply).get(0);
+				if (destination == null || destination.trim().equals(NONE)) {
+					return null;
+				}
+				destination = destination.trim();
+				while (rounds[0] < MIGRATE_ROUNDS && agentState.trackedCount() > STOP_COPY_VALUES) {
+					String stageRequest = STAGE_AGENT + '?' + NAME + '=' + agentState.getName() + '&' + ROUND + '=' + (++rounds[0]) + CRLF;
+					reply = Rpc.call(endpointHost(destination), endpointPort(destination), stageRequest, AgentState.encodeDeltas(agentState.drainTracked()));
+					if (reply == null || !reply.startsWith(SUCCESS)) {
+						return null;
+					}
+				}
+				return destination;
+			}
+			catch (IOException ex) {
+				System.out.println("Pre-copy of agent " + agentState.getName() + " failed: " + ex.getMessage());
+				return null;
+			}
+		}
+		
+		/**
+		 * Sends the last changes to the destination, which hosts the agent from her staged state.
+		 * @return the agent's new endpoint, null when the destination did not host her.
+		 */
+		private String handOff(String destination, List<Delta> changes) {
+			String hostRequest = HOST_AGENT + '?' + NAME + '=' + agentState.getName() + '&' + PEER_HOST + '=' + peerEndpoint + '&' + PEER_HOST_OLD + '=' + agentEndpoint 
+					+ '&' + COUNT + '=' + agentState.getCount() + '&' + STAGED + "=true" + CRLF;
+			try {
+				String reply = Rpc.call(endpointHost(destination), endpointPort(destination), hostRequest, AgentState.encodeDeltas(changes));
+				String movedTo = (reply == null) ? null : Rpc.lines(reply).get(0);
+				return (movedTo == null || movedTo.trim().equals(NONE)) ? null : movedTo.trim();
+			}
+			catch (IOException ex) {
+				System.out.println("Hand off of agent " + agentState.getName() + " failed: " + ex.getMessage());
+				return null;
+			}
+		}
+		
+		/**
+		 * Waits out the last step of a migration.
+		 * @return where the agent migrated to, null while she is still here.
+		 */
+		private synchronized String awaitHandoff() {
+			while (frozen) {
+				try {
+					wait();
+				}
+				catch (InterruptedException ex) {
+					break;
+				}
+			}
+			return forwardingAddress;
+		}
+		
+		/**
+		 * HTML redirection of the browser to a URL.
+		 */
+		private void writeRedirect(String url, PrintStream writer) throws IOException {
+			StringBuilder responseBuilder = new StringBuilder();
+			responseBuilder.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">").append(CRLF);
+			responseBuilder.append("<html><head>").append(CRLF);
+			responseBuilder.append("<meta charset=\"UTF-8\">").append(CRLF);
+			responseBuilder.append("<meta http-equiv=\"refresh\" content=\"1;url=http://").append(url).append("\">").append(CRLF);
+			responseBuilder.append("<script type=\"text/javascript\">").append(CRLF);
+			responseBuilder.append("window.location.href = \"").append("http://").append(url).append('"').append(CRLF);
+			responseBuilder.append("</script>").append(CRLF);
+			responseBuilder.append("<title>Page Redirection</title>").append(CRLF);
 			responseBuilder.append("</head><body></body></html>").append(CRLF);				
 			String response = responseBuilder.toString();
 			writeOkHeader(response.length(), mimeTypes.get("html"), writer);
@@ -881,81 +1722,117 @@ public class HostServer {
 		}
 		
 		private void handlePeerRequest(PrintStream writer, Map<String,String> paramMap) {
-			String peerEndpoint = paramMap.get(PEER_HOST);
-			List<String> peerHostAndPort = parseDelimited(peerEndpoint, ":");
 			// Write this agent's peer server to new peer.
-			writer.print(peerServer + ':' + peerServerPort + CRLF);
+			writer.print(peerEndpoint + CRLF);
 			writer.print(CRLF);
 			writer.flush();
 			// Make incoming the new peer.
-			peerServer = peerHostAndPort.get(0);
-			peerServerPort = Integer.parseInt(peerHostAndPort.get(1));
+			peerEndpoint = paramMap.get(PEER_HOST);
 		}
 		
+		/** Values from a peer that predates versioned replication, taken as local writes & passed on as changes. */
 		private void handleSyncDataRequest(PrintStream writer, Map<String,String> paramMap) {
-			agentState.addNameValueParams(paramMap);
-			String agentServer = hostServer + ':' + agentServerPort;
-			String startAgentServer = paramMap.get(PEER_HOST);
-			if (startAgentServer != null && startAgentServer.equalsIgnoreCase(agentServer)) {
-				return;
-			}
-			String syncDataRequest = GET + " /" + SYNC_DATA + '?' + PEER_HOST + '=' + ((startAgentServer != null) ? startAgentServer : agentServer) + '&' + agentState.renderNameValueParams();
-					//+ '?' + INPUT + '=' + MAKE_PEER + '&' + PEER_HOST + '=' + hostServer + ':' + agentServerPort + CRLF + CRLF;
-			genericRequest(peerServer, peerServerPort, syncDataRequest);
+			changed(agentState.addNameValueParams(paramMap));
 			writer.print(SUCCESS + CRLF);
 			writer.print(CRLF);
 			writer.flush();
 		}
 		
+		/** Versioned values from the peer; those that are news here go on to this agent's peer. */
+		private void handleSyncDeltaRequest(PrintStream writer) throws IOException {
+			byte[] body = Rpc.requestBody();
+			List<String> changedNames = new ArrayList<String>();
+			if (body != null) {
+				for (Delta delta : AgentState.decodeDeltas(body)) {
+					if (agentState.merge(delta)) {
+						changedNames.add(delta.name);
+					}
+				}
+			}
+			changed(changedNames, true);
+			writer.print(SUCCESS + CRLF);
+			writer.flush();
+		}
+		
+		/** Anti-entropy digest from an agent: replies with the buckets that differ & sends that agent this one's values in them. */
+		private void handleSyncDigestRequest(PrintStream writer, Map<String,String> paramMap) throws IOException {
+			byte[] body = Rpc.requestBody();
+			if (body == null) {
+				writer.print(CRLF);
+				writer.flush();
+				return;
+			}
+			long[] theirs = decodeDigest(body);
+			long[] ours = agentState.digest(DIGEST_BUCKETS);
+			final Set<Integer> differing = new HashSet<Integer>();
+			StringBuilder reply = new StringBuilder();
+			for (int i = 0; i < ours.length; i++) {
+				if (ours[i] != theirs[i]) {
+					differing.add(i);
+					reply.append((reply.length() == 0) ? "" : "&").append(i);
+				}
+			}
+			final String requester = paramMap.get(PEER_HOST);
+			if (!differing.isEmpty() && requester != null && !requester.equalsIgnoreCase(agentEndpoint)) {
+				agentReplication.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendDeltas(requester, agentState.bucketDeltas(differing, DIGEST_BUCKETS));
+					}
+				});
+			}
+			writer.print(reply + CRLF);
+			writer.flush();
+		}
+		
 		private void handleSyncPeerRequest(PrintStream writer, Map<String,String> paramMap) {
-			String agentServer = hostServer + ':' + agentServerPort;
 			String newPeerServer = paramMap.get(PEER_HOST);
 			String oldPeerServer = paramMap.get(PEER_HOST_OLD);
-			if (oldPeerServer.equalsIgnoreCase(peerServer + ':' + peerServerPort)) {
-				List<String> newHostAndPort = parseDelimited(newPeerServer, ":");
-				peerServer = newHostAndPort.get(0);
-				peerServerPort = Integer.parseInt(newHostAndPort.get(1));
+			if (oldPeerServer.equalsIgnoreCase(peerEndpoint)) {
+				peerEndpoint = newPeerServer;
 			}
-			if (!newPeerServer.equalsIgnoreCase(agentServer)) {
-				String syncDataRequest = GET + " /" + SYNC_PEER + '?' + PEER_HOST + '=' + newPeerServer + '&' + PEER_HOST_OLD + '=' + oldPeerServer;
-				genericRequest(peerServer, peerServerPort, syncDataRequest);
+			if (!newPeerServer.equalsIgnoreCase(agentEndpoint)) {
+				String syncDataRequest = SYNC_PEER + '?' + PEER_HOST + '=' + newPeerServer + '&' + PEER_HOST_OLD + '=' + oldPeerServer;
+				agentRequest(peerEndpoint, syncDataRequest);
 			}
 			writer.print(SUCCESS + CRLF);
 			writer.print(CRLF);
 			writer.flush();
 		}
 		
-		private static class AgentMigratorTimerTask extends TimerTask {
-			/** Host server. */
-			private String agentServer;					
-			/** Host server port. */
-			private int agentServerPort;
-			/** Parent timer. */
-			private Timer timer;
+		private static class AgentMigratorTimerTask implements Runnable {
+			/** Agent to check. */
+			private AgentServerStrategy agent;
 			
-			AgentMigratorTimerTask(String agentServer, int agentServerPort, Timer timer) {
-				this.agentServer = agentServer;
-				this.agentServerPort = agentServerPort;
-				this.timer = timer;
+			AgentMigratorTimerTask(AgentServerStrategy agent) {
+				this.agent = agent;
 			}
 			
 			public void run() {
 				if (Math.random() > MIGRATE_CHANCE) {
 					// Not migrating this time.
+					agent.scheduleMigrationCheck();
 					return;
 				}
 				System.out.println("Agent auto-migrating...");
+				final String agentEndpoint = agent.agentEndpoint;
 				StringBuilder migrateRequest = new StringBuilder();
-				migrateRequest.append("GET /?input=migrate HTTP/1.1").append(CRLF);
-				migrateRequest.append("Host: ").append(agentServer).append(':').append(agentServerPort).append(CRLF);
+				migrateRequest.append("GET ").append(endpointPath(agentEndpoint)).append("/?input=migrate HTTP/1.1").append(CRLF);
+				migrateRequest.append("Host: ").append(endpointHost(agentEndpoint)).append(':').append(endpointPort(agentEndpoint)).append(CRLF);
 				migrateRequest.append("User-Agent: Mozilla/5.0 (Windows NT 6.1; WOW64; rv:25.0) Gecko/20100101 Firefox/25.0").append(CRLF);
 				migrateRequest.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*//*;q=0.8").append(CRLF);
 				migrateRequest.append("Accept-Language: en-US,en;q=0.5").append(CRLF);
 				migrateRequest.append("Accept-Encoding: gzip, deflate").append(CRLF);
 				migrateRequest.append("Connection: close").append(CRLF).append(CRLF);
+				final String request = migrateRequest.toString();
 				
-				genericRequest(agentServer, agentServerPort, migrateRequest.toString());
-				timer.cancel();
+				// The request returns only once the live migration is done, so it must not hold up the other tasks on the wheel.
+				agentReplication.execute(new Runnable() {
+					@Override
+					public void run() {
+						genericRequest(endpointHost(agentEndpoint), endpointPort(agentEndpoint), request);
+					}
+				});
 			}
 		}		
 	}
@@ -971,9 +1848,17 @@ public class HostServer {
 		/** Forwarding address where this agent migrated (server:port). */
 		private String forwardingAddress;		
 		
-		public ZombieServerStrategy(String formerAddress, String forwardingAddress) {
+		/** Host server's table of agents behind its port, null when the zombie has a port of its own. */
+		private ConcurrentHashMap<String,AbstractServerStrategy> agentTable;
+		
+		/** Name of the migrated agent, used with the agent table. */
+		private String agentName;
+		
+		public ZombieServerStrategy(String formerAddress, String forwardingAddress, ConcurrentHashMap<String,AbstractServerStrategy> agentTable, String agentName) {
 			this.formerAddress = formerAddress;
 			this.forwardingAddress = forwardingAddress;
+			this.agentTable = agentTable;
+			this.agentName = agentName;
 		}
 
 		/** Echo type name specific for this strategy. */
@@ -1033,8 +1918,17 @@ public class HostServer {
 			writer.print(CRLF);
 			writer.flush();
 			
+			if (agentTable != null) {
+				// Unless the agent already came back to this host server.
+				agentTable.remove(agentName, this);
+				return;
+			}
 			server.setControlSwitch(false);
-			genericRequest(host, Integer.parseInt(port), "NULL" + CRLF + CRLF);
+			// Wake the listener so it sees the switch.
+			try {
+				new Socket(host, Integer.parseInt(port)).close();
+			}
+			catch (IOException ex) {}
 	    }		
 	}
 	
@@ -1043,12 +1937,22 @@ public class HostServer {
 	 * Holds the Agent's state.
 	 */
 	private static class AgentState {
+		/** Snapshot format version. */
+		private static final int SNAPSHOT_VERSION = 2;
+		/** Snapshot flag: the rest is deflated. */
+		private static final int DEFLATED = 1;
+		/** Smallest snapshot worth deflating. */
+		private static final int DEFLATE_MIN = 256;
 		/** Agent Name. */
 		private String name;
-		/** Agent Input. */
-		private Map<String,String> contents = new HashMap<String,String>();
+		/** Agent Input. Thread safe, so a snapshot can be taken while requests write. Written only under this. */
+		private Map<String,String> contents = new ConcurrentHashMap<String,String>();
+		/** Version of each value, a hybrid logical clock timestamp. Written only under this. */
+		private Map<String,Long> versions = new ConcurrentHashMap<String,Long>();
 		/** Agent counter. */
 		private int count;
+		/** Names written or merged since tracking started, null when not tracking. Guarded by this. */
+		private Set<String> tracked;
 		
 		public AgentState(String name) {
 			this.name = name;
@@ -1076,7 +1980,53 @@ public class HostServer {
 			count++;
 		}
 		
-		public void addNameValueParams(Map<String,String> input) {
+		public void setCount(int count) {
+			this.count = count;
+		}
+		
+		/**
+		 * Starts recording the names written or merged, for copying them on after a snapshot.
+		 */
+		public synchronized void startTracking() {
+			tracked = new HashSet<String>();
+		}
+		
+		/**
+		 * Names recorded & not yet drained.
+		 */
+		public synchronized int trackedCount() {
+			return (tracked == null) ? 0 : tracked.size();
+		}
+		
+		/**
+		 * Current values of the names recorded, which are then forgotten while recording goes on.
+		 */
+		public synchronized List<Delta> drainTracked() {
+			List<Delta> deltas = new ArrayList<Delta>();
+			if (tracked != null) {
+				for (String name : tracked) {
+					deltas.add(get(name));
+				}
+				tracked.clear();
+			}
+			return deltas;
+		}
+		
+		/**
+		 * Current values of the names recorded, & stops recording.
+		 */
+		public synchronized List<Delta> stopTracking() {
+			List<Delta> deltas = drainTracked();
+			tracked = null;
+			return deltas;
+		}
+		
+		/**
+		 * Writes the parameters that are not reserved.
+		 * @return the names written.
+		 */
+		public List<String> addNameValueParams(Map<String,String> input) {
+			List<String> names = new ArrayList<String>();
 			for (String name : input.keySet()) {
 				// Skip reserved parameters.
 				if (NAME.equalsIgnoreCase(name) || VALUE.equalsIgnoreCase(name) || INPUT.equalsIgnoreCase(name) 
@@ -1084,8 +2034,91 @@ public class HostServer {
 					continue;
 				}
 				String value = input.get(name);
-				contents.put(name, value);
+				write(name, value);
+				names.add(name);
+			}
+			return names;
+		}
+		
+		/**
+		 * Sets a value as a new local write.
+		 */
+		public synchronized void write(String name, String value) {
+			contents.put(name, value);
+			versions.put(name, clock.now());
+			if (tracked != null) {
+				tracked.add(name);
+			}
+		}
+		
+		/**
+		 * Applies a replicated value unless this state already holds a later one; equal versions keep the larger value.
+		 * @return true when the value was applied.
+		 */
+		public synchronized boolean merge(Delta delta) {
+			clock.update(delta.version);
+			Long version = versions.get(delta.name);
+			if (version != null && (version > delta.version || (version == delta.version && contents.get(delta.name).compareTo(delta.value) >= 0))) {
+				return false;
 			}
+			contents.put(delta.name, delta.value);
+			versions.put(delta.name, delta.version);
+			if (tracked != null) {
+				tracked.add(delta.name);
+			}
+			return true;
+		}
+		
+		/**
+		 * Current value & version of a name, null when unset.
+		 */
+		public synchronized Delta get(String name) {
+			String value = contents.get(name);
+			return (value != null) ? new Delta(name, value, versions.get(name)) : null;
+		}
+		
+		/**
+		 * Digest of the values, by bucket of name hash: each bucket xors a hash of its names, values & versions.
+		 * Replicas holding the same data have the same digest.
+		 */
+		public long[] digest(int buckets) {
+			long[] digest = new long[buckets];
+			for (String name : contents.keySet()) {
+				Delta delta = get(name);
+				if (delta != null) {
+					digest[bucket(name, buckets)] ^= mix(delta.name.hashCode() * 31L + delta.value.hashCode()) ^ mix(delta.version);
+				}
+			}
+			return digest;
+		}
+		
+		/**
+		 * Values whose names fall in the given buckets of digest().
+		 */
+		public List<Delta> bucketDeltas(Set<Integer> bucketSet, int buckets) {
+			List<Delta> deltas = new ArrayList<Delta>();
+			for (String name : contents.keySet()) {
+				if (bucketSet.contains(bucket(name, buckets))) {
+					Delta delta = get(name);
+					if (delta != null) {
+						deltas.add(delta);
+					}
+				}
+			}
+			return deltas;
+		}
+		
+		private static int bucket(String name, int buckets) {
+			return (name.hashCode() & Integer.MAX_VALUE) % buckets;
+		}
+		
+		/** Spreads a hash over 64 bits (the MurmurHash3 finalizer). */
+		private static long mix(long hash) {
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			return hash ^ (hash >>> 33);
 		}
 		
 		public String renderNameValueParams() {
@@ -1105,6 +2138,163 @@ public class HostServer {
 			return builder.toString();
 		}		
 		
+		/**
+		 * Encodes the state exactly, as [version][flags] then, deflated when that is smaller,
+		 * [name][count: int] & the values as encodeDeltas() writes them.
+		 */
+		public byte[] toSnapshot() {
+			ByteArrayOutputStream raw = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(raw);
+			try {
+				writeString(out, name);
+				out.writeInt(count);
+				List<Delta> deltas = new ArrayList<Delta>();
+				for (String name : contents.keySet()) {
+					Delta delta = get(name);
+					if (delta != null) {
+						deltas.add(delta);
+					}
+				}
+				writeDeltas(out, deltas);
+			}
+			catch (IOException ex) {
+				// Not thrown by a byte array.
+				throw new IllegalStateException(ex);
+			}
+			byte[] body = raw.toByteArray();
+			int flags = 0;
+			if (body.length >= DEFLATE_MIN) {
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				deflater.setInput(body);
+				deflater.finish();
+				ByteArrayOutputStream deflated = new ByteArrayOutputStream(body.length / 2);
+				// Raw length first, so the receiver sizes its buffer once.
+				deflated.write(body.length >>> 24);
+				deflated.write(body.length >>> 16);
+				deflated.write(body.length >>> 8);
+				deflated.write(body.length);
+				byte[] buffer = new byte[BUFFER_SIZE * 8];
+				while (!deflater.finished()) {
+					deflated.write(buffer, 0, deflater.deflate(buffer));
+				}
+				deflater.end();
+				if (deflated.size() < body.length) {
+					body = deflated.toByteArray();
+					flags |= DEFLATED;
+				}
+			}
+			byte[] snapshot = new byte[body.length + 2];
+			snapshot[0] = SNAPSHOT_VERSION;
+			snapshot[1] = (byte) flags;
+			System.arraycopy(body, 0, snapshot, 2, body.length);
+			return snapshot;
+		}
+		
+		/**
+		 * Decodes a snapshot made by toSnapshot().
+		 */
+		public static AgentState fromSnapshot(byte[] snapshot) throws IOException {
+			if (snapshot.length < 2 || snapshot[0] != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported agent snapshot.");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot, 2, snapshot.length - 2));
+			if ((snapshot[1] & DEFLATED) != 0) {
+				int length = in.readInt();
+				if (length < 0 || length > Rpc.MAX_FRAME) {
+					throw new IOException("Agent snapshot of " + length + " bytes refused.");
+				}
+				byte[] body = new byte[length];
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(snapshot, 6, snapshot.length - 6);
+					int inflated = 0;
+					while (inflated < length && !inflater.finished()) {
+						int read = inflater.inflate(body, inflated, length - inflated);
+						if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+							break;
+						}
+						inflated += read;
+					}
+					if (inflated != length) {
+						throw new IOException("Truncated agent snapshot.");
+					}
+				}
+				catch (DataFormatException ex) {
+					throw new IOException("Corrupt agent snapshot: " + ex.getMessage());
+				}
+				finally {
+					inflater.end();
+				}
+				in = new DataInputStream(new ByteArrayInputStream(body));
+			}
+			AgentState agentState = new AgentState(readString(in), in.readInt());
+			for (Delta delta : readDeltas(in)) {
+				agentState.merge(delta);
+			}
+			return agentState;
+		}
+		
+		/**
+		 * Encodes values as [entries: int] & each [name][value][version: long], strings as [length: int][UTF-8].
+		 */
+		public static byte[] encodeDeltas(List<Delta> deltas) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				writeDeltas(new DataOutputStream(bytes), deltas);
+			}
+			catch (IOException ex) {
+				// Not thrown by a byte array.
+				throw new IllegalStateException(ex);
+			}
+			return bytes.toByteArray();
+		}
+		
+		/**
+		 * Decodes values encoded by encodeDeltas().
+		 */
+		public static List<Delta> decodeDeltas(byte[] encoded) throws IOException {
+			return readDeltas(new DataInputStream(new ByteArrayInputStream(encoded)));
+		}
+		
+		private static void writeDeltas(DataOutputStream out, List<Delta> deltas) throws IOException {
+			out.writeInt(deltas.size());
+			for (Delta delta : deltas) {
+				writeString(out, delta.name);
+				writeString(out, delta.value);
+				out.writeLong(delta.version);
+			}
+		}
+		
+		private static List<Delta> readDeltas(DataInputStream in) throws IOException {
+			int entries = in.readInt();
+			if (entries < 0 || entries > in.available()) {
+				throw new IOException("Corrupt agent values.");
+			}
+			List<Delta> deltas = new ArrayList<Delta>(entries);
+			for (; entries > 0; entries--) {
+				String name = readString(in);
+				String value = readString(in);
+				deltas.add(new Delta(name, value, in.readLong()));
+			}
+			return deltas;
+		}
+		
+		private static void writeString(DataOutputStream out, String value) throws IOException {
+			byte[] bytes = value.getBytes(Rpc.UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		
+		private static String readString(DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0 || length > in.available()) {
+				throw new IOException("Corrupt agent snapshot.");
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, Rpc.UTF8);
+		}
+		
 		public String renderHtmlTable() {
 			StringBuilder builder = new StringBuilder();
 			builder.append("<table border='1'>").append(CRLF);
@@ -1117,6 +2307,24 @@ public class HostServer {
 		}		
 	}
 	
+	/**
+	 * A value with its version, as replicated between peer agents.
+	 */
+	private static class Delta {
+		/** Value name. */
+		final String name;
+		/** Value. */
+		final String value;
+		/** Hybrid logical clock timestamp of the write. */
+		final long version;
+		
+		Delta(String name, String value, long version) {
+			this.name = name;
+			this.value = value;
+			this.version = version;
+		}
+	}
+	
 	/**
 	 * Parses request parameters and returns as map.
 	 */
@@ -1217,10 +2425,99 @@ public class HostServer {
 		}
 	}
 	
+	/**
+	 * Host of an endpoint (server:port or server:port/agent/name).
+	 */
+	static String endpointHost(String endpoint) {
+		return endpoint.substring(0, endpoint.indexOf(':'));
+	}
+	
+	/**
+	 * Port of an endpoint (server:port or server:port/agent/name).
+	 */
+	static int endpointPort(String endpoint) {
+		int slash = endpoint.indexOf(SLASH);
+		return Integer.parseInt(endpoint.substring(endpoint.indexOf(':') + 1, (slash < 0) ? endpoint.length() : slash));
+	}
+	
+	/**
+	 * Path of an endpoint, empty for an agent on a port of its own.
+	 */
+	static String endpointPath(String endpoint) {
+		int slash = endpoint.indexOf(SLASH);
+		return (slash < 0) ? "" : endpoint.substring(slash);
+	}
+	
+	/**
+	 * Send a GET of the command (path & parameters, no leading slash) to the agent at an endpoint and return response.
+	 */
+	private static List<String> agentRequest(String endpoint, String command) {
+		return genericRequest(endpointHost(endpoint), endpointPort(endpoint), GET + ' ' + endpointPath(endpoint) + SLASH + command);
+	}
+	
+	/**
+	 * Send request carrying an agent's state to listeners at server:port and return response.
+	 * The state goes as a binary snapshot over RPC or, to a server that predates RPC, as request parameters.
+	 */
+	private static List<String> stateRequest(String server, int port, String request, AgentState agentState) {
+		byte[] snapshot = agentState.toSnapshot();
+		System.out.println("Sending agent " + agentState.getName() + " snapshot: " + agentState.getContents().size() + " values in " + snapshot.length + " bytes.");
+		try {
+			String reply = Rpc.call(server, port, request + CRLF, snapshot);
+			if (reply != null) {
+				return Rpc.lines(reply);
+			}
+		}
+		catch (IOException ex) {
+			System.out.println("Request to " + server + ':' + port + " failed: " + ex);
+			return new ArrayList<String>();
+		}
+		return legacyRequest(server, port, request + '&' + COUNT + '=' + agentState.getCount() + '&' + agentState.renderNameValueParams() + CRLF);
+	}
+	
+	/**
+	 * Agent state carried by the request being handled: its snapshot or, from a server that predates RPC, its parameters.
+	 */
+	private static AgentState requestState(Map<String,String> paramMap) throws IOException {
+		byte[] snapshot = Rpc.requestBody();
+		if (snapshot != null) {
+			return AgentState.fromSnapshot(snapshot);
+		}
+		AgentState agentState = new AgentState(paramMap.get(NAME), Integer.parseInt(paramMap.get(COUNT)));
+		agentState.addNameValueParams(paramMap);
+		return agentState;
+	}
+	
+	/**
+	 * Send a GET of the command with a binary body to the agent at an endpoint over RPC and return the reply.
+	 * @return null when the agent's server predates RPC.
+	 */
+	private static String agentCall(String endpoint, String command, byte[] body) throws IOException {
+		return Rpc.call(endpointHost(endpoint), endpointPort(endpoint), GET + ' ' + endpointPath(endpoint) + SLASH + command + CRLF, body);
+	}
+	
 	/**
 	 * Send request to listeners at server:port and return response.
+	 * Goes over a pooled RPC connection, unless the server predates RPC.
 	 */
 	private static List<String> genericRequest(String server, int port, String request) {
+		try {
+			String reply = Rpc.call(server, port, request);
+			if (reply != null) {
+				return Rpc.lines(reply);
+			}
+		}
+		catch (IOException ex) {
+			System.out.println("Request to " + server + ':' + port + " failed: " + ex);
+			return new ArrayList<String>();
+		}
+		return legacyRequest(server, port, request);
+	}
+	
+	/**
+	 * Send request on a connection of its own to listeners at server:port and return response.
+	 */
+	private static List<String> legacyRequest(String server, int port, String request) {
 		List<String> response = new ArrayList<String>();
 		Socket socket = null;
 		BufferedReader reader = null;
@@ -1228,6 +2525,7 @@ public class HostServer {
 		try {
 			// Open connection to server.
 			socket = new Socket(server, port);
+			socket.setSoTimeout(Rpc.TIMEOUT);
 			// Create reader from socket input stream.
 			reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			// Create print stream writer from socket output stream.
@@ -0,0 +1,50 @@
+/*--------------------------------------------------------
+HybridClock.java
+Hybrid logical clock versioning replicated agent data.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Used by HostServer to version each agent value, so replicas agree on the latest write without
+sending whole states around.
+
+A timestamp packs wall clock milliseconds into the high 48 bits & a counter into the low 16. Each
+timestamp issued is larger than every one issued or seen before, so a write made after receiving
+another always wins over it, whatever the hosts' clock skew, while timestamps stay close to real time.
+
+----------------------------------------------------------*/
+
+/**
+ * Issues hybrid logical clock timestamps. Thread safe.
+ * @author Joseph Sackett
+ */
+class HybridClock {
+	/** Bits of the logical counter. */
+	private static final int LOGICAL_BITS = 16;
+
+	/** Largest timestamp issued or seen. Guarded by this. */
+	private long last;
+
+	/**
+	 * Timestamp for a local event.
+	 */
+	synchronized long now() {
+		last = Math.max(last + 1, System.currentTimeMillis() << LOGICAL_BITS);
+		return last;
+	}
+
+	/**
+	 * Takes in a timestamp received from another host, so later local timestamps exceed it.
+	 */
+	synchronized void update(long received) {
+		last = Math.max(last, received);
+	}
+
+	/**
+	 * Wall clock milliseconds of a timestamp.
+	 */
+	static long millis(long timestamp) {
+		return timestamp >>> LOGICAL_BITS;
+	}
+}
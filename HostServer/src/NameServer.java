@@ -28,6 +28,11 @@ Included Files:
 - gradeagent.bat
 - HostServer.java 
 - NameServer.java
+- HybridClock.java
+- Registry.java
+- RegistryLog.java
+- Rpc.java
+- TimerWheel.java
 - MimeTypes.txt
 - console-log.txt
 - DIADiscussion.html
@@ -35,20 +40,36 @@ Included Files:
 Notes:
 - This has much of the important functionality from the assignment complete, but not all. The DIA discussion file covers these gaps. 
 - The best way to execute the system is to run: gradeagent.bat
+- Registrations & look ups run concurrently: readers share an immutable snapshot per version of the registry,
+  with the host server list & this manifest page serialized once per version (see Registry.java).
+- Registrations, new agents & migrations are logged to disk before they are answered & snapshotted now & then, so a
+  restarted name server still knows every host server & agent (see RegistryLog.java). Set nameServer.dataDir to move
+  the files from NameServerData.
+- Host servers' heartbeats keep their load here; PickHostServer places a migrating agent on the lighter of two
+  other host servers picked at random. Run with -DnameServer.placement=leastLoaded or random to change that.
 
 ----------------------------------------------------------*/
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.StringTokenizer;
 
 public class NameServer {
 	/** Global mode for the server. Thread safe. */
 	static HostServer.ServerState serverState;
 	
+	/** How migrating agents are placed: twoChoices (default), leastLoaded or random. */
+	static final String PLACEMENT = System.getProperty("nameServer.placement", "twoChoices");
+	
+	/** Picks host servers. Thread safe. */
+	static final Random random = new Random();
+	
 	/**
 	 * Main NameServer Server program.
 	 * - Initializes global state
@@ -64,8 +85,18 @@ public class NameServer {
 		// Initialize server state.
 		serverState = new HostServer.ServerState();
 		
+		// Recover registrations from before a restart & log them from here on.
+		Registry registry = new Registry();
+		RegistryLog registryLog = null;
+		try {
+			registryLog = RegistryLog.open(new File(System.getProperty("nameServer.dataDir", "NameServerData")), registry);
+		}
+		catch (IOException ex) {
+			System.out.println("Registry log unavailable, registrations will not survive a restart: " + ex);
+		}
+		
 		// Start Name Server listener thread.
-		new Thread(new HostServer.Server(nameServerPort, new NameServerStrategy())).start();
+		new Thread(new HostServer.Server(nameServerPort, new NameServerStrategy(registry, registryLog))).start();
 		
 		// Loop until interrupted to end.
 		while (serverState.isControlSwitch()) {
@@ -83,13 +114,27 @@ public class NameServer {
 	 * Part of Strategy pattern.
 	 */
 	private static class NameServerStrategy extends HostServer.AbstractServerStrategy {
-		/** List of host servers (server:port). */
-		private List<String> hostServers = new ArrayList<String>();		
+		/** Host servers, agents (server:port) & host server loads. */
+		private Registry registry;
 		
-		/** Map of agent names to agent servers (server:port). */
-		private Map<String,String> agentServers = new HashMap<String,String>();		
+		/** Makes registrations durable, null when they are kept in memory only. */
+		private RegistryLog registryLog;
 		
-		public NameServerStrategy() {
+		public NameServerStrategy(Registry registry, RegistryLog registryLog) {
+			this.registry = registry;
+			this.registryLog = registryLog;
+		}
+		
+		/**
+		 * Applies a registry event once it is logged.
+		 */
+		private void record(int event, String key, String value) throws IOException {
+			if (registryLog != null) {
+				registryLog.append(event, key, value);
+			}
+			else {
+				RegistryLog.apply(registry, event, key, value);
+			}
 		}
 
 		/** Echo type name specific for this strategy. */
@@ -112,7 +157,8 @@ public class NameServer {
 	    	}
 	    	String command = tokens.get(0);
 	    	if (!(command.equalsIgnoreCase(HostServer.GET) || command.startsWith(HostServer.REGISTER_HOST_SERVER) || command.startsWith(HostServer.QUERY_HOST_SERVERS) 
-	    			|| command.startsWith(HostServer.REGISTER_NEW_AGENT) || command.startsWith(HostServer.MIGRATE)) || (tokens.size() > 1 && tokens.get(1).contains(HostServer.FAV_ICON))) {
+	    			|| command.startsWith(HostServer.REGISTER_NEW_AGENT) || command.startsWith(HostServer.MIGRATE) || command.startsWith(HostServer.QUERY_AGENTS)
+	    			|| command.startsWith(HostServer.HEARTBEAT) || command.startsWith(HostServer.PICK_HOST_SERVER)) || (tokens.size() > 1 && tokens.get(1).contains(HostServer.FAV_ICON))) {
 	    		writeError(HostServer.BAD_REQUEST, "Invalid request for this server: " + request, writer);
 	    		return;
 	    	}
@@ -127,6 +173,20 @@ public class NameServer {
 	    }
 		
 		private void handleGetRequest(PrintStream writer) throws IOException {
+			Registry.Snapshot snapshot = registry.snapshot();
+			byte[] manifest = snapshot.getManifest();
+			if (manifest == null) {
+				manifest = renderManifest(snapshot);
+				snapshot.setManifest(manifest);
+			}
+			writer.write(manifest, 0, manifest.length);
+			writer.flush();
+		}
+		
+		/**
+		 * Renders the manifest page of a registry snapshot, with its headers.
+		 */
+		private static byte[] renderManifest(Registry.Snapshot snapshot) throws IOException {
 			StringBuilder responseBuilder = new StringBuilder();
 			responseBuilder.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">").append(HostServer.CRLF);
 			responseBuilder.append("<html><head>").append(HostServer.CRLF);
@@ -135,24 +195,32 @@ public class NameServer {
 			responseBuilder.append("<h1>").append("Name Server Manifest").append("</h1>").append(HostServer.CRLF);
 			responseBuilder.append("<h2>").append("Host Servers").append("</h2>").append(HostServer.CRLF);
 			responseBuilder.append("<pre>").append(HostServer.CRLF);
-			for (String hostServer : hostServers) {
+			for (String hostServer : snapshot.hostServers) {
 				responseBuilder.append("<a href=\"http://").append(hostServer).append("/\">");
-				responseBuilder.append(hostServer).append("</a>").append(HostServer.CRLF);
+				responseBuilder.append(hostServer).append("</a>");
+				HostLoad load = snapshot.loads.get(hostServer);
+				if (load != null) {
+					responseBuilder.append("  ").append(load);
+				}
+				responseBuilder.append(HostServer.CRLF);
 			}
 			responseBuilder.append("</pre>").append(HostServer.CRLF);
 			responseBuilder.append("<h2>").append("Agents").append("</h2>").append(HostServer.CRLF);
 			responseBuilder.append("<pre>").append(HostServer.CRLF);
-			for (String agentName : agentServers.keySet()) {
-				responseBuilder.append("<a href=\"http://").append(agentServers.get(agentName)).append("/\">");
-				responseBuilder.append(agentName).append("</a>").append(HostServer.CRLF);
+			for (Map.Entry<String,String> agentServer : snapshot.agents.entrySet()) {
+				responseBuilder.append("<a href=\"http://").append(agentServer.getValue()).append("/\">");
+				responseBuilder.append(agentServer.getKey()).append("</a>").append(HostServer.CRLF);
 			}
 			responseBuilder.append("</pre>").append(HostServer.CRLF);
 			responseBuilder.append("</body></html>").append(HostServer.CRLF);			
 			String response = responseBuilder.toString();
-			writeOkHeader(response.length(), HostServer.mimeTypes.get("html"), writer);
-			writer.print(response);
-			writer.print(HostServer.CRLF);
-			writer.flush();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(response.length() + 200);
+			PrintStream bytesWriter = new PrintStream(bytes);
+			writeOkHeader(response.length(), HostServer.mimeTypes.get("html"), bytesWriter);
+			bytesWriter.print(response);
+			bytesWriter.print(HostServer.CRLF);
+			bytesWriter.flush();
+			return bytes.toByteArray();
 		}
 		
 		private void handleAdminRequest(String command, String request, PrintStream writer) throws IOException {
@@ -166,41 +234,93 @@ public class NameServer {
 		    		writeError(HostServer.BAD_REQUEST, "Invalid request for this server: " + request, writer);
 		    		return;
 	    		}	    			
-    			hostServers.add(hostServer);
+    			if (!registry.hasHostServer(hostServer)) {
+    				record(RegistryLog.HOST_SERVER, hostServer, null);
+    			}
     			System.out.println("Register host server: " + hostServer);
     			
     			// Success response.
     			writer.print(HostServer.SUCCESS);
 	    	}
 	    	else if (command.startsWith(HostServer.QUERY_HOST_SERVERS)) {
-	    		// Respond with &-delimited list of host servers.
-	    		String hostServersResponse = new String();
-				for (String hostServer : hostServers) {
-					if (hostServersResponse.length() != 0) {
-						hostServersResponse += '&';
-					}
-					hostServersResponse += hostServer;
-				}
-				
-    			// Host Servers response.
-    			writer.print(hostServersResponse);
+    			// Respond with &-delimited list of host servers, as serialized for this version of the registry.
+    			writer.print(registry.snapshot().hostServersReply);
 	    	}
 	    	else if (command.startsWith(HostServer.REGISTER_NEW_AGENT)) {
 	    		// Get agent server endpoint from request parameters.
 	    		String agentServer = paramMap.get(HostServer.SERVER);
-	    		// Find a peer if one exists, else use itself.
-	    		String peerAgentServer = (agentServers.isEmpty()) ? agentServer : agentServers.values().iterator().next();
 	    		if (agentServer == null) {
 		    		writeError(HostServer.BAD_REQUEST, "Invalid request for this server: " + request, writer);
 		    		return;
 	    		}
     			String agentName = getUniqueName();
-    			agentServers.put(agentName, agentServer);
+    			// An agent hosted behind its host server's port is addressed by path ending in her name.
+    			if (agentServer.endsWith(HostServer.AGENT_PATH)) {
+    				agentServer += agentName;
+    			}
+	    		// Find a peer if one exists, else use itself.
+	    		String peerAgentServer = registry.anyAgent();
+	    		peerAgentServer = (peerAgentServer == null) ? agentServer : peerAgentServer;
+    			record(RegistryLog.NEW_AGENT, agentName, agentServer);
     			System.out.println("Register agent: " + agentName + " at server: " + agentServer);
     			
     			// Name response.
     			writer.print(agentName + '&' + peerAgentServer);
 	    	}
+	    	else if (command.startsWith(HostServer.QUERY_AGENTS)) {
+	    		// Get requesting agent & number of replicas from request parameters.
+	    		String agentName = paramMap.get(HostServer.NAME);
+	    		int count;
+	    		try {
+	    			count = Integer.parseInt(paramMap.get(HostServer.COUNT));
+	    		}
+	    		catch (NumberFormatException ex) {
+		    		writeError(HostServer.BAD_REQUEST, "Invalid request for this server: " + request, writer);
+		    		return;
+	    		}
+	    		
+	    		// Respond with &-delimited endpoints of the agents following her in name order, so her replicas stay put.
+	    		Registry.Snapshot snapshot = registry.snapshot();
+	    		List<String> names = snapshot.agentNames;
+	    		int start = (agentName == null) ? 0 : Collections.binarySearch(names, agentName);
+	    		start = (start < 0) ? -start - 1 : start + 1;
+	    		StringBuilder replicasResponse = new StringBuilder();
+	    		for (int i = 0, added = 0; i < names.size() && added < count; i++) {
+	    			String name = names.get((start + i) % names.size());
+	    			if (!name.equals(agentName)) {
+	    				replicasResponse.append((added++ == 0) ? "" : "&").append(snapshot.agents.get(name));
+	    			}
+	    		}
+	    		writer.print(replicasResponse);
+	    	}
+	    	else if (command.startsWith(HostServer.HEARTBEAT)) {
+	    		// Get host server endpoint & load from request parameters.
+	    		String hostServer = paramMap.get(HostServer.SERVER);
+	    		HostLoad load;
+	    		try {
+	    			load = new HostLoad(Integer.parseInt(paramMap.get(HostServer.AGENTS)), Integer.parseInt(paramMap.get(HostServer.THREADS)), 
+	    					Long.parseLong(paramMap.get(HostServer.RATE)), Integer.parseInt(paramMap.get(HostServer.HEAP)));
+	    		}
+	    		catch (NumberFormatException ex) {
+	    			load = null;
+	    		}
+	    		if (hostServer == null || load == null) {
+		    		writeError(HostServer.BAD_REQUEST, "Invalid request for this server: " + request, writer);
+		    		return;
+	    		}
+	    		// A host server this name server has not heard of registered with an earlier one.
+	    		if (registry.putLoad(hostServer, load) == null && !registry.hasHostServer(hostServer)) {
+	    			record(RegistryLog.HOST_SERVER, hostServer, null);
+	    			System.out.println("Register host server: " + hostServer);
+	    		}
+	    		
+    			// Success response.
+    			writer.print(HostServer.SUCCESS);
+	    	}
+	    	else if (command.startsWith(HostServer.PICK_HOST_SERVER)) {
+	    		// Respond with the host server to migrate an agent to from the one requesting.
+	    		writer.print(pickHostServer(paramMap.get(HostServer.SERVER)));
+	    	}
 	    	else if (command.startsWith(HostServer.MIGRATE)) {
 	    		// Get agent name from request parameters.
 	    		String agentName = paramMap.get(HostServer.NAME);
@@ -210,7 +330,7 @@ public class NameServer {
 		    		writeError(HostServer.BAD_REQUEST, "Invalid request for this server: " + request, writer);
 		    		return;
 	    		}	    			
-    			agentServers.put(agentName, agentServer);
+    			record(RegistryLog.MIGRATE, agentName, agentServer);
     			System.out.println("Migrate agent: " + agentName + " to server: " + agentServer);
     			
     			// Success response.
@@ -222,9 +342,111 @@ public class NameServer {
 			writer.flush();
 		}
 		
+		/**
+		 * Picks a host server other than the source to migrate an agent to. Among those that have reported their load lately,
+		 * by default the lighter of two picked at random, which keeps hosts nearly as even as always taking the lightest
+		 * without every migration piling onto the same one between heartbeats. Otherwise one at random.
+		 */
+		private String pickHostServer(String source) {
+			List<String> reporting = new ArrayList<String>();
+			List<String> silent = new ArrayList<String>();
+			long reportedSince = System.currentTimeMillis() - 3L * HostServer.HEARTBEAT_INTERVAL;
+			Registry.Snapshot snapshot = registry.snapshot();
+			for (String hostServer : snapshot.hostServers) {
+				if (!hostServer.equalsIgnoreCase(source)) {
+					HostLoad load = snapshot.loads.get(hostServer);
+					if (load != null && load.received >= reportedSince) {
+						reporting.add(hostServer);
+					}
+					else {
+						silent.add(hostServer);
+					}
+				}
+			}
+			if (reporting.isEmpty() && silent.isEmpty()) {
+				// Nowhere else to go.
+				return (source == null) ? "" : source;
+			}
+			if (reporting.isEmpty() || PLACEMENT.equals("random")) {
+				List<String> candidates = reporting.isEmpty() ? silent : reporting;
+				return candidates.get(random.nextInt(candidates.size()));
+			}
+			String picked = reporting.get(random.nextInt(reporting.size()));
+			if (PLACEMENT.equals("leastLoaded")) {
+				for (String hostServer : reporting) {
+					if (snapshot.loads.get(hostServer).lighterThan(snapshot.loads.get(picked))) {
+						picked = hostServer;
+					}
+				}
+			}
+			else if (reporting.size() > 1) {
+				String other = reporting.get(random.nextInt(reporting.size() - 1));
+				other = other.equals(picked) ? reporting.get(reporting.size() - 1) : other;
+				if (snapshot.loads.get(other).lighterThan(snapshot.loads.get(picked))) {
+					picked = other;
+				}
+			}
+			// Count the agent there now, so picks before its next heartbeat see her.
+			registry.addAgentToLoad(picked);
+			return picked;
+		}
+		
 		private static String getUniqueName() {
 			return "" + Math.random();
 		}
 	}
 	
+
+	/**
+	 * Load of a host server as of its last heartbeat. Immutable.
+	 */
+	static class HostLoad {
+		/** Agents hosted. */
+		private final int agents;
+		
+		/** Live threads. */
+		private final int threads;
+		
+		/** Requests handled per second. */
+		private final long rate;
+		
+		/** Percentage of the maximum heap in use. */
+		private final int heap;
+		
+		/** When the report arrived, in milliseconds. */
+		private final long received;
+		
+		HostLoad(int agents, int threads, long rate, int heap) {
+			this(agents, threads, rate, heap, System.currentTimeMillis());
+		}
+		
+		private HostLoad(int agents, int threads, long rate, int heap, long received) {
+			this.agents = agents;
+			this.threads = threads;
+			this.rate = rate;
+			this.heap = heap;
+			this.received = received;
+		}
+		
+		/** Same load with one more agent. */
+		HostLoad plusAgent() {
+			return new HostLoad(agents + 1, threads, rate, heap, received);
+		}
+		
+		/** Fewer agents, then fewer requests a second, then less heap in use. */
+		boolean lighterThan(HostLoad other) {
+			if (agents != other.agents) {
+				return agents < other.agents;
+			}
+			if (rate != other.rate) {
+				return rate < other.rate;
+			}
+			return heap < other.heap;
+		}
+		
+		@Override
+		public String toString() {
+			return agents + " agents, " + threads + " threads, " + rate + " requests/s, " + heap + "% heap";
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,213 @@
+/*--------------------------------------------------------
+Registry.java
+Name server's registry of host servers, agents & host server loads.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Used by NameServer, whose worker threads register & look up concurrently.
+
+Each change goes into concurrent maps & bumps a version, one for the agents & another for the host
+servers & their loads. Readers take an immutable snapshot of the registry, built by the first reader
+of a new version & then shared by every reader of that version, so reads never lock. A new snapshot
+copies only the part whose version moved, so heartbeats & placements, which change loads every few
+seconds, never copy the agents. Replies derived from a snapshot, such as the host server list & the
+manifest page, are serialized once & cached on it, so reading them again costs no work at all.
+Registering an agent costs the same however many there are, so a storm of migrations is not
+slowed by copying the registry on each one.
+
+----------------------------------------------------------*/
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Versioned registry of host servers & agents. Thread safe.
+ * @author Joseph Sackett
+ */
+class Registry {
+	/** Host servers (server:port), in order of registration. */
+	private final CopyOnWriteArrayList<String> hostServers = new CopyOnWriteArrayList<String>();
+
+	/** Agent names to agent endpoints. */
+	private final ConcurrentHashMap<String,String> agents = new ConcurrentHashMap<String,String>();
+
+	/** Latest load reported by each host server. */
+	private final ConcurrentHashMap<String,NameServer.HostLoad> loads = new ConcurrentHashMap<String,NameServer.HostLoad>();
+
+	/** Bumped after each change to the agents. */
+	private final AtomicLong agentsVersion = new AtomicLong();
+
+	/** Bumped after each change to the host servers or their loads. */
+	private final AtomicLong hostsVersion = new AtomicLong();
+
+	/** Latest snapshot built. */
+	private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(
+			new Snapshot(0, new TreeMap<String,String>(), 0, new ArrayList<String>(), new TreeMap<String,NameServer.HostLoad>()));
+
+	/**
+	 * Registers a host server.
+	 * @return false when it was already registered.
+	 */
+	boolean addHostServer(String hostServer) {
+		if (!hostServers.addIfAbsent(hostServer)) {
+			return false;
+		}
+		hostsVersion.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Whether a host server is registered.
+	 */
+	boolean hasHostServer(String hostServer) {
+		return hostServers.contains(hostServer);
+	}
+
+	/**
+	 * Registers an agent at an endpoint, or moves her there.
+	 */
+	void putAgent(String name, String endpoint) {
+		agents.put(name, endpoint);
+		agentsVersion.incrementAndGet();
+	}
+
+	/**
+	 * Endpoint of some registered agent, null when there are none.
+	 */
+	String anyAgent() {
+		Iterator<String> endpoints = agents.values().iterator();
+		return endpoints.hasNext() ? endpoints.next() : null;
+	}
+
+	/**
+	 * Records a host server's load.
+	 * @return its previous load, null when it had not reported before.
+	 */
+	NameServer.HostLoad putLoad(String hostServer, NameServer.HostLoad load) {
+		NameServer.HostLoad previous = loads.put(hostServer, load);
+		hostsVersion.incrementAndGet();
+		return previous;
+	}
+
+	/**
+	 * Counts one more agent in a host server's latest load. Retried until no heartbeat or other pick intervened,
+	 * so neither is lost.
+	 */
+	void addAgentToLoad(String hostServer) {
+		while (true) {
+			NameServer.HostLoad load = loads.get(hostServer);
+			if (load == null || loads.replace(hostServer, load, load.plusAgent())) {
+				break;
+			}
+		}
+		hostsVersion.incrementAndGet();
+	}
+
+	/**
+	 * The registry as of now or later.
+	 */
+	Snapshot snapshot() {
+		Snapshot cached = current.get();
+		long agentsLatest = agentsVersion.get();
+		long hostsLatest = hostsVersion.get();
+		if (cached.agentsVersion == agentsLatest && cached.hostsVersion == hostsLatest) {
+			return cached;
+		}
+		// Every change counted in the versions is in the maps by now; later ones may be too, which only makes the snapshot fresher.
+		// A part whose version has not moved is shared with the cached snapshot rather than copied again.
+		Snapshot fresh = new Snapshot(cached, agentsLatest, (cached.agentsVersion == agentsLatest) ? null : new TreeMap<String,String>(agents),
+				hostsLatest, (cached.hostsVersion == hostsLatest) ? null : new ArrayList<String>(hostServers),
+				(cached.hostsVersion == hostsLatest) ? null : new TreeMap<String,NameServer.HostLoad>(loads));
+		// Another reader may have built a newer one meanwhile; either serves this read.
+		current.compareAndSet(cached, fresh);
+		return fresh;
+	}
+
+	/**
+	 * Immutable view of the registry at a pair of versions, with replies derived from it cached.
+	 */
+	static class Snapshot {
+		/** Version of the agents. */
+		final long agentsVersion;
+
+		/** Version of the host servers & their loads. */
+		final long hostsVersion;
+
+		/** Host servers, in order of registration. */
+		final List<String> hostServers;
+
+		/** Agent names to endpoints, by name. */
+		final Map<String,String> agents;
+
+		/** Agent names, sorted. */
+		final List<String> agentNames;
+
+		/** Latest load of each host server that has reported. */
+		final Map<String,NameServer.HostLoad> loads;
+
+		/** &-delimited host servers, the QueryHostServers reply. */
+		final String hostServersReply;
+
+		/** Manifest page with its headers, null until first served. */
+		private volatile byte[] manifest;
+
+		private Snapshot(long agentsVersion, TreeMap<String,String> agents, long hostsVersion, List<String> hostServers,
+				Map<String,NameServer.HostLoad> loads) {
+			this(null, agentsVersion, agents, hostsVersion, hostServers, loads);
+		}
+
+		/**
+		 * Snapshot taking fresh copies of the parts given & sharing the rest with a previous snapshot.
+		 */
+		private Snapshot(Snapshot previous, long agentsVersion, TreeMap<String,String> agents, long hostsVersion, List<String> hostServers,
+				Map<String,NameServer.HostLoad> loads) {
+			this.agentsVersion = agentsVersion;
+			this.hostsVersion = hostsVersion;
+			if (agents == null) {
+				this.agents = previous.agents;
+				this.agentNames = previous.agentNames;
+			}
+			else {
+				this.agents = Collections.unmodifiableMap(agents);
+				this.agentNames = Collections.unmodifiableList(new ArrayList<String>(agents.keySet()));
+			}
+			if (hostServers == null) {
+				this.hostServers = previous.hostServers;
+				this.loads = previous.loads;
+				this.hostServersReply = previous.hostServersReply;
+			}
+			else {
+				this.hostServers = Collections.unmodifiableList(hostServers);
+				this.loads = Collections.unmodifiableMap(loads);
+				StringBuilder reply = new StringBuilder();
+				for (String hostServer : hostServers) {
+					reply.append((reply.length() == 0) ? "" : "&").append(hostServer);
+				}
+				this.hostServersReply = reply.toString();
+			}
+		}
+
+		/**
+		 * Manifest page cached for this version, null until set.
+		 */
+		byte[] getManifest() {
+			return manifest;
+		}
+
+		/**
+		 * Caches the manifest page for this version. Readers racing to build it build the same bytes.
+		 */
+		void setManifest(byte[] manifest) {
+			this.manifest = manifest;
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/*--------------------------------------------------------
+RegistryLog.java
+Write-ahead log & snapshots keeping the name server's registry across restarts.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Used by NameServer for host server registrations, new agents & migrations. Host server loads are
+not kept; heartbeats resend them.
+
+Each event is appended to the current log & forced to disk before it is applied to the registry &
+the request answered. Events arriving while the disk is busy wait together & go in the next batch,
+forced once, so a storm of migrations costs a force per batch rather than per migration.
+
+Every nameServer.snapshotRecords events the log moves to a new generation & a compact snapshot of
+the registry as of the end of the old one is written in the background, after which older logs &
+snapshots are deleted. Startup memory-maps the newest snapshot & replays the logs since it,
+stopping at any record torn by a crash.
+
+Files in nameServer.dataDir (default NameServerData):
+  registry-[generation].snapshot  [magic: int][generation: long][host servers: int]{[string]}[agents: int]{[name][endpoint]}
+  registry-[generation].log       {[length: int][crc32: int][event: byte][key][value]}
+Strings are [length: int][UTF-8 bytes].
+
+----------------------------------------------------------*/
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable log of registry events with group commit. Thread safe.
+ * @author Joseph Sackett
+ */
+class RegistryLog {
+	/** Event: a host server registered; key is server:port. */
+	static final int HOST_SERVER = 1;
+
+	/** Event: an agent registered; key is her name, value her endpoint. */
+	static final int NEW_AGENT = 2;
+
+	/** Event: an agent migrated; key is her name, value her new endpoint. */
+	static final int MIGRATE = 3;
+
+	/** Snapshot file magic, "REG1". */
+	private static final int SNAPSHOT_MAGIC = 0x52454731;
+
+	/** Bytes of a log record before its payload. */
+	private static final int RECORD_HEADER = 8;
+
+	/** Largest log record payload accepted on replay. */
+	private static final int MAX_RECORD = 1 << 20;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Directory of logs & snapshots. */
+	private final File dir;
+
+	/** Registry the events apply to. */
+	private final Registry registry;
+
+	/** Force each batch to disk; off trades durability on a power failure for speed. */
+	private final boolean sync = !"false".equals(System.getProperty("nameServer.sync"));
+
+	/** Events per log generation before a snapshot is taken. */
+	private final int snapshotRecords = Integer.getInteger("nameServer.snapshotRecords", 10000);
+
+	/** Events waiting for the next batch. Guarded by this. */
+	private List<Event> pending = new ArrayList<Event>();
+
+	/** Events appended. Guarded by this. */
+	private long appended;
+
+	/** Events durable & applied; always a whole number of batches. Guarded by this. */
+	private long durable;
+
+	/** Why the log stopped, null while healthy. Guarded by this. */
+	private IOException failure;
+
+	/** Current log generation. Writer thread only. */
+	private long generation;
+
+	/** Current log. Writer thread only. */
+	private FileChannel channel;
+
+	/** Events in the current log. Writer thread only. */
+	private long logRecords;
+
+	/** Set while a snapshot is being written. */
+	private volatile boolean snapshotting;
+
+	private RegistryLog(File dir, Registry registry) {
+		this.dir = dir;
+		this.registry = registry;
+	}
+
+	/**
+	 * Recovers the registry from the directory's newest snapshot & the logs since, then starts logging.
+	 */
+	static RegistryLog open(File dir, Registry registry) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		RegistryLog log = new RegistryLog(dir, registry);
+		log.recover();
+		Thread writer = new Thread(log.new Writer(), "registry-log");
+		writer.setDaemon(true);
+		writer.start();
+		return log;
+	}
+
+	/**
+	 * Applies an event to a registry.
+	 */
+	static void apply(Registry registry, int event, String key, String value) {
+		if (event == HOST_SERVER) {
+			registry.addHostServer(key);
+		}
+		else {
+			registry.putAgent(key, value);
+		}
+	}
+
+	/**
+	 * Logs an event & waits until it is on disk & applied to the registry.
+	 */
+	synchronized void append(int event, String key, String value) throws IOException {
+		if (failure != null) {
+			throw new IOException("Registry log failed.", failure);
+		}
+		pending.add(new Event(event, key, value == null ? "" : value));
+		long sequence = ++appended;
+		notifyAll();
+		while (durable < sequence) {
+			if (failure != null) {
+				throw new IOException("Registry log failed.", failure);
+			}
+			try {
+				wait();
+			}
+			catch (InterruptedException ex) {
+				throw new IOException("Interrupted waiting for the registry log.");
+			}
+		}
+	}
+
+	/**
+	 * Loads the newest readable snapshot, replays later logs & opens the newest log for appending.
+	 */
+	private void recover() throws IOException {
+		long started = System.nanoTime();
+		List<Long> snapshots = generations(".snapshot");
+		List<Long> logs = generations(".log");
+		int hostServers = 0, agents = 0, replayed = 0;
+		long snapshotGeneration = 0;
+		for (int i = snapshots.size() - 1; i >= 0; i--) {
+			try {
+				int[] counts = loadSnapshot(file(snapshots.get(i), ".snapshot"));
+				hostServers = counts[0];
+				agents = counts[1];
+				snapshotGeneration = snapshots.get(i);
+				break;
+			}
+			catch (IOException ex) {
+				System.out.println("Skipping unreadable snapshot " + file(snapshots.get(i), ".snapshot") + ": " + ex.getMessage());
+			}
+			catch (RuntimeException ex) {
+				System.out.println("Skipping unreadable snapshot " + file(snapshots.get(i), ".snapshot") + ": " + ex);
+			}
+		}
+		generation = snapshotGeneration;
+		for (long logGeneration : logs) {
+			if (logGeneration >= snapshotGeneration) {
+				replayed += replay(file(logGeneration, ".log"));
+				generation = logGeneration;
+			}
+		}
+		deleteBefore(snapshotGeneration);
+		channel = FileChannel.open(file(generation, ".log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		System.out.println("Registry recovered " + hostServers + " host servers & " + agents + " agents from snapshot " + snapshotGeneration
+				+ " & " + replayed + " logged events in " + (System.nanoTime() - started) / 1000000L + " ms.");
+	}
+
+	/**
+	 * Loads a snapshot into the registry through a memory mapping of the file.
+	 * @return host servers & agents loaded.
+	 */
+	private int[] loadSnapshot(File file) throws IOException {
+		FileChannel snapshot = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buffer = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size());
+			if (buffer.getInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a registry snapshot.");
+			}
+			buffer.getLong();
+			int hostServers = buffer.getInt();
+			for (int i = 0; i < hostServers; i++) {
+				registry.addHostServer(readString(buffer));
+			}
+			int agents = buffer.getInt();
+			for (int i = 0; i < agents; i++) {
+				registry.putAgent(readString(buffer), readString(buffer));
+			}
+			return new int[] {hostServers, agents};
+		}
+		finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Applies a log's events to the registry, cutting the log off at the first torn or corrupt record.
+	 * @return events applied.
+	 */
+	private int replay(File file) throws IOException {
+		byte[] log = Files.readAllBytes(file.toPath());
+		ByteBuffer buffer = ByteBuffer.wrap(log);
+		CRC32 crc = new CRC32();
+		int events = 0;
+		while (buffer.remaining() >= RECORD_HEADER) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length <= 0 || length > MAX_RECORD || length > buffer.remaining()) {
+				buffer.position(start);
+				break;
+			}
+			crc.reset();
+			crc.update(log, buffer.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				buffer.position(start);
+				break;
+			}
+			int event = buffer.get();
+			apply(registry, event, readString(buffer), readString(buffer));
+			events++;
+		}
+		if (buffer.position() < log.length) {
+			System.out.println("Registry log " + file + " torn after " + events + " events; dropping the last " + (log.length - buffer.position()) + " bytes.");
+			FileChannel torn = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			try {
+				torn.truncate(buffer.position());
+			}
+			finally {
+				torn.close();
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Writes a batch to the log, forces it, applies it & starts a snapshot when the log is long enough. Writer thread only.
+	 */
+	private void commit(List<Event> batch) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		CRC32 crc = new CRC32();
+		for (Event event : batch) {
+			byte[] key = event.key.getBytes(UTF_8);
+			byte[] value = event.value.getBytes(UTF_8);
+			ByteBuffer payload = ByteBuffer.allocate(1 + 4 + key.length + 4 + value.length);
+			payload.put((byte) event.type).putInt(key.length).put(key).putInt(value.length).put(value);
+			crc.reset();
+			crc.update(payload.array());
+			out.writeInt(payload.capacity());
+			out.writeInt((int) crc.getValue());
+			out.write(payload.array());
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		if (sync) {
+			channel.force(false);
+		}
+		for (Event event : batch) {
+			apply(registry, event.type, event.key, event.value);
+		}
+		logRecords += batch.size();
+		if (logRecords >= snapshotRecords && !snapshotting) {
+			snapshot();
+		}
+	}
+
+	/**
+	 * Moves to a new log generation & writes a snapshot of the registry as of the end of the old one in the background.
+	 * Writer thread only, so no event is applied between taking the snapshot & moving on.
+	 */
+	private void snapshot() throws IOException {
+		final Registry.Snapshot state = registry.snapshot();
+		final long snapshotGeneration = generation + 1;
+		FileChannel next = FileChannel.open(file(snapshotGeneration, ".log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.close();
+		channel = next;
+		generation = snapshotGeneration;
+		logRecords = 0;
+		snapshotting = true;
+		Thread snapshotter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(state, snapshotGeneration);
+					deleteBefore(snapshotGeneration);
+				}
+				catch (IOException ex) {
+					// The logs are kept, so nothing is lost.
+					System.out.println("Registry snapshot " + snapshotGeneration + " failed: " + ex.getMessage());
+				}
+				finally {
+					snapshotting = false;
+				}
+			}
+		}, "registry-snapshot");
+		snapshotter.setDaemon(true);
+		snapshotter.start();
+	}
+
+	/**
+	 * Writes a snapshot to a temporary file, forces it & renames it into place, so a snapshot file is always whole.
+	 */
+	private void writeSnapshot(Registry.Snapshot state, long snapshotGeneration) throws IOException {
+		long started = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(state.agents.size() * 64 + 1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeLong(snapshotGeneration);
+		out.writeInt(state.hostServers.size());
+		for (String hostServer : state.hostServers) {
+			writeString(out, hostServer);
+		}
+		out.writeInt(state.agents.size());
+		for (String name : state.agentNames) {
+			writeString(out, name);
+			writeString(out, state.agents.get(name));
+		}
+		File temporary = new File(dir, "registry-" + snapshotGeneration + ".snapshot.tmp");
+		FileChannel snapshot = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while (buffer.hasRemaining()) {
+				snapshot.write(buffer);
+			}
+			snapshot.force(true);
+		}
+		finally {
+			snapshot.close();
+		}
+		Files.move(temporary.toPath(), file(snapshotGeneration, ".snapshot").toPath(), StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("Registry snapshot " + snapshotGeneration + ": " + state.agents.size() + " agents in "
+				+ bytes.size() + " bytes, " + (System.nanoTime() - started) / 1000000L + " ms.");
+	}
+
+	/**
+	 * Deletes logs & snapshots older than a generation that has a snapshot. A file still mapped may outlive this; the next snapshot retries.
+	 */
+	private void deleteBefore(long snapshotGeneration) {
+		for (String suffix : new String[] {".log", ".snapshot"}) {
+			for (long older : generations(suffix)) {
+				if (older < snapshotGeneration) {
+					file(older, suffix).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generations of the files with a suffix, oldest first.
+	 */
+	private List<Long> generations(String suffix) {
+		List<Long> found = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("registry-") && name.endsWith(suffix)) {
+					try {
+						found.add(Long.parseLong(name.substring("registry-".length(), name.length() - suffix.length())));
+					}
+					catch (NumberFormatException ex) {}
+				}
+			}
+		}
+		Collections.sort(found);
+		return found;
+	}
+
+	private File file(long fileGeneration, String suffix) {
+		return new File(dir, "registry-" + fileGeneration + suffix);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IOException("Bad string length " + length + '.');
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * A registry event waiting to be logged.
+	 */
+	private static class Event {
+		final int type;
+		final String key;
+		final String value;
+
+		Event(int type, String key, String value) {
+			this.type = type;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Takes whatever events have arrived & commits them as one batch, until the log fails.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				List<Event> batch;
+				synchronized (RegistryLog.this) {
+					while (pending.isEmpty()) {
+						try {
+							RegistryLog.this.wait();
+						}
+						catch (InterruptedException ex) {}
+					}
+					batch = pending;
+					pending = new ArrayList<Event>();
+				}
+				try {
+					commit(batch);
+				}
+				catch (IOException ex) {
+					System.out.println("Registry log failed, registrations are refused: " + ex);
+					synchronized (RegistryLog.this) {
+						failure = ex;
+						RegistryLog.this.notifyAll();
+					}
+					return;
+				}
+				synchronized (RegistryLog.this) {
+					durable += batch.size();
+					RegistryLog.this.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,607 @@
+/*--------------------------------------------------------
+Rpc.java
+Pooled keep-alive calls between host servers, agents & the name server.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Used by HostServer.genericRequest in place of a socket per request. The servers' listeners take
+both kinds of connection: one starting with a NUL byte is an RPC connection, anything else is a
+browser or an older server sending one text request.
+
+Connection:
+  client  MAGIC                               "\0RPC2\r\n", answered by the same 7 bytes.
+  client  [id: int][timeout: int][length: int][request: UTF-8][length: int][body]
+  server  [id: int][status: byte][length: int][reply: UTF-8]   status OK or FAILED (reply is the reason).
+
+A request is the text that used to be sent on a socket of its own, plus an optional binary body
+(such as an agent snapshot) the handler fetches with Rpc.requestBody(); the reply is what the
+server wrote back. Requests carry ids, so many calls share a connection at once & replies come back in
+any order. Each endpoint keeps up to rpc.connections connections open, closing those idle for
+rpc.idle milliseconds. Every call has a deadline, rpc.timeout milliseconds unless the request
+being served has less time left, in which case calls it makes inherit what remains. A server too
+old to answer MAGIC replies with an HTTP error instead; the endpoint is remembered & requests to
+it fall back to a socket each, until rpc.legacyRetry milliseconds pass & MAGIC is tried again.
+
+System properties (defaults):
+  rpc.timeout      10000   milliseconds a call may take
+  rpc.connections  4       connections kept per endpoint
+  rpc.idle         30000   milliseconds before an unused connection is closed
+  rpc.legacyRetry  300000  milliseconds before an endpoint that did not speak RPC is tried again
+
+----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client & server sides of the inter-server RPC. Thread safe.
+ * @author Joseph Sackett
+ */
+class Rpc {
+	/** Opens every RPC connection, in both directions. */
+	static final byte[] MAGIC = {0, 'R', 'P', 'C', '2', '\r', '\n'};
+
+	/** Reply status: request handled. */
+	static final int OK = 0;
+
+	/** Reply status: request failed; the reply is the reason. */
+	static final int FAILED = 1;
+
+	/** Milliseconds a call may take. */
+	static final int TIMEOUT = Integer.getInteger("rpc.timeout", 10000);
+
+	/** Connections kept per endpoint. */
+	static final int CONNECTIONS = Integer.getInteger("rpc.connections", 4);
+
+	/** Milliseconds before an unused connection is closed. */
+	static final long IDLE = Long.getLong("rpc.idle", 30000);
+
+	/** Milliseconds before an endpoint that did not speak RPC is tried again. */
+	static final long LEGACY_RETRY = Long.getLong("rpc.legacyRetry", 300000);
+
+	/** Longest request or reply accepted. */
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	/** Encoding of requests & replies. */
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Connection pools by endpoint (server:port). */
+	private static final ConcurrentHashMap<String,Pool> pools = new ConcurrentHashMap<String,Pool>();
+
+	/** When endpoints were found not to speak RPC, by endpoint. An upgraded server, or one that only dropped the handshake, is tried again. */
+	private static final ConcurrentHashMap<String,Long> legacy = new ConcurrentHashMap<String,Long>();
+
+	/** Deadline of the request this thread is serving, null when it serves none. */
+	private static final ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+	/** Body of the request this thread is serving, null when it has none. */
+	private static final ThreadLocal<byte[]> body = new ThreadLocal<byte[]>();
+
+	/** Runs requests arriving on server connections. */
+	private static final ExecutorService handlers = Executors.newCachedThreadPool(namedThreads("rpc-handler"));
+
+	/**
+	 * Sends a request & waits for the reply.
+	 * @return the reply, or null when the endpoint does not speak RPC & the caller should send it the old way.
+	 */
+	static String call(String server, int port, String request) throws IOException {
+		return call(server, port, request, null);
+	}
+
+	/**
+	 * Sends a request with a binary body & waits for the reply.
+	 * @param requestBody body, or null for none.
+	 * @return the reply, or null when the endpoint does not speak RPC & the caller should send it the old way.
+	 */
+	static String call(String server, int port, String request, byte[] requestBody) throws IOException {
+		String endpoint = server + ':' + port;
+		Long legacySince = legacy.get(endpoint);
+		if (legacySince != null) {
+			if (System.currentTimeMillis() - legacySince < LEGACY_RETRY) {
+				return null;
+			}
+			legacy.remove(endpoint, legacySince);
+		}
+		Pool pool = pools.get(endpoint);
+		if (pool == null) {
+			Pool created = new Pool(server, port);
+			pool = pools.putIfAbsent(endpoint, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+
+		byte[] payload = request.getBytes(UTF8);
+		byte[] bodyPayload = (requestBody != null) ? requestBody : new byte[0];
+		for (int attempt = 1; ; attempt++) {
+			int timeout = remaining();
+			Connection connection = pool.acquire(timeout);
+			if (connection == null) {
+				legacy.put(endpoint, System.currentTimeMillis());
+				return null;
+			}
+			Call call;
+			try {
+				call = connection.send(payload, bodyPayload, timeout);
+			}
+			catch (IOException ex) {
+				// Nothing reached the server, so a second connection may try.
+				connection.close(ex);
+				if (attempt > 1) {
+					throw ex;
+				}
+				continue;
+			}
+			return call.await(connection, timeout);
+		}
+	}
+
+	/**
+	 * Splits a reply into lines as a reader of the old socket per request saw them;
+	 * an empty reply reads as a single null line, like a connection closed without replying.
+	 */
+	static List<String> lines(String reply) {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new StringReader(reply));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		catch (IOException ex) {}
+		if (lines.isEmpty()) {
+			lines.add(null);
+		}
+		return lines;
+	}
+
+	/**
+	 * Body of the request this thread is serving, null when it has none or the request did not come over RPC.
+	 */
+	static byte[] requestBody() {
+		return body.get();
+	}
+
+	/**
+	 * Milliseconds the next call may take: rpc.timeout, or less when the request being served has less left.
+	 */
+	private static int remaining() throws IOException {
+		Long until = deadline.get();
+		if (until == null) {
+			return TIMEOUT;
+		}
+		long left = until - System.currentTimeMillis();
+		if (left <= 0) {
+			throw new SocketTimeoutException("Deadline passed before the call was sent.");
+		}
+		return (int) Math.min(TIMEOUT, left);
+	}
+
+	/**
+	 * Serves an RPC connection whose first byte, NUL, the caller has already read. Returns when the client closes it.
+	 */
+	static void serve(Socket socket, InputStream input, Handler handler) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic, 1, MAGIC.length - 1);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not an RPC connection.");
+		}
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		out.write(MAGIC);
+		out.flush();
+		socket.setTcpNoDelay(true);
+		// Clients close idle connections first; this only reaps abandoned ones.
+		socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, IDLE * 2));
+
+		while (true) {
+			final int id;
+			try {
+				id = in.readInt();
+			}
+			catch (EOFException ex) {
+				return;
+			}
+			catch (SocketTimeoutException ex) {
+				return;
+			}
+			final long until = System.currentTimeMillis() + in.readInt();
+			final byte[] request = readPayload(in);
+			final byte[] requestBody = readPayload(in);
+			final Handler requestHandler = handler;
+			// Handled apart so a slow request does not hold up those behind it on the connection.
+			handlers.execute(new Runnable() {
+				@Override
+				public void run() {
+					int status = OK;
+					String reply;
+					if (System.currentTimeMillis() >= until) {
+						status = FAILED;
+						reply = "Deadline passed before the request was handled.";
+					}
+					else {
+						deadline.set(until);
+						body.set((requestBody.length > 0) ? requestBody : null);
+						try {
+							reply = requestHandler.handle(lines(new String(request, UTF8)));
+						}
+						catch (Exception ex) {
+							status = FAILED;
+							reply = String.valueOf(ex);
+						}
+						finally {
+							deadline.remove();
+							body.remove();
+						}
+					}
+					byte[] payload = reply.getBytes(UTF8);
+					try {
+						synchronized (out) {
+							out.writeInt(id);
+							out.writeByte(status);
+							out.writeInt(payload.length);
+							out.write(payload);
+							out.flush();
+						}
+					}
+					catch (IOException ex) {
+						// Client gone; it fails the call itself.
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads a length & that many bytes.
+	 */
+	private static byte[] readPayload(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("RPC frame of " + length + " bytes refused.");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Thread factory naming daemon threads with a prefix & sequence number.
+	 */
+	static ThreadFactory namedThreads(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, prefix + '-' + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Handles one request on the server side.
+	 */
+	interface Handler {
+		/**
+		 * @param request the request's lines.
+		 * @return everything written in reply.
+		 */
+		String handle(List<String> request) throws IOException;
+	}
+
+	/**
+	 * Open connections to one endpoint.
+	 */
+	private static class Pool {
+		/** Endpoint host. */
+		private String server;
+
+		/** Endpoint port. */
+		private int port;
+
+		/** Open connections. Guarded by this. */
+		private List<Connection> connections = new ArrayList<Connection>();
+
+		/** Connections being opened. Guarded by this. */
+		private int opening;
+
+		Pool(String server, int port) {
+			this.server = server;
+			this.port = port;
+		}
+
+		/**
+		 * Picks the least busy connection, opening another while all are busy & the pool is not full.
+		 * Connecting happens outside the lock, so callers with a connection to share are not held up by it.
+		 * @return null when the endpoint does not speak RPC.
+		 */
+		Connection acquire(int timeout) throws IOException {
+			long now = System.currentTimeMillis();
+			Connection least;
+			synchronized (this) {
+				while (true) {
+					long current = System.currentTimeMillis();
+					least = sweep(current);
+					if (least != null && (least.inFlight() == 0 || connections.size() + opening >= CONNECTIONS)) {
+						least.lastUsed = current;
+						return least;
+					}
+					if (least != null || opening == 0) {
+						break;
+					}
+					// Nothing to share yet, but another caller is connecting: wait for it rather than pile on.
+					long left = now + timeout - current;
+					if (left <= 0) {
+						throw new SocketTimeoutException("No connection within " + timeout + " ms.");
+					}
+					try {
+						wait(left);
+					}
+					catch (InterruptedException ex) {
+						throw new InterruptedIOException("Interrupted awaiting a connection.");
+					}
+				}
+				opening++;
+			}
+
+			Connection opened = null;
+			try {
+				opened = Connection.open(server, port, timeout);
+			}
+			finally {
+				synchronized (this) {
+					opening--;
+					if (opened != null) {
+						opened.lastUsed = System.currentTimeMillis();
+						connections.add(opened);
+					}
+					notifyAll();
+				}
+			}
+			return (opened != null) ? opened : least;
+		}
+
+		/**
+		 * Closes dead & idle connections.
+		 * @return the least busy connection left, null if none.
+		 */
+		private Connection sweep(long now) {
+			Connection least = null;
+			for (Iterator<Connection> it = connections.iterator(); it.hasNext(); ) {
+				Connection connection = it.next();
+				if (!connection.isOpen() || (connection.inFlight() == 0 && now - connection.lastUsed > IDLE)) {
+					connection.close(null);
+					it.remove();
+				}
+				else if (least == null || connection.inFlight() < least.inFlight()) {
+					least = connection;
+				}
+			}
+			return least;
+		}
+	}
+
+	/**
+	 * One connection carrying many calls, with a thread taking its replies.
+	 */
+	private static class Connection implements Runnable {
+		/** Connected socket. */
+		private Socket socket;
+
+		/** Request output. Guarded by itself. */
+		private DataOutputStream out;
+
+		/** Reply input. */
+		private DataInputStream in;
+
+		/** Calls awaiting replies, by id. */
+		private ConcurrentHashMap<Integer,Call> calls = new ConcurrentHashMap<Integer,Call>();
+
+		/** Last id assigned. */
+		private AtomicInteger lastId = new AtomicInteger();
+
+		/** When a call last started on this connection. */
+		private volatile long lastUsed;
+
+		/** Why the connection closed, null while open. */
+		private volatile IOException failure;
+
+		/**
+		 * Connects & exchanges MAGIC.
+		 * @return null when the server does not speak RPC.
+		 */
+		static Connection open(String server, int port, int timeout) throws IOException {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(server, port), timeout);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(timeout);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out.write(MAGIC);
+				out.flush();
+				byte[] answer = new byte[MAGIC.length];
+				try {
+					in.readFully(answer);
+				}
+				catch (EOFException ex) {
+					// Closed on us: an older server that took MAGIC for a bad request.
+				}
+				if (!Arrays.equals(answer, MAGIC)) {
+					socket.close();
+					return null;
+				}
+				socket.setSoTimeout(0);
+				Connection connection = new Connection();
+				connection.socket = socket;
+				connection.out = out;
+				connection.in = in;
+				Thread reader = new Thread(connection, "rpc-replies-" + server + ':' + port);
+				reader.setDaemon(true);
+				reader.start();
+				return connection;
+			}
+			catch (IOException ex) {
+				try {socket.close();} catch (IOException closeEx) {}
+				throw ex;
+			}
+		}
+
+		boolean isOpen() {
+			return failure == null;
+		}
+
+		int inFlight() {
+			return calls.size();
+		}
+
+		/**
+		 * Sends a request.
+		 * @throws IOException when the request could not be written.
+		 */
+		Call send(byte[] payload, byte[] body, int timeout) throws IOException {
+			IOException closed = failure;
+			if (closed != null) {
+				throw closed;
+			}
+			int id = lastId.incrementAndGet();
+			Call call = new Call(id);
+			calls.put(id, call);
+			try {
+				synchronized (out) {
+					out.writeInt(id);
+					out.writeInt(timeout);
+					out.writeInt(payload.length);
+					out.write(payload);
+					out.writeInt(body.length);
+					out.write(body);
+					out.flush();
+				}
+			}
+			catch (IOException ex) {
+				calls.remove(id);
+				throw ex;
+			}
+			return call;
+		}
+
+		/**
+		 * Closes the connection, failing calls in flight.
+		 */
+		void close(IOException cause) {
+			if (failure == null) {
+				failure = (cause != null) ? cause : new EOFException("RPC connection closed.");
+			}
+			try {socket.close();} catch (IOException ex) {}
+			for (Call call : calls.values()) {
+				call.complete(null, failure);
+			}
+			calls.clear();
+		}
+
+		@Override
+		public void run() {
+			IOException cause;
+			try {
+				while (true) {
+					int id = in.readInt();
+					int status = in.readUnsignedByte();
+					String reply = new String(readPayload(in), UTF8);
+					Call call = calls.remove(id);
+					if (call != null) {
+						if (status == OK) {
+							call.complete(reply, null);
+						}
+						else {
+							call.complete(null, new IOException("Request failed at server: " + reply));
+						}
+					}
+				}
+			}
+			catch (IOException ex) {
+				cause = ex;
+			}
+			close(cause);
+		}
+	}
+
+	/**
+	 * A request awaiting its reply.
+	 */
+	private static class Call {
+		/** Request id on its connection. */
+		private final int id;
+
+		/** Reply, once complete. Guarded by this. */
+		private String reply;
+
+		/** Failure, once complete. Guarded by this. */
+		private IOException failure;
+
+		/** Set once replied or failed. Guarded by this. */
+		private boolean done;
+
+		Call(int id) {
+			this.id = id;
+		}
+
+		synchronized void complete(String reply, IOException failure) {
+			if (!done) {
+				this.reply = reply;
+				this.failure = failure;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for the reply until the deadline.
+		 */
+		synchronized String await(Connection connection, int timeout) throws IOException {
+			long until = System.currentTimeMillis() + timeout;
+			for (long left = timeout; !done; left = until - System.currentTimeMillis()) {
+				if (left <= 0) {
+					// A late reply is dropped.
+					connection.calls.remove(id);
+					throw new SocketTimeoutException("No reply within " + timeout + " ms.");
+				}
+				try {
+					wait(left);
+				}
+				catch (InterruptedException ex) {
+					connection.calls.remove(id);
+					throw new InterruptedIOException("Interrupted awaiting reply.");
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return reply;
+		}
+	}
+}
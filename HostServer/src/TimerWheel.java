@@ -0,0 +1,236 @@
+/*--------------------------------------------------------
+TimerWheel.java
+Hashed wheel timer shared by every agent on a host server.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Used by HostServer for agent auto-migration checks in place of a java.util.Timer, and its thread, per agent.
+
+A single ticker thread advances a wheel of buckets every tick. A timeout is linked into the bucket
+its deadline falls in, with a count of whole turns of the wheel still to wait, so scheduling &
+cancelling cost the same however many timeouts are pending. The timeouts due on a tick are handed
+in batches to a small pool of threads, so one slow task does not hold up the ticker or the others.
+Timeouts fire up to a tick late, never early.
+
+----------------------------------------------------------*/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules many one shot tasks on one thread. Thread safe.
+ * @author Joseph Sackett
+ */
+class TimerWheel {
+	/** Timeouts run together by one pool thread. */
+	private static final int BATCH = 64;
+
+	/** Milliseconds per tick. */
+	private final long tickMillis;
+
+	/** Bucket heads; each is the sentinel of a circular list of timeouts. Guarded by this. */
+	private final Timeout[] wheel;
+
+	/** Runs the timeouts due. */
+	private final ExecutorService executor;
+
+	/** Time of tick 0, from System.nanoTime(). */
+	private final long start = System.nanoTime();
+
+	/** Jitter source. Guarded by this. */
+	private final Random random = new Random();
+
+	/** Ticks elapsed since start. Guarded by this. */
+	private long tick;
+
+	/** Timeouts pending. Guarded by this. */
+	private int pending;
+
+	/** Cleared to stop the ticker. */
+	private volatile boolean running = true;
+
+	/**
+	 * @param name prefix of the timer's thread names.
+	 * @param tickMillis resolution of the timer.
+	 * @param wheelSize buckets per turn of the wheel.
+	 * @param threads threads running due timeouts.
+	 */
+	TimerWheel(final String name, long tickMillis, int wheelSize, int threads) {
+		this.tickMillis = Math.max(1, tickMillis);
+		wheel = new Timeout[Math.max(1, wheelSize)];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Timeout(null);
+			wheel[i].prev = wheel[i];
+			wheel[i].next = wheel[i];
+		}
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Thread ticker = new Thread(new Ticker(), name + "-ticker");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Runs a task once after a delay.
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+		return schedule(task, delayMillis, 0);
+	}
+
+	/**
+	 * Runs a task once after a delay moved by up to half the jitter either way, so tasks
+	 * scheduled together spread out instead of all falling due on the same tick.
+	 */
+	synchronized Timeout schedule(Runnable task, long delayMillis, long jitterMillis) {
+		if (jitterMillis > 0) {
+			delayMillis += (long) (random.nextDouble() * jitterMillis) - jitterMillis / 2;
+		}
+		// First tick at or after the deadline, though never the current one.
+		long tickNanos = tickMillis * 1000000L;
+		long due = (System.nanoTime() - start + Math.max(0, delayMillis) * 1000000L + tickNanos - 1) / tickNanos;
+		long ticks = Math.max(1, due - tick);
+		Timeout timeout = new Timeout(task);
+		timeout.rounds = (ticks - 1) / wheel.length;
+		Timeout head = wheel[(int) ((tick + ticks) % wheel.length)];
+		timeout.prev = head.prev;
+		timeout.next = head;
+		head.prev.next = timeout;
+		head.prev = timeout;
+		pending++;
+		return timeout;
+	}
+
+	/**
+	 * Timeouts waiting to fire.
+	 */
+	synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Stops the ticker & the pool; pending timeouts never fire.
+	 */
+	void stop() {
+		running = false;
+		executor.shutdown();
+	}
+
+	/**
+	 * Unlinks a timeout from its bucket. Caller holds the lock.
+	 */
+	private void unlink(Timeout timeout) {
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		pending--;
+	}
+
+	/**
+	 * Advances the wheel one tick.
+	 * @return the tasks now due.
+	 */
+	private synchronized List<Runnable> advance() {
+		List<Runnable> due = new ArrayList<Runnable>();
+		Timeout head = wheel[(int) (++tick % wheel.length)];
+		for (Timeout timeout = head.next, next; timeout != head; timeout = next) {
+			next = timeout.next;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+			}
+			else {
+				unlink(timeout);
+				due.add(timeout.task);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * A scheduled task, cancellable until it fires.
+	 */
+	class Timeout {
+		/** Task to run, null for a bucket head. */
+		private final Runnable task;
+
+		/** Turns of the wheel left before firing. Guarded by the wheel. */
+		private long rounds;
+
+		/** Neighbours in the bucket, null once fired or cancelled. Guarded by the wheel. */
+		private Timeout prev, next;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Stops the task firing.
+		 * @return false when it already fired or was cancelled.
+		 */
+		boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (prev == null) {
+					return false;
+				}
+				unlink(this);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Advances the wheel on time & hands due tasks to the pool in batches.
+	 */
+	private class Ticker implements Runnable {
+		@Override
+		public void run() {
+			for (long ticks = 1; running; ticks++) {
+				// Sleep to the tick's deadline, not for a tick, so time spent dispatching does not add up.
+				long wait = (start + ticks * tickMillis * 1000000L - System.nanoTime() + 999999L) / 1000000L;
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait);
+					}
+					catch (InterruptedException ex) {}
+				}
+				List<Runnable> due = advance();
+				for (int from = 0; from < due.size(); from += BATCH) {
+					final List<Runnable> batch = due.subList(from, Math.min(from + BATCH, due.size()));
+					try {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								for (Runnable task : batch) {
+									try {
+										task.run();
+									}
+									catch (RuntimeException ex) {
+										ex.printStackTrace();
+									}
+								}
+							}
+						});
+					}
+					catch (RejectedExecutionException ex) {
+						// Stopped.
+						return;
+					}
+				}
+			}
+		}
+	}
+}
@@ -10,6 +10,6 @@ rem pause
 rem have to set classpath in batch, passing as arg does not work.
 rem Change this to point to your own Xstream library files:
 set clspath=C:\Users\Joe\git\DS_Projects\Mimer\bin;C:\Users\Joe\git\DS_Projects\Mimer\xstream-1.4.5.jar;C:\Users\Joe\git\DS_Projects\Mimer\xpp3_min-1.1.4c.jar;C:\Users\Joe\git\DS_Projects\Mimer\xmlpull-1.1.3.1.jar
-rem pass the name of the first argument to java:
-java -cp %clspath% -Dfirstarg=%1 BCHandler
+rem pass the name of the first argument to java; BCLaunch hands it to the resident BCHandler daemon:
+java -cp %clspath% -Dfirstarg=%1 BCLaunch
 rem pause
\ No newline at end of file
@@ -0,0 +1,415 @@
+/*--------------------------------------------------------
+BCBenchmark.java
+End to end throughput & latency benchmark of the back channel.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Starts MyWebServer in process on free ports with a scratch ingest log, then drives its back channel
+with concurrent clients over each codec:
+  xml      XStream XML, a connection per message, as BCClient.sendToBC
+  binary   compact binary format, a connection per message, as BCCodec.send
+  session  binary messages pipelined on one session per client (see BCSession.java)
+  deflate  as session, with deflated messages
+For each codec it reports messages/sec, payload bytes/sec, acknowledgment latency percentiles &
+bytes allocated per message on the client & server threads. Server console output is discarded
+while measuring.
+
+To run:
+java -cp %clspath% BCBenchmark [messages per client (2000)] [clients (4)] [lines per message (3)]
+     [bytes per line (32)] [codecs (xml,binary,session,deflate)]
+Regression checks:
+  -Dbench.save=[file]      save the results as a baseline.
+  -Dbench.baseline=[file]  compare the results with a saved baseline.
+
+----------------------------------------------------------*/
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures back channel codecs end to end against an in process server.
+ * @author Joseph Sackett
+ */
+public class BCBenchmark {
+	/** Default messages per client. */
+	private static final int DEFAULT_MESSAGES = 2000;
+
+	/** Default concurrent clients. */
+	private static final int DEFAULT_CLIENTS = 4;
+
+	/** Default lines per message. */
+	private static final int DEFAULT_LINES = 3;
+
+	/** Default bytes per line. */
+	private static final int DEFAULT_LINE_BYTES = 32;
+
+	/** Default codecs measured, in order. */
+	private static final String DEFAULT_CODECS = "xml,binary,session,deflate";
+
+	/** Name prefix of the server's back channel worker threads. */
+	private static final String SERVER_THREADS = "bc-worker";
+
+	/** Words lines are built from, so text compresses like real data. */
+	private static final String[] WORDS = {"GET", "/index.html", "200", "served", "in", "ms", "client", "mime", "back", "channel"};
+
+	/** Thread bean, for allocation counts. */
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/** Back channel port of the in process server. */
+	private static int port;
+
+	public static void main(String[] args) throws Exception {
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+		int clients = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+		int lines = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_LINES;
+		int lineBytes = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_LINE_BYTES;
+		String[] codecs = ((args.length > 4) ? args[4] : DEFAULT_CODECS).split(",");
+
+		PrintStream console = System.out;
+		File logDir = startServer();
+		myDataArray data = payload(lines, lineBytes);
+		long payloadBytes = 0;
+		for (int i = 0; i < data.num_lines; i++) {
+			payloadBytes += data.lines[i].getBytes(BCCodec.UTF8).length + 1;
+		}
+
+		console.println("Back channel benchmark on port " + port + ": " + clients + " clients x " + messages + " messages of "
+			+ lines + " lines x " + lineBytes + " bytes.");
+		console.println(String.format("%-8s %10s %12s %9s %9s %9s %9s %11s %11s",
+			"codec", "msgs/sec", "bytes/sec", "p50 us", "p90 us", "p99 us", "max us", "client B/msg", "server B/msg"));
+		Properties results = new Properties();
+		try {
+			for (String codec : codecs) {
+				// Warm up, then measure.
+				run(codec, clients, Math.max(messages / 10, 1), data);
+				Result result = run(codec, clients, messages, data);
+				double seconds = result.nanos / 1e9;
+				long total = (long) clients * messages;
+				console.println(String.format("%-8s %10.0f %12.0f %9d %9d %9d %9d %11d %11d", codec,
+					total / seconds, total * payloadBytes / seconds,
+					result.percentile(50), result.percentile(90), result.percentile(99), result.percentile(100),
+					result.clientBytes / total, result.serverBytes / total));
+				results.setProperty(codec + ".msgsPerSec", String.valueOf((long) (total / seconds)));
+				results.setProperty(codec + ".p99Micros", String.valueOf(result.percentile(99)));
+				results.setProperty(codec + ".bytesPerMsg", String.valueOf((result.clientBytes + result.serverBytes) / total));
+			}
+		}
+		finally {
+			System.setOut(console);
+			deleteLog(logDir);
+		}
+		compare(console, results);
+		// The in process server has no other way to stop.
+		System.exit(0);
+	}
+
+	/**
+	 * Starts MyWebServer on free ports with a scratch ingest log & discards its console output.
+	 * @return the scratch log directory.
+	 */
+	private static File startServer() throws InterruptedException, IOException {
+		File logDir = File.createTempFile("bcbench", "");
+		if (!logDir.delete() || !logDir.mkdir()) {
+			throw new IOException("Cannot create scratch ingest log " + logDir);
+		}
+		System.setProperty("ws.port", "0");
+		System.setProperty("bc.port", "0");
+		System.setProperty("bc.log", logDir.getPath());
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}));
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				MyWebServer.main(new String[0]);
+			}
+		}, "bench-server");
+		server.setDaemon(true);
+		server.start();
+		port = MyWebServer.awaitBackChannelPort();
+		return logDir;
+	}
+
+	/**
+	 * Builds a data array of the given shape.
+	 */
+	private static myDataArray payload(int lines, int lineBytes) {
+		myDataArray data = new myDataArray();
+		data.lines = new String[Math.max(lines, 1)];
+		for (int i = 0; i < lines; i++) {
+			StringBuilder line = new StringBuilder(lineBytes + 16);
+			line.append(i);
+			for (int w = i; line.length() < lineBytes; w++) {
+				line.append(' ').append(WORDS[w % WORDS.length]);
+			}
+			line.setLength(lineBytes);
+			data.lines[i] = line.toString();
+		}
+		data.num_lines = lines;
+		return data;
+	}
+
+	/**
+	 * Runs every client through its messages over one codec.
+	 */
+	private static Result run(final String codec, int clients, final int messages, final myDataArray data) throws Exception {
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch go = new CountDownLatch(1);
+		final long[][] latencies = new long[clients][];
+		final long[] allocated = new long[clients];
+		final Exception[] failure = new Exception[1];
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int c = 0; c < clients; c++) {
+			final int client = c;
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ready.countDown();
+						go.await();
+						long before = allocatedBytes(Thread.currentThread().getId());
+						latencies[client] = drive(codec, messages, data);
+						allocated[client] = allocatedBytes(Thread.currentThread().getId()) - before;
+					}
+					catch (Exception ex) {
+						synchronized (failure) {
+							failure[0] = ex;
+						}
+					}
+				}
+			}, "bench-client-" + c);
+			workers.add(worker);
+			worker.start();
+		}
+		ready.await();
+		long serverBefore = serverAllocatedBytes();
+		long start = System.nanoTime();
+		go.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		Result result = new Result();
+		result.nanos = System.nanoTime() - start;
+		result.serverBytes = serverAllocatedBytes() - serverBefore;
+		if (failure[0] != null) {
+			throw new IOException(codec + " run failed", failure[0]);
+		}
+		int total = 0;
+		for (long[] l : latencies) {
+			total += l.length;
+		}
+		result.latencies = new long[total];
+		int at = 0;
+		for (int c = 0; c < clients; c++) {
+			System.arraycopy(latencies[c], 0, result.latencies, at, latencies[c].length);
+			at += latencies[c].length;
+			result.clientBytes += allocated[c];
+		}
+		Arrays.sort(result.latencies);
+		return result;
+	}
+
+	/**
+	 * Sends the messages over a codec from the calling thread.
+	 * @return acknowledgment latency of each message in nanoseconds.
+	 */
+	private static long[] drive(String codec, int messages, myDataArray data) throws IOException, InterruptedException {
+		final long[] latencies = new long[messages];
+		if ("xml".equals(codec)) {
+			for (int i = 0; i < messages; i++) {
+				long start = System.nanoTime();
+				sendXml(BCSerializer.toXML(data));
+				latencies[i] = System.nanoTime() - start;
+			}
+		}
+		else if ("binary".equals(codec)) {
+			for (int i = 0; i < messages; i++) {
+				long start = System.nanoTime();
+				if (BCCodec.send("localhost", port, data) == null) {
+					throw new IOException("Server refused the binary format.");
+				}
+				latencies[i] = System.nanoTime() - start;
+			}
+		}
+		else if ("session".equals(codec) || "deflate".equals(codec)) {
+			// Latency runs from send to the cumulative ack covering the message.
+			final long[] sentAt = new long[messages + 1];
+			BCSession session = new BCSession("localhost", port, BCSession.DEFAULT_WINDOW);
+			session.setAckListener(new BCSession.AckListener() {
+				/** Highest sequence already timed. */
+				private long timed;
+
+				@Override
+				public void acked(long sequence) {
+					long now = System.nanoTime();
+					for (long s = timed + 1; s <= sequence; s++) {
+						latencies[(int) s - 1] = now - sentAt[(int) s];
+					}
+					timed = Math.max(timed, sequence);
+				}
+			});
+			if (!session.open()) {
+				throw new IOException("Server does not support back channel sessions.");
+			}
+			boolean deflate = "deflate".equals(codec);
+			for (int i = 1; i <= messages; i++) {
+				sentAt[i] = System.nanoTime();
+				session.send(data, deflate);
+			}
+			session.close();
+		}
+		else {
+			throw new IllegalArgumentException("Unknown codec: " + codec);
+		}
+		return latencies;
+	}
+
+	/**
+	 * Sends one XML document & waits for the acknowledgment line, as BCClient.sendToBC.
+	 */
+	private static void sendXml(String xml) throws IOException {
+		Socket sock = new Socket("localhost", port);
+		try {
+			PrintStream toServer = new PrintStream(sock.getOutputStream());
+			BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			toServer.print(xml);
+			toServer.println(System.getProperty("line.separator") + "end_of_xml");
+			toServer.flush();
+			if (fromServer.readLine() == null) {
+				throw new IOException("Back channel closed before acknowledgment.");
+			}
+		}
+		finally {
+			sock.close();
+		}
+	}
+
+	/**
+	 * Bytes allocated by a thread so far, 0 when the JVM cannot tell.
+	 */
+	private static long allocatedBytes(long threadId) {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return Math.max(((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId), 0);
+		}
+		return 0;
+	}
+
+	/**
+	 * Bytes allocated so far by the server's back channel workers.
+	 */
+	private static long serverAllocatedBytes() {
+		Thread[] all = new Thread[Thread.activeCount() * 2 + 16];
+		int count = Thread.enumerate(all);
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			if (all[i].getName().startsWith(SERVER_THREADS)) {
+				total += allocatedBytes(all[i].getId());
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Saves the results & compares them with a baseline, as asked by system properties.
+	 */
+	private static void compare(PrintStream console, Properties results) throws IOException {
+		String save = System.getProperty("bench.save");
+		if (save != null) {
+			OutputStream out = new FileOutputStream(save);
+			try {
+				results.store(out, "BCBenchmark results");
+			}
+			finally {
+				out.close();
+			}
+			console.println("Saved results to " + save);
+		}
+		String baselineFile = System.getProperty("bench.baseline");
+		if (baselineFile == null) {
+			return;
+		}
+		Properties baseline = new Properties();
+		InputStream in = new FileInputStream(baselineFile);
+		try {
+			baseline.load(in);
+		}
+		finally {
+			in.close();
+		}
+		console.println("Change from baseline " + baselineFile + ":");
+		List<String> keys = new ArrayList<String>(results.stringPropertyNames());
+		Collections.sort(keys);
+		for (String key : keys) {
+			String was = baseline.getProperty(key);
+			if (was == null) {
+				continue;
+			}
+			double before = Double.parseDouble(was);
+			double now = Double.parseDouble(results.getProperty(key));
+			console.println(String.format("  %-22s %12.0f -> %12.0f  %+7.1f%%", key, before, now,
+				(before == 0) ? 0.0 : (now - before) * 100 / before));
+		}
+	}
+
+	/**
+	 * Deletes the scratch ingest log.
+	 */
+	private static void deleteLog(File logDir) {
+		File[] files = logDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		logDir.delete();
+	}
+
+	/**
+	 * Measurements of one run.
+	 */
+	private static class Result {
+		/** Wall time. */
+		long nanos;
+
+		/** Acknowledgment latencies in nanoseconds, sorted. */
+		long[] latencies;
+
+		/** Bytes allocated by the client threads. */
+		long clientBytes;
+
+		/** Bytes allocated by the server's back channel workers. */
+		long serverBytes;
+
+		/**
+		 * Latency percentile in microseconds.
+		 */
+		long percentile(int percent) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(latencies.length * percent / 100.0) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*--------------------------------------------------------
+BCBulk.java
+Bulk ingest of records through the back channel.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Run from BCClient:
+java -cp %clspath% BCClient [server name] -bulk [file, or - for stdin]
+
+Each input line is a record. Records are grouped into batches, one myDataArray per batch, which is
+sent when it reaches bulk.records records or bulk.bytes bytes, or when its oldest record has waited
+bulk.latency milliseconds. Batches travel pipelined on a back channel session (see BCSession.java)
+& are deflated with -Dbulk.deflate=true when the server supports it. Failed sends are retried
+bulk.retries times with doubling backoff; the session resends anything unacknowledged.
+At the end the sustained records/sec & bytes/sec are printed.
+
+System properties (defaults):
+  bulk.records  1000     records per batch
+  bulk.bytes    262144   record bytes per batch
+  bulk.latency  200      milliseconds a record may wait for its batch to fill
+  bulk.deflate  false    compress batches
+  bulk.retries  5        attempts per batch before giving up
+
+----------------------------------------------------------*/
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches records from a reader & streams them through the back channel.
+ * @author Joseph Sackett
+ */
+class BCBulk {
+	/** Records per batch. */
+	private static final int RECORDS = Integer.getInteger("bulk.records", 1000);
+
+	/** Record bytes per batch. */
+	private static final int BYTES = Integer.getInteger("bulk.bytes", 256 * 1024);
+
+	/** Milliseconds a record may wait for its batch to fill. */
+	private static final long LATENCY = Long.getLong("bulk.latency", 200);
+
+	/** Compress batches. */
+	private static final boolean DEFLATE = Boolean.getBoolean("bulk.deflate");
+
+	/** Attempts per batch before giving up. */
+	private static final int RETRIES = Integer.getInteger("bulk.retries", 5);
+
+	/** First retry delay in milliseconds, doubled per attempt. */
+	private static final long BACKOFF = 100;
+
+	/** Longest retry delay in milliseconds. */
+	private static final long MAX_BACKOFF = 5000;
+
+	/** Marks the end of input on the record queue; compared by identity. */
+	private static final String END = new String("end of input");
+
+	/** Back channel server. */
+	private String serverName;
+
+	/** Back channel port. */
+	private int port;
+
+	/** Session carrying the batches, null when the server does not support sessions. */
+	private BCSession session;
+
+	/** Records sent. */
+	private long records;
+
+	/** Record bytes sent, counting a line separator per record. */
+	private long bytes;
+
+	/** Batches sent. */
+	private long batches;
+
+	/** Frame bytes of batches sent one per connection to servers without sessions. */
+	private long singleBytes;
+
+	BCBulk(String serverName, int port) {
+		this.serverName = serverName;
+		this.port = port;
+	}
+
+	/**
+	 * Sends every record of the source, waits for the server to acknowledge them all & prints throughput.
+	 */
+	void run(final BufferedReader source) throws IOException {
+		// Read on a thread of its own so a batch goes out on time even while the source is quiet.
+		final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(Math.max(RECORDS, 1) * 4);
+		final IOException[] readFailure = new IOException[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = source.readLine()) != null) {
+						queue.put(line);
+					}
+				}
+				catch (IOException ex) {
+					readFailure[0] = ex;
+				}
+				catch (InterruptedException ex) {
+					return;
+				}
+				try {
+					queue.put(END);
+				}
+				catch (InterruptedException ex) {}
+			}
+		}, "bc-bulk-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		openSession();
+		long start = System.nanoTime();
+		try {
+			List<String> batch = new ArrayList<String>();
+			long batchBytes = 0;
+			long deadline = 0;
+			while (true) {
+				String record;
+				if (batch.isEmpty()) {
+					record = queue.take();
+					deadline = System.currentTimeMillis() + LATENCY;
+				}
+				else {
+					record = queue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				}
+				if (record == END) {
+					break;
+				}
+				if (record != null) {
+					batch.add(record);
+					batchBytes += record.getBytes(BCCodec.UTF8).length + 1;
+				}
+				if (record == null || batch.size() >= RECORDS || batchBytes >= BYTES) {
+					sendBatch(batch, batchBytes);
+					batch.clear();
+					batchBytes = 0;
+				}
+			}
+			if (!batch.isEmpty()) {
+				sendBatch(batch, batchBytes);
+			}
+			finish();
+		}
+		catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted during bulk send.");
+		}
+		if (readFailure[0] != null) {
+			System.out.println("Input ended early: " + readFailure[0]);
+		}
+
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		long wire = (session != null) ? session.getBytesSent() : singleBytes;
+		System.out.println("Sent " + records + " records in " + batches + " batches, " + bytes + " bytes ("
+			+ wire + " on the wire) in " + String.format("%.3f", seconds) + " s.");
+		System.out.println(String.format("Sustained %.0f records/sec, %.0f bytes/sec.", records / seconds, bytes / seconds));
+	}
+
+	/**
+	 * Opens the session, retrying while the server is unreachable.
+	 */
+	private void openSession() throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				BCSession opened = new BCSession(serverName, port, BCSession.DEFAULT_WINDOW);
+				if (opened.open()) {
+					session = opened;
+				}
+				else {
+					System.out.println("Server does not support back channel sessions, sending each batch on its own connection.");
+				}
+				return;
+			}
+			catch (IOException ex) {
+				backoff(attempt, ex);
+			}
+		}
+	}
+
+	/**
+	 * Sends one batch as a myDataArray, retrying with backoff.
+	 */
+	private void sendBatch(List<String> batch, long batchBytes) throws IOException {
+		myDataArray data = new myDataArray();
+		data.lines = batch.toArray(new String[batch.size()]);
+		data.num_lines = data.lines.length;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				if (session != null) {
+					session.send(data, DEFLATE);
+				}
+				else {
+					if (BCCodec.send(serverName, port, data) == null) {
+						throw new IOException("Bulk mode needs the binary back channel; the server only speaks XML.");
+					}
+					singleBytes += BCCodec.encode(data).length;
+				}
+				break;
+			}
+			catch (IOException ex) {
+				backoff(attempt, ex);
+			}
+		}
+		records += batch.size();
+		bytes += batchBytes;
+		batches++;
+	}
+
+	/**
+	 * Waits for every batch to be acknowledged & closes the session, retrying with backoff.
+	 */
+	private void finish() throws IOException {
+		if (session == null) {
+			return;
+		}
+		for (int attempt = 1; ; attempt++) {
+			try {
+				session.close();
+				return;
+			}
+			catch (IOException ex) {
+				backoff(attempt, ex);
+			}
+		}
+	}
+
+	/**
+	 * Sleeps before the next attempt, or rethrows once the attempts are used up.
+	 */
+	private static void backoff(int attempt, IOException failure) throws IOException {
+		if (attempt >= RETRIES) {
+			throw failure;
+		}
+		long delay = Math.min(BACKOFF << (attempt - 1), MAX_BACKOFF);
+		if (failure instanceof BCCodec.BusyException) {
+			// A busy server says how long to back off.
+			delay = Math.max(delay, ((BCCodec.BusyException) failure).retryAfter);
+		}
+		System.out.println("Attempt " + attempt + " failed (" + failure.getMessage() + "), retrying in " + delay + " ms.");
+		try {
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted during backoff.");
+		}
+	}
+}
@@ -20,12 +20,15 @@ To run:
 - execute these commands:
 set clspath=[xstream lib path]\xstream-1.4.5.jar;[xstream lib path]\xpp3_min-1.1.4c.jar;[xstream lib path]\xmlpull-1.1.3.1.jar
 java -cp %clspath% BCClient
+- for bulk ingest of records, one per line, from a file or stdin (see BCBulk.java):
+java -cp %clspath% BCClient [server name] -bulk [file, or - for stdin]
 
 ----------------------------------------------------------------------*/
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -33,8 +36,6 @@ import java.io.PrintStream;
 import java.io.PrintWriter;  // Get the Input Output libraries
 import java.net.Socket; // Get the Java networking libraries
 
-import com.thoughtworks.xstream.XStream;
-
 /**
  * This is responsible for serializing to XML & sending to the back channel of custom mime type conversation.
  */
@@ -47,19 +48,31 @@ public class BCClient{
   	private static PrintWriter      toXmlOutputFile;
   	/** XML file into which the XML is echoed. */
   	private static File             xmlFile;
+  	/** Argument selecting bulk mode, followed by a file name or - for stdin. */
+  	private static final String BULK_ARG = "-bulk";
+  	/** Back channel session carrying every message, null until first used. */
+  	private static BCSession        session;
+  	/** Cleared once the server turns out not to support sessions. */
+  	private static boolean          sessionSupported = true;
 
   	public static void main (String args[]) {
   		// Server name to connect back channel, localhost default
-  		String serverName;
-  		if (args.length < 1) {
-  			serverName = "localhost";
+  		String serverName = "localhost";
+  		// Bulk mode source file, "-" for stdin, null when interactive.
+  		String bulkSource = null;
+  		for (int i = 0; i < args.length; i++) {
+  			if (BULK_ARG.equals(args[i])) {
+  				bulkSource = (i + 1 < args.length) ? args[++i] : "-";
+  			}
+  			else {
+  				serverName = args[i];
+  			}
   		}
-  		else {
-  			serverName = args[0];
+  		if (bulkSource != null) {
+  			runBulk(serverName, bulkSource);
+  			return;
   		}
   		
-  		// XStream library object for flattening to XML & deserializing back to symbolic form.
-  		XStream xstream = new XStream();
   		// Symbolic for objects for flattening & testing deserialization.
   		myDataArray da = new myDataArray();
   		myDataArray daTest = new myDataArray();
@@ -79,16 +92,19 @@ public class BCClient{
   	  				// Fill data object.
   	  				da.lines[0] = "You "; da.lines[1] = "typed "; da.lines[2] = userData;
   	  				da.num_lines = 3;
-  	  				// Call XStream library method to flatten data object to XML.
-  	  				String xml = xstream.toXML(da);
+  	  				// Flatten data object to XML with the shared serializer.
+  	  				String xml = BCSerializer.toXML(da);
   					System.out.println("\n\nHere is the XML version:");
   					System.out.print(xml);
 	  
-  					// Send the XML through the back channel, to the server.
-  					sendToBC(xml, serverName);
+  					// Send through the back channel, to the server. Pipelined on the session when the server supports it,
+  					// else binary, else the XML.
+  					if (!sendSessionToBC(da, serverName) && !sendBinaryToBC(da, serverName)) {
+  						sendToBC(xml, serverName);
+  					}
   					
-  					// Call XStream library method to deserialize data from XML, back into symbolic form.
-  					daTest = (myDataArray) xstream.fromXML(xml);
+  					// Deserialize data from XML, back into symbolic form.
+  					daTest = BCSerializer.fromXML(xml);
   					System.out.println("\n\nHere is the deserialized data: ");
   					for(int i=0; i < daTest.num_lines; i++) {
   						System.out.println(daTest.lines[i]);
@@ -123,7 +139,100 @@ public class BCClient{
 			if (toXmlOutputFile != null) {
 				try {toXmlOutputFile.close();} catch (Exception ex) {}
 			}
+			closeSession();
+  		}
+  	}
+
+  	/**
+  	 * Bulk mode: send every line of the source as a record, batched & pipelined, then print throughput.
+  	 * @param serverName server to connect back channel.
+  	 * @param source file name, or "-" for stdin.
+  	 */
+  	static void runBulk (String serverName, String source){
+  		System.out.println("Bulk sending " + ("-".equals(source) ? "stdin" : source) + " to server: " + serverName + ", Port: 2570");
+  		BufferedReader in = null;
+  		try {
+  			in = "-".equals(source)
+  				? new BufferedReader(new InputStreamReader(System.in, BCCodec.UTF8))
+  				: new BufferedReader(new InputStreamReader(new FileInputStream(source), BCCodec.UTF8));
+  			new BCBulk(serverName, BC_PORT).run(in);
+  		} catch (IOException x) {
+  			x.printStackTrace ();
+  		}
+  		finally {
+  			if (in != null) {
+  				try {in.close();} catch (IOException ex) {}
+  			}
+  		}
+  	}
+
+  	/**
+  	 * Send the data as the next message of the back channel session, without waiting for its acknowledgment.
+  	 * Opens the session on first use.
+  	 * @param data data to send.
+  	 * @param serverName server to connect back channel.
+  	 * @return false when the server does not support sessions, so the caller should send singly instead.
+  	 */
+  	static boolean sendSessionToBC (myDataArray data, String serverName){
+  		try {
+  			if (session == null) {
+  				if (!sessionSupported) {
+  					return false;
+  				}
+  				BCSession opened = new BCSession(serverName, BC_PORT, BCSession.DEFAULT_WINDOW);
+  				if (!opened.open()) {
+  					System.out.println("Server does not support back channel sessions.");
+  					sessionSupported = false;
+  					return false;
+  				}
+  				session = opened;
+  			}
+  			long sequence = session.send(data);
+  			System.out.println("Sent message " + sequence + ", acknowledged through " + session.getLastAcked() + ".");
+  		} catch (IOException x) {
+  			// Unacknowledged messages stay queued & are resent when the session reconnects.
+  			System.out.println ("Socket error.");
+  			x.printStackTrace ();
+  		}
+  		return true;
+  	}
+
+  	/**
+  	 * Wait for outstanding session acknowledgments & close the session.
+  	 */
+  	static void closeSession (){
+  		if (session == null) {
+  			return;
+  		}
+  		try {
+  			session.close();
+  			System.out.println("Back channel session acknowledged through " + session.getLastAcked() + ".");
+  		} catch (IOException x) {
+  			System.out.println ("Socket error.");
+  			x.printStackTrace ();
+  		}
+  		session = null;
+  	}
+
+  	/**
+  	 * Send the data through the back channel in the binary format.
+  	 * @param data data to send.
+  	 * @param serverName server to connect back channel.
+  	 * @return false when the server only speaks XML, so the caller should send XML instead.
+  	 */
+  	static boolean sendBinaryToBC (myDataArray data, String serverName){
+  		try {
+  			String textFromServer = BCCodec.send(serverName, BC_PORT, data);
+  			if (textFromServer == null) {
+  				System.out.println("Server does not support the binary back channel, sending XML.");
+  				return false;
+  			}
+  			System.out.println(textFromServer);
+  		} catch (IOException x) {
+  			System.out.println ("Socket error.");
+  			x.printStackTrace ();
   		}
+  		return true;
   	}
 
   	/**
@@ -0,0 +1,483 @@
+/*--------------------------------------------------------
+BCCodec.java
+Binary wire format for the Mimer back channel.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+A connection opens with a header line in each direction:
+  client: MIMER-BC/[highest version it speaks]
+  server: MIMER-BC/[version both sides will use]
+A server that only understands XML answers with something else, so the client falls back to XStream XML.
+
+After the headers, each side sends frames:
+  [type: 1 byte][payload length: varint][payload]
+DATA_ARRAY payload (a myDataArray):
+  [num_lines: varint][string table size: varint]
+  [for each distinct string: UTF-8 length varint, UTF-8 bytes]
+  [for each line: varint index into the string table + 1, 0 for null]
+ACK & ERROR payloads are UTF-8 text.
+Version 2 adds the OPEN, OFFSET, CHUNK & END frames of chunked transfers, described in BCTransfer.java.
+Version 3 adds the SESSION, MESSAGE & ACKED frames of pipelined sessions, described in BCSession.java.
+Version 4 adds DEFLATED_MESSAGE, a MESSAGE whose DATA_ARRAY payload is deflate (zlib) compressed.
+Version 5 adds BUSY, sent by a server with no worker free right after its header, before closing:
+  [milliseconds to wait before retrying: varint][UTF-8 text]
+Older clients are sent an ERROR frame instead.
+A server closes connections that have been idle a while, freeing their workers. Clients close an idle
+connection sooner themselves & reconnect when next needed.
+
+Varints are unsigned LEB128: 7 bits per byte, low group first, high bit set on all but the last byte.
+
+----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes & decodes back channel frames & negotiates the binary format on a connection.
+ * @author Joseph Sackett
+ */
+class BCCodec {
+	/**
+	 * Highest wire format version spoken here.
+	 * Version 2 adds chunked transfers (see BCTransfer.java), version 3 pipelined sessions (see BCSession.java),
+	 * version 4 compressed session messages, version 5 busy replies.
+	 */
+	static final int VERSION = 5;
+
+	/** First version supporting chunked transfers. */
+	static final int CHUNKED_VERSION = 2;
+
+	/** First version supporting pipelined sessions. */
+	static final int SESSION_VERSION = 3;
+
+	/** First version supporting compressed session messages. */
+	static final int DEFLATE_VERSION = 4;
+
+	/** First version understanding busy replies. */
+	static final int BUSY_VERSION = 5;
+
+	/** Header line prefix identifying a binary back channel connection. */
+	static final String MAGIC = "MIMER-BC/";
+
+	/** Frame carrying a myDataArray. */
+	static final int DATA_ARRAY = 1;
+
+	/** Frame acknowledging receipt. */
+	static final int ACK = 2;
+
+	/** Frame reporting a rejected frame. */
+	static final int ERROR = 3;
+
+	/** Frame opening or resuming a chunked transfer. */
+	static final int OPEN = 4;
+
+	/** Frame reporting how much of a transfer the server holds. */
+	static final int OFFSET = 5;
+
+	/** Frame carrying one checksummed chunk of a transfer. */
+	static final int CHUNK = 6;
+
+	/** Frame completing a transfer. */
+	static final int END = 7;
+
+	/** Frame naming the session a connection continues. */
+	static final int SESSION = 8;
+
+	/** Frame carrying a sequenced myDataArray. */
+	static final int MESSAGE = 9;
+
+	/** Frame acknowledging every message up to a sequence number. */
+	static final int ACKED = 10;
+
+	/** Frame carrying a sequenced, deflated myDataArray. */
+	static final int DEFLATED_MESSAGE = 11;
+
+	/** Frame telling the client the server is too busy & when to retry. */
+	static final int BUSY = 12;
+
+	/** Milliseconds a client keeps an idle connection, below the server's default idle timeout. */
+	static final int CLIENT_IDLE = 20000;
+
+	/** Largest frame payload accepted. */
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	/** Longest header line accepted. */
+	private static final int MAX_HEADER = 32;
+
+	/** Wire character set for strings. */
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Header character set. */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * One decoded frame.
+	 */
+	static class Frame {
+		/** Frame type. */
+		final int type;
+
+		/** Frame payload. */
+		final byte[] payload;
+
+		Frame(int type, byte[] payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+
+		/** Payload as text, for ACK & ERROR frames. */
+		String text() {
+			return new String(payload, UTF8);
+		}
+	}
+
+	/**
+	 * Raised when the server is too busy to take the connection.
+	 */
+	static class BusyException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		/** Milliseconds the server asked the client to wait before retrying. */
+		final int retryAfter;
+
+		BusyException(String message, int retryAfter) {
+			super(message);
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * Decodes a BUSY frame.
+		 */
+		static BusyException from(Frame busy) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(busy.payload));
+			int retryAfter = readVarint(in);
+			byte[] text = new byte[in.available()];
+			in.readFully(text);
+			return new BusyException(new String(text, UTF8), retryAfter);
+		}
+	}
+
+	/**
+	 * Writes a BUSY frame, or an ERROR frame for clients older than version 5.
+	 */
+	static void writeBusy(DataOutputStream out, int version, int retryAfter, String text) throws IOException {
+		if (version < BUSY_VERSION) {
+			writeFrame(out, ERROR, (text + ", retry after " + retryAfter + " ms").getBytes(UTF8));
+			return;
+		}
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream payloadOut = new DataOutputStream(payload);
+		writeVarint(payloadOut, retryAfter);
+		payloadOut.write(text.getBytes(UTF8));
+		writeFrame(out, BUSY, payload.toByteArray());
+	}
+
+	/**
+	 * Checks whether a connection starts with the binary header, without consuming anything.
+	 */
+	static boolean detect(BufferedInputStream in) throws IOException {
+		byte[] magic = MAGIC.getBytes(ASCII);
+		in.mark(magic.length);
+		try {
+			for (byte expected : magic) {
+				if (in.read() != expected) {
+					return false;
+				}
+			}
+			return true;
+		}
+		finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Writes a header line offering or accepting a version.
+	 */
+	static void writeHeader(OutputStream out, int version) throws IOException {
+		out.write((MAGIC + version + "\n").getBytes(ASCII));
+		out.flush();
+	}
+
+	/**
+	 * Reads the peer's header line. Returns its version, or -1 when the peer did not answer with a binary header.
+	 */
+	static int readHeader(InputStream in) throws IOException {
+		StringBuilder headerBuilder = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n' && headerBuilder.length() < MAX_HEADER) {
+			headerBuilder.append((char) c);
+		}
+		String header = headerBuilder.toString().trim();
+		if (!header.startsWith(MAGIC)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(header.substring(MAGIC.length()));
+		}
+		catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes one frame. Callers flush.
+	 */
+	static void writeFrame(DataOutputStream out, int type, byte[] payload) throws IOException {
+		out.writeByte(type);
+		writeVarint(out, payload.length);
+		out.write(payload);
+	}
+
+	/**
+	 * Reads one frame. Returns null at a clean end of stream between frames.
+	 */
+	static Frame readFrame(DataInputStream in) throws IOException {
+		int type = in.read();
+		if (type == -1) {
+			return null;
+		}
+		int length = readVarint(in);
+		if (length > MAX_FRAME) {
+			throw new IOException("Back channel frame too large: " + length);
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(type, payload);
+	}
+
+	/**
+	 * Encodes a myDataArray with a string table, so repeated lines are sent once.
+	 */
+	static byte[] encode(myDataArray data) throws IOException {
+		Map<String,Integer> tableIndex = new HashMap<String,Integer>();
+		List<String> table = new ArrayList<String>();
+		int[] refs = new int[data.num_lines];
+		for (int i = 0; i < data.num_lines; i++) {
+			String line = data.lines[i];
+			if (line == null) {
+				continue;
+			}
+			Integer index = tableIndex.get(line);
+			if (index == null) {
+				index = table.size();
+				tableIndex.put(line, index);
+				table.add(line);
+			}
+			refs[i] = index + 1;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeVarint(out, data.num_lines);
+		writeVarint(out, table.size());
+		for (String entry : table) {
+			byte[] utf8 = entry.getBytes(UTF8);
+			writeVarint(out, utf8.length);
+			out.write(utf8);
+		}
+		for (int ref : refs) {
+			writeVarint(out, ref);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a DATA_ARRAY payload.
+	 */
+	static myDataArray decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int numLines = readVarint(in);
+		int tableSize = readVarint(in);
+		// Every line & table entry takes at least one byte.
+		if (numLines > payload.length || tableSize > payload.length) {
+			throw new IOException("Corrupt back channel data.");
+		}
+		String[] table = new String[tableSize];
+		for (int i = 0; i < tableSize; i++) {
+			int length = readVarint(in);
+			if (length > payload.length) {
+				throw new IOException("Corrupt back channel data.");
+			}
+			byte[] utf8 = new byte[length];
+			in.readFully(utf8);
+			table[i] = new String(utf8, UTF8);
+		}
+		myDataArray data = new myDataArray();
+		data.num_lines = numLines;
+		if (numLines > data.lines.length) {
+			data.lines = new String[numLines];
+		}
+		for (int i = 0; i < numLines; i++) {
+			int ref = readVarint(in);
+			if (ref > tableSize) {
+				throw new IOException("Corrupt back channel data.");
+			}
+			data.lines[i] = (ref == 0) ? null : table[ref - 1];
+		}
+		return data;
+	}
+
+	/**
+	 * Deflates a payload.
+	 */
+	static byte[] deflate(byte[] payload) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Inflates a deflated payload, refusing anything that expands beyond MAX_FRAME.
+	 */
+	static byte[] inflate(byte[] payload, int start) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(payload, start, payload.length - start);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated compressed back channel data.");
+				}
+				out.write(buffer, 0, n);
+				if (out.size() > MAX_FRAME) {
+					throw new IOException("Compressed back channel data expands too far.");
+				}
+			}
+			return out.toByteArray();
+		}
+		catch (DataFormatException ex) {
+			throw new IOException("Corrupt compressed back channel data.", ex);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint.
+	 */
+	static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint of at most 32 bits.
+	 */
+	static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException("End of stream inside varint.");
+			}
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IOException("Varint out of range.");
+				}
+				return value;
+			}
+		}
+		throw new IOException("Varint too long.");
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint of up to 63 bits.
+	 */
+	static void writeVarlong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint of up to 63 bits.
+	 */
+	static long readVarlong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 63; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException("End of stream inside varint.");
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Varint too long.");
+	}
+
+	/**
+	 * Sends one myDataArray over the binary format & waits for its acknowledgment.
+	 * Returns the acknowledgment text, or null when the server does not speak the binary format so the caller can fall back to XML.
+	 */
+	static String send(String serverName, int port, myDataArray data) throws IOException {
+		Socket sock = new Socket(serverName, port);
+		try {
+			InputStream in = new BufferedInputStream(sock.getInputStream());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			// Offer our version; an XML only server answers with an error line instead.
+			writeHeader(out, VERSION);
+			int version = readHeader(in);
+			if (version < 1) {
+				return null;
+			}
+			writeFrame(out, DATA_ARRAY, encode(data));
+			out.flush();
+			Frame reply = readFrame(new DataInputStream(in));
+			if (reply == null) {
+				throw new EOFException("Back channel closed before acknowledgment.");
+			}
+			if (reply.type == BUSY) {
+				throw BusyException.from(reply);
+			}
+			if (reply.type == ERROR) {
+				throw new IOException("Back channel rejected data: " + reply.text());
+			}
+			return reply.text();
+		}
+		finally {
+			try {sock.close();} catch (IOException ex) {}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*--------------------------------------------------------
+BCConnection.java
+Reusable binary back channel connection.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Holds one negotiated connection to the back channel port open across many transfers, so a long
+running client (the BCHandler daemon) pays for the connect & header exchange once. A broken
+connection is reopened on the next use; interrupted transfers resume where the server left off.
+A connection left idle is reopened too, since the server will have closed it to free its worker.
+
+----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+
+/**
+ * Persistent, reconnecting binary back channel connection. One transfer runs at a time.
+ * @author Joseph Sackett
+ */
+class BCConnection {
+	/** Connection attempts before a transfer gives up. */
+	private static final int ATTEMPTS = 3;
+
+	/** Back channel server. */
+	private String serverName;
+
+	/** Back channel port. */
+	private int port;
+
+	/** Open socket, null when disconnected. Guarded by this. */
+	private Socket sock;
+
+	/** Frame input. Guarded by this. */
+	private DataInputStream in;
+
+	/** Frame output. Guarded by this. */
+	private DataOutputStream out;
+
+	/** Version agreed with the server, -1 when it only speaks XML. Guarded by this. */
+	private int version;
+
+	/** When the connection was last used. Guarded by this. */
+	private long lastUsed;
+
+	BCConnection(String serverName, int port) {
+		this.serverName = serverName;
+		this.port = port;
+	}
+
+	/**
+	 * Opens & negotiates the connection unless already open.
+	 * @return the agreed version, or -1 when the server only speaks XML (the connection is then closed).
+	 */
+	synchronized int connect() throws IOException {
+		if (sock != null) {
+			if (System.currentTimeMillis() - lastUsed < BCCodec.CLIENT_IDLE) {
+				return version;
+			}
+			close();
+		}
+		sock = new Socket(serverName, port);
+		sock.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), BCTransfer.CHUNK_SIZE + 16));
+		BCCodec.writeHeader(out, BCCodec.VERSION);
+		version = BCCodec.readHeader(in);
+		if (version < 1) {
+			close();
+			return -1;
+		}
+		lastUsed = System.currentTimeMillis();
+		return version;
+	}
+
+	/**
+	 * Sends a file as a chunked transfer, reconnecting & resuming after failures.
+	 * @return the acknowledgment text, or null when the server does not support chunked transfers.
+	 */
+	synchronized String transfer(File file, int kind) throws IOException {
+		IOException failure = null;
+		String id = BCTransfer.newId();
+		for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+			try {
+				if (connect() < BCCodec.CHUNKED_VERSION) {
+					close();
+					return null;
+				}
+				String ack = BCTransfer.transfer(in, out, id, file, kind);
+				lastUsed = System.currentTimeMillis();
+				return ack;
+			}
+			catch (IOException ex) {
+				failure = ex;
+				System.out.println("Transfer attempt " + attempt + " failed: " + ex.getMessage());
+				close();
+				if (ex instanceof BCCodec.BusyException && attempt < ATTEMPTS) {
+					pause(((BCCodec.BusyException) ex).retryAfter);
+				}
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Waits as long as a busy server asked before the next attempt.
+	 */
+	private static void pause(int millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted waiting on a busy back channel.");
+		}
+	}
+
+	/**
+	 * Closes the connection; the next use reopens it.
+	 */
+	synchronized void close() {
+		if (sock != null) {
+			try {sock.close();} catch (IOException ex) {}
+		}
+		sock = null;
+		in = null;
+		out = null;
+	}
+}
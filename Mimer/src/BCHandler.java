@@ -25,7 +25,16 @@ To run:
 - associate a file shim.bat with the custom file extension to be handled.
 - shim.bat need only contain these commands:
 set clspath=[path to BCHandler.class];[xstream lib path]\xstream-1.4.5.jar;[xstream lib path]\xpp3_min-1.1.4c.jar;[xstream lib path]\xmlpull-1.1.3.1.jar
-java -cp %clspath% -Dfirstarg=%1 BCHandler
+java -cp %clspath% -Dfirstarg=%1 BCLaunch
+- BCLaunch hands the file to a resident BCHandler daemon, starting one on first use, so later files skip
+  XStream loading, & files in quick succession the back channel connect. To run the daemon by hand:
+java -cp %clspath% BCHandler -daemon [server name]
+- The daemon only sends .xyz files under the download directory, the temporary directory unless set
+  with -Dbc.downloadDir=[directory], & only for launchers holding the token it writes to a file in the
+  user's home directory readable by that user alone, so other local users cannot make it send files.
+  A daemon that fails to start leaves a marker beside the token file, & BCLaunch handles files in process
+  rather than starting another daemon until the marker is 10 minutes old (set with -Dbc.respawnBackoff=[ms]).
+- Running BCHandler directly, as before, still handles a single file in process.
 
 Included Files:
 - mimer-discussion.html 
@@ -33,6 +42,15 @@ Included Files:
 - BCClient.java 
 - MyWebServer.java 
 - BCHandler.java
+- BCCodec.java
+- BCSerializer.java
+- BCTransfer.java
+- BCConnection.java
+- BCLaunch.java
+- BCSession.java
+- BCBulk.java
+- IngestLog.java
+- BCBenchmark.java
 - serverlog.txt 
 - checklist-mimer.html
 - MimeTypes.txt <-- Necessary for configuring supported mime types at startup.
@@ -48,10 +66,23 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;  // Get the Input Output libraries
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.Socket; // Get the Java networking libraries
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Properties;
-
-import com.thoughtworks.xstream.XStream;
+import java.util.Set;
 
 /**
  * This is responsible for serializing to XML & sending to the back channel of custom mime type conversation.
@@ -59,6 +90,14 @@ import com.thoughtworks.xstream.XStream;
 public class BCHandler{
 	/** Back channel port number. */
 	private static final int BC_PORT = 2570;
+	/** Local port the resident daemon takes file names on. */
+	static final int DAEMON_PORT = 2571;
+	/** Argument selecting daemon mode. */
+	static final String DAEMON_ARG = "-daemon";
+	/** Extension of the mime data files handled. */
+	private static final String EXTENSION = ".xyz";
+	/** Directory under which the daemon accepts files, where the browser saves downloads it opens. */
+	private static final File DOWNLOAD_DIR = new File(System.getProperty("bc.downloadDir", System.getProperty("java.io.tmpdir")));
 	/** Line Separator. */
 	private static final String LINE_SEP = System.getProperty("line.separator");
 	/** File name into which the XML is echoed. */
@@ -71,6 +110,12 @@ public class BCHandler{
   	private static BufferedReader fromMimeDataFile;
 
   	public static void main (String args[]) {
+  		// Resident daemon mode: BCHandler -daemon [server name]
+  		if (args.length > 0 && DAEMON_ARG.equals(args[0])) {
+  			runDaemon((args.length < 2) ? "localhost" : args[1]);
+  			return;
+  		}
+  		
   		// Server name to connect back channel, localhost default
   		String serverName;
   		if (args.length < 1) {
@@ -88,31 +133,180 @@ public class BCHandler{
 		// Get the environment variable containing the temporary filename.
 		String fileName = props.getProperty("firstarg");
 		System.out.println("File name: " + fileName);
-  
+		
+		BCConnection connection = new BCConnection(serverName, BC_PORT);
+		try {
+			handleFile(fileName, serverName, connection);
+		}
+		finally {
+			connection.close();
+		}
+  	}
+
+  	/**
+  	 * Run as a resident daemon: keep the serializer warm & reuse the back channel connection while files keep coming,
+  	 * handling file names sent by BCLaunch over a local socket, one at a time.
+  	 * @param serverName server to connect back channel.
+  	 */
+  	static void runDaemon (String serverName) {
+  		System.out.println("Starting the BCHandler daemon on local port " + DAEMON_PORT + ".");
+  		System.out.println("Server name: " + serverName + ", Port: 2540 / 2570");
+  		// Connects on the first file; an idle connection is let go so it does not hold a server worker.
+  		BCConnection connection = new BCConnection(serverName, BC_PORT);
+  		
+  		ServerSocket listener = null;
+  		boolean started = false;
   		try {
-  			// Create reader for temporary file containing mime data from server.
-  			fromMimeDataFile = new BufferedReader(new FileReader(fileName));
-  			
-  			// Read mime date from temporary file into myDataArray object.
-  			myDataArray input = new myDataArray();
-  			int i = 0;
-  			// Reads the lines from the file (seven at most).
-  			while(((input.lines[i++] = fromMimeDataFile.readLine())!= null) && i < 8){
-  				System.out.println("Data is: " + input.lines[i-1]);
+  			BCSerializer.init();
+  			// Only local launchers may hand over files, & only those that can read the token.
+  			listener = new ServerSocket(DAEMON_PORT, 50, InetAddress.getByName(null));
+  			String token = writeToken();
+  			started = true;
+  			BCLaunch.FAILED_FILE.delete();
+  			while (true) {
+  				Socket launcher = listener.accept();
+  				try {
+  					BufferedReader fromLauncher = new BufferedReader(new InputStreamReader(launcher.getInputStream(), "UTF-8"));
+  					PrintStream toLauncher = new PrintStream(launcher.getOutputStream(), true, "UTF-8");
+  					String launcherToken = fromLauncher.readLine();
+  					String fileName = fromLauncher.readLine();
+  					if (launcherToken == null || !token.equals(launcherToken)) {
+  						System.out.println("Refused a launcher without the daemon token.");
+  						toLauncher.println("Error: not authorized.");
+  					}
+  					else if (fileName != null && !isDownload(new File(fileName))) {
+  						System.out.println("Refused file outside the download directory: " + fileName);
+  						toLauncher.println("Error: only " + EXTENSION + " files under " + DOWNLOAD_DIR + " are sent.");
+  					}
+  					else if (fileName != null) {
+  						System.out.println("File name: " + fileName);
+  						toLauncher.println(handleFile(fileName, serverName, connection));
+  					}
+  				} catch (IOException x) {
+  					x.printStackTrace ();
+  				}
+  				finally {
+  					try {launcher.close();} catch (IOException ex) {}
+  				}
+  			}
+  		} catch (IOException x) {
+  			x.printStackTrace ();
+  		}
+  		finally {
+  			if (listener != null) {
+  				try {listener.close();} catch (IOException ex) {}
+  			}
+  			connection.close();
+  			if (started) {
+  				BCLaunch.TOKEN_FILE.delete();
+  			}
+  			else {
+  				// Tells launchers not to start another daemon that would only fail the same way.
+  				try {
+  					BCLaunch.FAILED_FILE.createNewFile();
+  					BCLaunch.FAILED_FILE.setLastModified(System.currentTimeMillis());
+  				} catch (IOException x) {}
+  			}
+  		}
+  	}
+
+  	/**
+  	 * Writes a fresh random token to the token file, first making it readable by this user alone:
+  	 * owner only POSIX permissions where supported, else an ACL granting the owner alone (Windows).
+  	 * Where neither is supported the file is left to the home directory's protection.
+  	 * @return the token launchers must send.
+  	 */
+  	private static String writeToken() throws IOException {
+  		byte[] random = new byte[16];
+  		new SecureRandom().nextBytes(random);
+  		StringBuilder token = new StringBuilder();
+  		for (byte b : random) {
+  			token.append(String.format("%02x", b & 0xff));
+  		}
+  		File tokenFile = BCLaunch.TOKEN_FILE;
+  		Path tokenPath = tokenFile.toPath();
+  		Files.deleteIfExists(tokenPath);
+  		Set<String> views = FileSystems.getDefault().supportedFileAttributeViews();
+  		if (views.contains("posix")) {
+  			Files.createFile(tokenPath, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+  		}
+  		else {
+  			Files.createFile(tokenPath);
+  			if (views.contains("acl")) {
+  				// Still empty, so nothing leaks before the owner only ACL replaces the inherited one.
+  				AclFileAttributeView acl = Files.getFileAttributeView(tokenPath, AclFileAttributeView.class);
+  				AclEntry owner = AclEntry.newBuilder()
+  					.setType(AclEntryType.ALLOW)
+  					.setPrincipal(acl.getOwner())
+  					.setPermissions(EnumSet.allOf(AclEntryPermission.class))
+  					.build();
+  				acl.setAcl(Collections.singletonList(owner));
+  			}
+  		}
+  		PrintWriter writer = new PrintWriter(new FileWriter(tokenFile));
+  		try {
+  			writer.println(token);
+  		}
+  		finally {
+  			writer.close();
+  		}
+  		return token.toString();
+  	}
+
+  	/**
+  	 * Whether a file is a mime data file the browser downloaded: an existing .xyz file under the download directory.
+  	 * Links & .. are resolved first, so neither can reach outside it.
+  	 */
+  	private static boolean isDownload(File file) throws IOException {
+  		File canonical = file.getCanonicalFile();
+  		if (!canonical.isFile() || !canonical.getName().toLowerCase().endsWith(EXTENSION)) {
+  			return false;
+  		}
+  		File downloads = DOWNLOAD_DIR.getCanonicalFile();
+  		for (File parent = canonical.getParentFile(); parent != null; parent = parent.getParentFile()) {
+  			if (parent.equals(downloads)) {
+  				return true;
+  			}
+  		}
+  		return false;
+  	}
+
+  	/**
+  	 * Send one downloaded mime data file through the back channel & echo the result to the XML echo file.
+  	 * @param fileName temporary file containing mime data from server.
+  	 * @param serverName server to connect back channel.
+  	 * @param connection binary back channel connection, reused across files by the daemon.
+  	 * @return the server's acknowledgment or an error description.
+  	 */
+  	static String handleFile (String fileName, String serverName, BCConnection connection) {
+  		String result;
+  		try {
+  			// Stream the whole file through the back channel as checksummed chunks, resuming if interrupted.
+  			String echo;
+  			int kind = Boolean.getBoolean("bc.blocks") ? BCTransfer.BLOCKS : BCTransfer.LINES;
+  			String textFromServer = connection.transfer(new File(fileName), kind);
+  			if (textFromServer != null) {
+  				System.out.println(textFromServer);
+  				echo = "Sent " + fileName + " (" + new File(fileName).length() + " bytes) as a chunked transfer: " + textFromServer;
+  				result = textFromServer;
   			}
-  			// Set num_lines to length of buffer.
-  			input.num_lines = i - 1;
-  			System.out.println("num_lines is: " + input.num_lines);
-
-  			// XStream library object for flattening to XML & deserializing back to symbolic form.
-			XStream xstream = new XStream();
-			// Call XStream library method to flatten data object to XML.
-			String xml = xstream.toXML(input);
-			System.out.println("XML output:");
-			System.out.println(xml);
+  			else {
+  				// Servers without chunked transfers take the lines as one myDataArray.
+  				myDataArray input = readDataArray(fileName);
+  				System.out.println("num_lines is: " + input.num_lines);
+
+				// Flatten data object to XML with the shared serializer.
+				String xml = BCSerializer.toXML(input);
+				System.out.println("XML output:");
+				System.out.println(xml);
   
-			// Send the XML through the back channel, to the server.
-			sendToBC(xml, serverName);
+				// Send through the back channel, to the server. Binary when the server supports it, else the XML.
+				if (!sendBinaryToBC(input, serverName)) {
+					sendToBC(xml, serverName);
+				}
+				echo = xml;
+				result = "Sent " + input.num_lines + " lines to a server without chunked transfers.";
+  			}
 				
 			// Create File object for XML echo file.
 			xmlFile = new File(XMLfileName);
@@ -127,19 +321,63 @@ public class BCHandler{
 			}
 			// Create writer for XML echo file.
 			toXmlOutputFile = new PrintWriter(new BufferedWriter(new FileWriter(XMLfileName)));
-			// Echo XML to file.
-			toXmlOutputFile.println(xml);
+			// Echo XML or transfer summary to file.
+			toXmlOutputFile.println(echo);
   		} catch (IOException x) {
   			x.printStackTrace ();
+  			result = "Error: " + x;
   		}
   		finally {
 			if (fromMimeDataFile != null) {
 				try {fromMimeDataFile.close();} catch (Exception ex) {}
+				fromMimeDataFile = null;
 			}
 			if (toXmlOutputFile != null) {
 				try {toXmlOutputFile.close();} catch (Exception ex) {}
+				toXmlOutputFile = null;
 			}
   		}
+  		return result;
+  	}
+
+  	/**
+  	 * Read every line of the downloaded mime data into a myDataArray, growing its buffer as needed.
+  	 * @param fileName temporary file containing mime data from server.
+  	 */
+  	static myDataArray readDataArray (String fileName) throws IOException {
+  		// Create reader for temporary file containing mime data from server.
+  		fromMimeDataFile = new BufferedReader(new FileReader(fileName));
+  		myDataArray input = new myDataArray();
+  		String line;
+  		while ((line = fromMimeDataFile.readLine()) != null) {
+  			if (input.num_lines == input.lines.length) {
+  				input.lines = Arrays.copyOf(input.lines, input.lines.length * 2);
+  			}
+  			input.lines[input.num_lines++] = line;
+  			System.out.println("Data is: " + line);
+  		}
+  		return input;
+  	}
+
+  	/**
+  	 * Send the data through the back channel in the binary format.
+  	 * @param data data to send.
+  	 * @param serverName server to connect back channel.
+  	 * @return false when the server only speaks XML, so the caller should send XML instead.
+  	 */
+  	static boolean sendBinaryToBC (myDataArray data, String serverName){
+  		try {
+  			String textFromServer = BCCodec.send(serverName, BC_PORT, data);
+  			if (textFromServer == null) {
+  				System.out.println("Server does not support the binary back channel, sending XML.");
+  				return false;
+  			}
+  			System.out.println(textFromServer);
+  		} catch (IOException x) {
+  			System.out.println ("Socket error.");
+  			x.printStackTrace ();
+  		}
+  		return true;
   	}
 
   	/**
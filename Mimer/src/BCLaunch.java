@@ -0,0 +1,132 @@
+/*--------------------------------------------------------
+BCLaunch.java
+Launcher for the resident BCHandler daemon.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Called from shim.bat in place of BCHandler:
+java -cp %clspath% -Dfirstarg=%1 BCLaunch [server name]
+
+Passes the downloaded file name to the BCHandler daemon over a local socket, with the token the daemon
+wrote to its token file to show it runs as the same user, & prints its reply.
+It loads nothing beyond a few JDK classes, so it starts quickly. When no daemon is running it starts
+one in the background for later files & handles this file in process. After a daemon fails to start
+it handles files in process without starting another until bc.respawnBackoff ms (10 minutes) pass.
+
+----------------------------------------------------------*/
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands a downloaded mime data file to the BCHandler daemon.
+ * @author Joseph Sackett
+ */
+public class BCLaunch {
+	/** Log file for a daemon started by the launcher. */
+	private static final String DAEMON_LOG = "BCHandler-daemon.log";
+
+	/** File holding the running daemon's token, readable by its user alone. */
+	static final File TOKEN_FILE = new File(System.getProperty("user.home"), ".bchandler-daemon");
+
+	/** Marker left by a daemon that failed to start; removed by the next one that starts. */
+	static final File FAILED_FILE = new File(System.getProperty("user.home"), ".bchandler-daemon.failed");
+
+	/** How long after a failed start no new daemon is started, in ms. */
+	private static final long RESPAWN_BACKOFF = Long.getLong("bc.respawnBackoff", 10 * 60 * 1000L);
+
+	public static void main(String[] args) {
+		String fileName = System.getProperty("firstarg");
+		if (fileName == null) {
+			System.out.println("Usage: java -Dfirstarg=[file] BCLaunch [server name]");
+			return;
+		}
+		// The daemon may run in another directory.
+		fileName = new File(fileName).getAbsolutePath();
+
+		Socket sock = null;
+		try {
+			String token = readToken();
+			sock = new Socket(InetAddress.getByName(null), BCHandler.DAEMON_PORT);
+			PrintStream toDaemon = new PrintStream(sock.getOutputStream(), true, "UTF-8");
+			BufferedReader fromDaemon = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+			toDaemon.println(token);
+			toDaemon.println(fileName);
+			String reply = fromDaemon.readLine();
+			System.out.println((reply != null) ? reply : "BCHandler daemon closed without replying.");
+			return;
+		}
+		catch (IOException ex) {
+			System.out.println("No BCHandler daemon running.");
+		}
+		finally {
+			if (sock != null) {
+				try {sock.close();} catch (IOException ex) {}
+			}
+		}
+
+		long sinceFailure = System.currentTimeMillis() - FAILED_FILE.lastModified();
+		if (FAILED_FILE.exists() && sinceFailure < RESPAWN_BACKOFF) {
+			System.out.println("BCHandler daemon failed to start " + (sinceFailure / 1000) + " s ago, see "
+					+ new File(System.getProperty("java.io.tmpdir"), DAEMON_LOG) + "; handling the file in process.");
+		}
+		else {
+			System.out.println("Starting a BCHandler daemon for later files.");
+			startDaemon(args);
+		}
+		BCHandler.main(args);
+	}
+
+	/**
+	 * Reads the running daemon's token; a missing token file means no daemon is running.
+	 */
+	private static String readToken() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(TOKEN_FILE));
+		try {
+			String token = reader.readLine();
+			if (token == null) {
+				throw new IOException("Empty daemon token file.");
+			}
+			return token;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Starts a BCHandler daemon in the background with this launcher's class path & download directory.
+	 */
+	private static void startDaemon(String[] args) {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		if (System.getProperty("bc.downloadDir") != null) {
+			command.add("-Dbc.downloadDir=" + System.getProperty("bc.downloadDir"));
+		}
+		command.add("BCHandler");
+		command.add(BCHandler.DAEMON_ARG);
+		if (args.length > 0) {
+			command.add(args[0]);
+		}
+		try {
+			new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(new File(System.getProperty("java.io.tmpdir"), DAEMON_LOG))
+				.start();
+		}
+		catch (IOException ex) {
+			System.out.println("Could not start the BCHandler daemon: " + ex);
+		}
+	}
+}
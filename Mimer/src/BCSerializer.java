@@ -0,0 +1,94 @@
+/*--------------------------------------------------------
+BCSerializer.java
+Shared XStream serializer for the Mimer back channel.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Building an XStream instance sets up its reflection provider, converter lookup & alias tables,
+which costs far more than serializing one myDataArray. Once configured, an XStream instance is
+thread safe for toXML & fromXML, so one shared instance serves the server & the clients.
+
+Only the types making up a myDataArray may be deserialized; any other class named in the XML is rejected.
+
+----------------------------------------------------------*/
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import com.thoughtworks.xstream.mapper.Mapper;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+/**
+ * Holds the configured & warmed XStream instance used for back channel XML.
+ * @author Joseph Sackett
+ */
+class BCSerializer {
+	/** Classes that back channel XML may instantiate. */
+	private static final Set<Class<?>> ALLOWED_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			myDataArray.class, String.class, String[].class, int.class, Integer.class, Mapper.Null.class));
+
+	/** Shared instance, configured & warmed when first used. */
+	private static final XStream XSTREAM = create();
+
+	/**
+	 * Builds an XStream instance restricted to the allowed types & runs a round trip through it,
+	 * so reflection & converter caches are filled before the first real message.
+	 */
+	static XStream create() {
+		XStream xstream = new XStream() {
+			@Override
+			protected MapperWrapper wrapMapper(MapperWrapper next) {
+				return new MapperWrapper(next) {
+					@Override
+					@SuppressWarnings("rawtypes")
+					public Class realClass(String elementName) {
+						Class type = super.realClass(elementName);
+						if (!ALLOWED_TYPES.contains(type)) {
+							throw new CannotResolveClassException("Type not allowed on back channel: " + elementName);
+						}
+						return type;
+					}
+				};
+			}
+		};
+		xstream.alias("myDataArray", myDataArray.class);
+
+		// Warm up.
+		myDataArray sample = new myDataArray();
+		sample.lines[0] = "warm";
+		sample.num_lines = 1;
+		xstream.fromXML(xstream.toXML(sample));
+		return xstream;
+	}
+
+	/**
+	 * Forces configuration & warm up of the shared instance at startup, so the first message doesn't pay for it.
+	 */
+	static void init() {
+		XSTREAM.getMapper();
+	}
+
+	/**
+	 * Flattens data to XML.
+	 */
+	static String toXML(myDataArray data) {
+		return XSTREAM.toXML(data);
+	}
+
+	/**
+	 * Deserializes XML back into a myDataArray.
+	 * @throws XStreamException if the XML is invalid or holds anything other than a myDataArray.
+	 */
+	static myDataArray fromXML(String xml) {
+		Object result = XSTREAM.fromXML(xml);
+		if (!(result instanceof myDataArray)) {
+			throw new XStreamException("Back channel XML is not a myDataArray.");
+		}
+		return (myDataArray) result;
+	}
+}
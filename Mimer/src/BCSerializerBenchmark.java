@@ -0,0 +1,74 @@
+/*--------------------------------------------------------
+BCSerializerBenchmark.java
+Measures the per message cost of back channel XML serialization.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Compares building a new XStream for each message, as the back channel used to, with the shared BCSerializer.
+Each message is one toXML & one fromXML of a myDataArray.
+
+To run:
+java -cp %clspath% BCSerializerBenchmark [messages (default 2000)]
+
+----------------------------------------------------------*/
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Times XStream construction per message against the shared serializer.
+ * @author Joseph Sackett
+ */
+public class BCSerializerBenchmark {
+	/** Default messages per measurement. */
+	private static final int DEFAULT_MESSAGES = 2000;
+
+	/** Result sink so the work is not optimized away. */
+	private static int sink;
+
+	public static void main(String[] args) {
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+		myDataArray data = new myDataArray();
+		data.lines[0] = "You ";
+		data.lines[1] = "typed ";
+		data.lines[2] = "some back channel data";
+		data.num_lines = 3;
+
+		System.out.println("Back channel serializer benchmark, " + messages + " messages per run.");
+		// Warm up both paths before measuring.
+		runPerMessage(data, messages / 10 + 1);
+		runShared(data, messages / 10 + 1);
+
+		long perMessage = runPerMessage(data, messages);
+		long shared = runShared(data, messages);
+		System.out.printf("new XStream per message: %8.1f us/message%n", perMessage / 1000.0 / messages);
+		System.out.printf("shared BCSerializer:     %8.1f us/message%n", shared / 1000.0 / messages);
+		System.out.printf("speedup:                 %8.1fx%n", (double) perMessage / Math.max(1, shared));
+	}
+
+	/**
+	 * Serializes & deserializes with a freshly built XStream each message. Returns elapsed ns.
+	 */
+	private static long runPerMessage(myDataArray data, int messages) {
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			String xml = new XStream().toXML(data);
+			myDataArray result = (myDataArray) new XStream().fromXML(xml);
+			sink += result.num_lines;
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Serializes & deserializes with the shared serializer. Returns elapsed ns.
+	 */
+	private static long runShared(myDataArray data, int messages) {
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			String xml = BCSerializer.toXML(data);
+			myDataArray result = BCSerializer.fromXML(xml);
+			sink += result.num_lines;
+		}
+		return System.nanoTime() - start;
+	}
+}
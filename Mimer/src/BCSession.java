@@ -0,0 +1,375 @@
+/*--------------------------------------------------------
+BCSession.java
+Pipelined back channel session carrying many messages on one connection.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Frames (BCCodec version 3, varints as in BCCodec.java):
+  client SESSION  [session id: 8 bytes]  sent first on every connection of the session.
+  client MESSAGE  [sequence: varlong][DATA_ARRAY payload]
+  client DEFLATED_MESSAGE  [sequence: varlong][deflated DATA_ARRAY payload]  version 4 on.
+  server ACKED    [sequence: varlong]  every message up to & including this sequence is processed.
+
+Sequences start at 1 & increase by one per message. The client keeps up to a window of messages
+in flight without waiting; a reader thread takes the cumulative acks & reopens the window.
+The server acks once it has drained what the client has sent, or every half window, so a burst
+of messages costs a single ack.
+
+If the connection breaks, the next send reconnects, names the same session & resends every
+unacknowledged message in order. The server remembers the last sequence processed for each
+session while it is connected & for a while after, & acks duplicates without processing them again.
+
+----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Client side of a pipelined back channel session. Thread safe.
+ * @author Joseph Sackett
+ */
+class BCSession {
+	/** Default messages in flight. */
+	static final int DEFAULT_WINDOW = 64;
+
+	/** Messages the server takes before acknowledging, even while more are waiting. */
+	static final int ACK_EVERY = DEFAULT_WINDOW / 2;
+
+	/** Back channel server. */
+	private String serverName;
+
+	/** Back channel port. */
+	private int port;
+
+	/** Messages allowed in flight. */
+	private int window;
+
+	/** Identifies this session across reconnects. */
+	private long sessionId = new Random().nextLong();
+
+	/** Open socket, null when disconnected. Guarded by this. */
+	private Socket sock;
+
+	/** Frame output. Guarded by this. */
+	private DataOutputStream out;
+
+	/** Last sequence assigned. Guarded by this. */
+	private long lastSent;
+
+	/** Highest sequence acknowledged. Guarded by this. */
+	private long lastAcked;
+
+	/** Version agreed on the current or last connection. Guarded by this. */
+	private int version;
+
+	/** Messages sent but not yet acknowledged, by sequence. Guarded by this. */
+	private SortedMap<Long,Message> unacked = new TreeMap<Long,Message>();
+
+	/** Frame bytes of every message queued, counted once however often resent. Guarded by this. */
+	private long bytesSent;
+
+	/** Told of each acknowledgment, null for none. */
+	private volatile AckListener ackListener;
+
+	/** Why the connection failed, null while healthy. Guarded by this. */
+	private IOException failure;
+
+	BCSession(String serverName, int port, int window) {
+		this.serverName = serverName;
+		this.port = port;
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * Opens the first connection.
+	 * @return false when the server does not support sessions, so the caller should send messages singly.
+	 */
+	synchronized boolean open() throws IOException {
+		return connect();
+	}
+
+	/**
+	 * Connects, names the session & resends any unacknowledged messages. Caller holds the lock.
+	 */
+	private boolean connect() throws IOException {
+		Socket newSock = new Socket(serverName, port);
+		try {
+			newSock.setTcpNoDelay(true);
+			// The reader closes a connection left idle, releasing the server's worker; the next send reconnects.
+			newSock.setSoTimeout(BCCodec.CLIENT_IDLE);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(newSock.getInputStream()));
+			DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(newSock.getOutputStream()));
+			BCCodec.writeHeader(newOut, BCCodec.VERSION);
+			int agreed = BCCodec.readHeader(in);
+			if (agreed < BCCodec.SESSION_VERSION) {
+				newSock.close();
+				return false;
+			}
+			ByteArrayOutputStream id = new ByteArrayOutputStream();
+			new DataOutputStream(id).writeLong(sessionId);
+			BCCodec.writeFrame(newOut, BCCodec.SESSION, id.toByteArray());
+			for (Map.Entry<Long,Message> message : unacked.entrySet()) {
+				writeMessage(newOut, message.getKey(), message.getValue());
+			}
+			newOut.flush();
+
+			version = agreed;
+			sock = newSock;
+			out = newOut;
+			failure = null;
+			Thread reader = new Thread(new AckReader(newSock, in), "bc-session-acks");
+			reader.setDaemon(true);
+			reader.start();
+			return true;
+		}
+		catch (IOException ex) {
+			try {newSock.close();} catch (IOException ignored) {}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reconnects after a failure, first giving a busy server the time it asked for. Caller holds the lock.
+	 */
+	private void reconnect() throws IOException {
+		if (failure instanceof BCCodec.BusyException) {
+			long until = System.currentTimeMillis() + ((BCCodec.BusyException) failure).retryAfter;
+			failure = null;
+			for (long left = until - System.currentTimeMillis(); left > 0; left = until - System.currentTimeMillis()) {
+				try {
+					wait(left);
+				}
+				catch (InterruptedException ex) {
+					throw new InterruptedIOException("Interrupted waiting on a busy back channel.");
+				}
+			}
+			if (sock != null) {
+				// Another sender reconnected meanwhile.
+				return;
+			}
+		}
+		if (!connect()) {
+			throw new IOException("Server no longer supports back channel sessions.");
+		}
+	}
+
+	/**
+	 * Sends a message without waiting for its acknowledgment, blocking only while the window is full.
+	 * @return the message's sequence number.
+	 */
+	synchronized long send(myDataArray data) throws IOException {
+		return send(data, false);
+	}
+
+	/**
+	 * Sends a message without waiting for its acknowledgment, blocking only while the window is full.
+	 * Once queued, a message is resent until acknowledged, so an exception means it was not queued & may be sent again.
+	 * @param deflate compress the message when the server supports it.
+	 * @return the message's sequence number.
+	 */
+	synchronized long send(myDataArray data, boolean deflate) throws IOException {
+		byte[] payload = BCCodec.encode(data);
+		waitFor(window - 1);
+		Message message = (deflate && version >= BCCodec.DEFLATE_VERSION)
+			? new Message(BCCodec.DEFLATED_MESSAGE, BCCodec.deflate(payload))
+			: new Message(BCCodec.MESSAGE, payload);
+		long sequence = ++lastSent;
+		unacked.put(sequence, message);
+		bytesSent += message.payload.length;
+		try {
+			if (sock == null) {
+				// Reconnecting resends everything unacknowledged, this message included.
+				reconnect();
+			}
+			else {
+				writeMessage(out, sequence, message);
+				out.flush();
+			}
+		}
+		catch (IOException ex) {
+			// Queued regardless; the next send or flush reconnects & resends it.
+			disconnect(ex);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Waits until every message sent has been acknowledged.
+	 */
+	synchronized void flush() throws IOException {
+		waitFor(0);
+	}
+
+	/**
+	 * Waits until at most the given number of messages are in flight, reconnecting after a failure. Caller holds the lock.
+	 */
+	private void waitFor(int inFlight) throws IOException {
+		while (unacked.size() > inFlight) {
+			if (sock == null) {
+				reconnect();
+				continue;
+			}
+			try {
+				wait();
+			}
+			catch (InterruptedException ex) {
+				throw new InterruptedIOException("Interrupted waiting for back channel acknowledgment.");
+			}
+			if (sock == null && failure != null) {
+				System.out.println("Back channel session reconnecting: " + failure.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Frame bytes of every message queued so far, after any compression.
+	 */
+	synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Sets a listener told of each cumulative acknowledgment, on the session's reader thread.
+	 */
+	void setAckListener(AckListener ackListener) {
+		this.ackListener = ackListener;
+	}
+
+	/**
+	 * Highest sequence acknowledged so far.
+	 */
+	synchronized long getLastAcked() {
+		return lastAcked;
+	}
+
+	/**
+	 * Closes the connection after waiting for outstanding acknowledgments.
+	 */
+	synchronized void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			disconnect(null);
+		}
+	}
+
+	/**
+	 * Drops the current connection, recording why. Caller holds the lock.
+	 */
+	private void disconnect(IOException cause) {
+		if (sock != null) {
+			try {sock.close();} catch (IOException ex) {}
+		}
+		sock = null;
+		out = null;
+		failure = cause;
+		notifyAll();
+	}
+
+	/**
+	 * Writes one MESSAGE frame.
+	 */
+	private static void writeMessage(DataOutputStream out, long sequence, Message message) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(message.payload.length + 10);
+		DataOutputStream frameOut = new DataOutputStream(frame);
+		BCCodec.writeVarlong(frameOut, sequence);
+		frameOut.write(message.payload);
+		BCCodec.writeFrame(out, message.type, frame.toByteArray());
+	}
+
+	/**
+	 * Told when the server acknowledges every message up to a sequence.
+	 */
+	interface AckListener {
+		void acked(long sequence);
+	}
+
+	/**
+	 * An encoded message awaiting acknowledgment.
+	 */
+	private static class Message {
+		/** MESSAGE or DEFLATED_MESSAGE. */
+		final int type;
+
+		/** Encoded, possibly deflated, data array. */
+		final byte[] payload;
+
+		Message(int type, byte[] payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Takes cumulative acknowledgments off one connection & reopens the window.
+	 */
+	private class AckReader implements Runnable {
+		/** Connection read. */
+		private Socket readSock;
+
+		/** Frame input. */
+		private DataInputStream in;
+
+		AckReader(Socket readSock, DataInputStream in) {
+			this.readSock = readSock;
+			this.in = in;
+		}
+
+		@Override
+		public void run() {
+			IOException cause;
+			try {
+				BCCodec.Frame frame;
+				while ((frame = BCCodec.readFrame(in)) != null) {
+					if (frame.type == BCCodec.ACKED) {
+						long sequence = BCCodec.readVarlong(new DataInputStream(new ByteArrayInputStream(frame.payload)));
+						synchronized (BCSession.this) {
+							unacked.headMap(sequence + 1).clear();
+							lastAcked = Math.max(lastAcked, sequence);
+							BCSession.this.notifyAll();
+						}
+						AckListener listener = ackListener;
+						if (listener != null) {
+							listener.acked(sequence);
+						}
+					}
+					else if (frame.type == BCCodec.BUSY) {
+						throw BCCodec.BusyException.from(frame);
+					}
+					else if (frame.type == BCCodec.ERROR) {
+						throw new IOException("Back channel rejected message: " + frame.text());
+					}
+				}
+				cause = new EOFException("Back channel closed the session.");
+			}
+			catch (SocketTimeoutException ex) {
+				// Idle, or the server stopped answering; either way reconnecting resends anything unacknowledged.
+				cause = null;
+			}
+			catch (IOException ex) {
+				cause = ex;
+			}
+			synchronized (BCSession.this) {
+				// A newer connection may already have replaced this one.
+				if (sock == readSock) {
+					disconnect(cause);
+				}
+			}
+		}
+	}
+}
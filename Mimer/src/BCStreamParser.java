@@ -0,0 +1,110 @@
+/*--------------------------------------------------------
+BCStreamParser.java
+Streaming parser for back channel XML.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+Reads the XStream form of a myDataArray straight from the connection with the XPP3 pull parser:
+  <myDataArray>
+    <num__lines>3</num__lines>
+    <lines>
+      <string>...</string>
+      <null/>
+    </lines>
+  </myDataArray>
+Each line is handed to a RecordHandler as soon as its element closes, so memory stays constant
+however many lines arrive. Parsing stops at the end of the root element, leaving the end_of_xml
+terminator unread. Any other element is rejected.
+
+----------------------------------------------------------*/
+import java.io.IOException;
+import java.io.Reader;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Pull parses myDataArray XML, emitting lines while parsing.
+ * @author Joseph Sackett
+ */
+class BCStreamParser {
+	/** Root element. */
+	private static final String ROOT = "myDataArray";
+
+	/** Line count element (XStream escapes the underscore). */
+	private static final String NUM_LINES = "num__lines";
+
+	/** Line array element. */
+	private static final String LINES = "lines";
+
+	/** Line element. */
+	private static final String STRING = "string";
+
+	/** Null line element. */
+	private static final String NULL = "null";
+
+	/**
+	 * Receives lines as they are parsed.
+	 */
+	interface RecordHandler {
+		/** Called for each line in order; line is null for a null entry. */
+		void record(int index, String line) throws IOException;
+	}
+
+	/**
+	 * Parses one myDataArray document from the reader.
+	 * @return the number of lines parsed.
+	 * @throws XmlPullParserException if the XML is malformed or is not a myDataArray.
+	 */
+	static int parse(Reader reader, RecordHandler handler) throws IOException, XmlPullParserException {
+		XmlPullParser parser = new MXParser();
+		parser.setInput(reader);
+
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, ROOT);
+		int declaredLines = -1;
+		int count = 0;
+		while (parser.nextTag() == XmlPullParser.START_TAG) {
+			String name = parser.getName();
+			if (NUM_LINES.equals(name)) {
+				try {
+					declaredLines = Integer.parseInt(parser.nextText().trim());
+				}
+				catch (NumberFormatException ex) {
+					throw new XmlPullParserException("Invalid " + NUM_LINES, parser, ex);
+				}
+			}
+			else if (LINES.equals(name)) {
+				while (parser.nextTag() == XmlPullParser.START_TAG) {
+					String line;
+					if (STRING.equals(parser.getName())) {
+						line = parser.nextText();
+					}
+					else if (NULL.equals(parser.getName())) {
+						parser.nextTag();
+						line = null;
+					}
+					else {
+						throw new XmlPullParserException("Unexpected element: " + parser.getName(), parser, null);
+					}
+					// Only slots up to num_lines hold data, as when printing a deserialized myDataArray.
+					if (declaredLines < 0 || count < declaredLines) {
+						handler.record(count, line);
+					}
+					count++;
+				}
+				parser.require(XmlPullParser.END_TAG, null, LINES);
+			}
+			else {
+				throw new XmlPullParserException("Unexpected element: " + name, parser, null);
+			}
+		}
+		// Stop at the root end tag; reading on would block for the terminator.
+		parser.require(XmlPullParser.END_TAG, null, ROOT);
+
+		return (declaredLines >= 0) ? Math.min(declaredLines, count) : count;
+	}
+}
@@ -0,0 +1,353 @@
+/*--------------------------------------------------------
+BCTransfer.java
+Chunked, resumable back channel transfers of downloaded MIME data.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+A transfer streams a whole file, of any size, as checksummed chunks over the binary back channel
+(BCCodec version 2), holding one chunk in memory at a time on either side.
+
+Frames (varints as in BCCodec.java):
+  client OPEN    [transfer id: varint length, UTF-8][total length: varlong][kind: 1 byte, 0 = lines, 1 = byte blocks]
+  server OFFSET  [offset: varlong]  bytes of this transfer the server already holds; the client resumes from there.
+  client CHUNK   [offset: varlong][CRC32 of the data: 4 bytes][data]
+  client END     [total length: varlong][CRC32 of the whole file: 4 bytes]
+  server ACK or ERROR
+A chunk with a bad checksum or an unexpected offset is answered with ERROR & the connection closes.
+The client then reconnects & resumes from the offset the server reports.
+
+Line transfers cut chunks at line ends, so each chunk holds whole lines unless a single line exceeds the chunk size.
+The transfer id is random, drawn by the client once per transfer & kept across its reconnects, so transfers
+from different clients never share a server side receiver, whatever their files.
+
+----------------------------------------------------------*/
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Sends files as chunked transfers & receives them on the server.
+ * @author Joseph Sackett
+ */
+class BCTransfer {
+	/** Transfer of text lines. */
+	static final int LINES = 0;
+
+	/** Transfer of raw byte blocks. */
+	static final int BLOCKS = 1;
+
+	/** Largest chunk of data sent in one frame. */
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Source of transfer ids. */
+	private static final SecureRandom random = new SecureRandom();
+
+	/** Incomplete transfers kept for resumption on the server. */
+	private static final int MAX_PENDING = 64;
+
+	/** Incomplete transfers on the server by id, least recently used first. Guarded by itself. */
+	private static final Map<String,Receiver> pending = new LinkedHashMap<String,Receiver>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Receiver> eldest) {
+			return size() > MAX_PENDING;
+		}
+	};
+
+	/**
+	 * Sends a file as a chunked transfer on a connection of its own, resuming after connection failures.
+	 * @return the acknowledgment text, or null when the server does not support chunked transfers.
+	 */
+	static String send(String serverName, int port, File file, int kind) throws IOException {
+		BCConnection connection = new BCConnection(serverName, port);
+		try {
+			return connection.transfer(file, kind);
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * New transfer id, to be used on every attempt of one transfer.
+	 */
+	static String newId() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder id = new StringBuilder();
+		for (byte b : bytes) {
+			id.append(String.format("%02x", b & 0xff));
+		}
+		return id.toString();
+	}
+
+	/**
+	 * Runs one attempt of a transfer on an open version 2 connection: open, resume from the server's offset,
+	 * stream chunks & finish.
+	 * @param id transfer id, the same on each attempt so later ones resume.
+	 * @return the acknowledgment text.
+	 */
+	static String transfer(DataInputStream frames, DataOutputStream out, String id, File file, int kind) throws IOException {
+		RandomAccessFile data = new RandomAccessFile(file, "r");
+		try {
+			long length = data.length();
+
+			// Open the transfer & learn where to resume.
+			ByteArrayOutputStream open = new ByteArrayOutputStream();
+			DataOutputStream openOut = new DataOutputStream(open);
+			byte[] idBytes = id.getBytes(BCCodec.UTF8);
+			BCCodec.writeVarint(openOut, idBytes.length);
+			openOut.write(idBytes);
+			BCCodec.writeVarlong(openOut, length);
+			openOut.writeByte(kind);
+			BCCodec.writeFrame(out, BCCodec.OPEN, open.toByteArray());
+			out.flush();
+			BCCodec.Frame reply = readReply(frames);
+			long offset = BCCodec.readVarlong(new DataInputStream(new ByteArrayInputStream(reply.payload)));
+			if (offset > length) {
+				offset = 0;
+			}
+			if (offset > 0) {
+				System.out.println("Resuming transfer at offset " + offset + " of " + length + ".");
+			}
+
+			// The whole file checksum covers the part the server already holds, too.
+			byte[] buffer = new byte[CHUNK_SIZE];
+			CRC32 fileCrc = new CRC32();
+			data.seek(0);
+			for (long done = 0; done < offset; ) {
+				int n = data.read(buffer, 0, (int) Math.min(buffer.length, offset - done));
+				if (n == -1) {
+					throw new EOFException("File shrank during transfer.");
+				}
+				fileCrc.update(buffer, 0, n);
+				done += n;
+			}
+
+			// Stream chunks, carrying any partial line over to the next chunk.
+			CRC32 chunkCrc = new CRC32();
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE + 16);
+			DataOutputStream chunkOut = new DataOutputStream(chunk);
+			int filled = 0;
+			boolean eof = false;
+			while (true) {
+				while (!eof && filled < buffer.length) {
+					int n = data.read(buffer, filled, buffer.length - filled);
+					if (n == -1) {
+						eof = true;
+					}
+					else {
+						filled += n;
+					}
+				}
+				if (filled == 0) {
+					break;
+				}
+				int size = filled;
+				if (kind == LINES && !eof) {
+					int cut = lastNewline(buffer, filled);
+					if (cut >= 0) {
+						size = cut + 1;
+					}
+				}
+				chunkCrc.reset();
+				chunkCrc.update(buffer, 0, size);
+				fileCrc.update(buffer, 0, size);
+				chunk.reset();
+				BCCodec.writeVarlong(chunkOut, offset);
+				chunkOut.writeInt((int) chunkCrc.getValue());
+				chunkOut.write(buffer, 0, size);
+				BCCodec.writeFrame(out, BCCodec.CHUNK, chunk.toByteArray());
+				offset += size;
+				System.arraycopy(buffer, size, buffer, 0, filled - size);
+				filled -= size;
+			}
+
+			// Finish with the totals the server checks the whole transfer against.
+			ByteArrayOutputStream end = new ByteArrayOutputStream();
+			DataOutputStream endOut = new DataOutputStream(end);
+			BCCodec.writeVarlong(endOut, offset);
+			endOut.writeInt((int) fileCrc.getValue());
+			BCCodec.writeFrame(out, BCCodec.END, end.toByteArray());
+			out.flush();
+			return readReply(frames).text();
+		}
+		finally {
+			try {data.close();} catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Reads the server's reply, turning ERROR & BUSY frames & early close into exceptions.
+	 */
+	static BCCodec.Frame readReply(DataInputStream frames) throws IOException {
+		BCCodec.Frame reply = BCCodec.readFrame(frames);
+		if (reply == null) {
+			throw new EOFException("Back channel closed before reply.");
+		}
+		if (reply.type == BCCodec.BUSY) {
+			throw BCCodec.BusyException.from(reply);
+		}
+		if (reply.type == BCCodec.ERROR) {
+			throw new IOException("Back channel rejected transfer: " + reply.text());
+		}
+		return reply;
+	}
+
+	/**
+	 * Index of the last newline in the buffer, or -1.
+	 */
+	private static int lastNewline(byte[] buffer, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (buffer[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Handles a record arriving on the server.
+	 */
+	interface RecordHandler {
+		/** A text line from a lines transfer. */
+		void line(String line) throws IOException;
+
+		/** A block of bytes from a blocks transfer, valid only during the call. */
+		void block(long offset, byte[] data, int start, int length) throws IOException;
+	}
+
+	/**
+	 * Server side state of one transfer: the offset received so far & the running checksum.
+	 */
+	static class Receiver {
+		/** Transfer id. */
+		final String id;
+
+		/** Declared total length. */
+		final long length;
+
+		/** Lines or blocks. */
+		final int kind;
+
+		/** Bytes received & checked. */
+		long offset;
+
+		/** Checksum of the bytes received. */
+		CRC32 crc = new CRC32();
+
+		/** Checksum of the current chunk. */
+		private CRC32 chunkCrc = new CRC32();
+
+		Receiver(String id, long length, int kind) {
+			this.id = id;
+			this.length = length;
+			this.kind = kind;
+		}
+
+		/**
+		 * Finds the pending transfer for an OPEN frame, or starts a new one.
+		 */
+		static Receiver open(byte[] payload) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			byte[] idBytes = new byte[BCCodec.readVarint(in)];
+			in.readFully(idBytes);
+			String id = new String(idBytes, BCCodec.UTF8);
+			long length = BCCodec.readVarlong(in);
+			int kind = in.readUnsignedByte();
+			synchronized (pending) {
+				Receiver receiver = pending.get(id);
+				if (receiver == null || receiver.length != length || receiver.kind != kind) {
+					receiver = new Receiver(id, length, kind);
+					pending.put(id, receiver);
+				}
+				return receiver;
+			}
+		}
+
+		/**
+		 * Checks a CHUNK frame & hands its records to the handler.
+		 * @return null when accepted, otherwise the reason for rejecting it.
+		 */
+		synchronized String chunk(byte[] payload, RecordHandler handler) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			long chunkOffset = BCCodec.readVarlong(in);
+			int expectedCrc = in.readInt();
+			int start = payload.length - in.available();
+			int size = payload.length - start;
+			if (chunkOffset != offset) {
+				return "Chunk at offset " + chunkOffset + ", expected " + offset;
+			}
+			if (offset + size > length) {
+				return "Chunk runs past the declared length " + length;
+			}
+			chunkCrc.reset();
+			chunkCrc.update(payload, start, size);
+			if ((int) chunkCrc.getValue() != expectedCrc) {
+				return "Checksum mismatch in chunk at offset " + chunkOffset;
+			}
+
+			if (kind == LINES) {
+				int lineStart = start;
+				for (int i = start; i < payload.length; i++) {
+					if (payload[i] == '\n') {
+						int end = (i > lineStart && payload[i - 1] == '\r') ? i - 1 : i;
+						handler.line(new String(payload, lineStart, end - lineStart, BCCodec.UTF8));
+						lineStart = i + 1;
+					}
+				}
+				if (lineStart < payload.length) {
+					handler.line(new String(payload, lineStart, payload.length - lineStart, BCCodec.UTF8));
+				}
+			}
+			else {
+				handler.block(chunkOffset, payload, start, size);
+			}
+			crc.update(payload, start, size);
+			offset += size;
+			return null;
+		}
+
+		/**
+		 * Checks an END frame against everything received & forgets the transfer.
+		 * @return null when complete & intact, otherwise the reason it is not.
+		 */
+		synchronized String end(byte[] payload) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			long total = BCCodec.readVarlong(in);
+			int expectedCrc = in.readInt();
+			if (total != offset || total != length) {
+				return "Transfer ended at " + total + " with " + offset + " of " + length + " bytes received";
+			}
+			if ((int) crc.getValue() != expectedCrc) {
+				forget();
+				return "Checksum mismatch over the whole transfer";
+			}
+			forget();
+			return null;
+		}
+
+		/**
+		 * Removes this transfer from the pending table.
+		 */
+		void forget() {
+			synchronized (pending) {
+				if (pending.get(id) == this) {
+					pending.remove(id);
+				}
+			}
+		}
+	}
+}
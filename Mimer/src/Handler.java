@@ -5,7 +5,7 @@ with modifications & extensive comments by Joseph Sackett
 
 Capture Environment Variables passed from .bat file through java.exe.
 
-Assuming the firstarg environment variable is a valid file name, read five lines
+Assuming the firstarg environment variable is a valid file name, read every line
 of data from the file, and display the data on the console.
 Also create the XML echo file and write some dummy data there.
 
@@ -58,16 +58,14 @@ public class Handler {
   			// Create reader for temporary file containing mime data from server.
   			fromMimeDataFile = new BufferedReader(new FileReader(argOne));
   			
-  			// Read mime date from temporary file into myDataArray object.
-  			myDataArray da = new myDataArray();
-  			int i = 0;
-  			// Only allows for five lines of data in input file plus safety:
-  			while(((da.lines[i++] = fromMimeDataFile.readLine())!= null) && i < 8){
-  				System.out.println("Data is: " + da.lines[i-1]);
+  			// Stream mime data from temporary file, line by line, counting the lines.
+  			int numLines = 0;
+  			String line;
+  			while((line = fromMimeDataFile.readLine()) != null){
+  				System.out.println("Data is: " + line);
+  				numLines++;
   			}
-  			// Set num_lines to length of buffer.
-  			da.num_lines = i-1;
-  			System.out.println("num_lines is: " + da.num_lines);
+  			System.out.println("num_lines is: " + numLines);
 
   			// Create File object for XML echo file.
   			xmlFile = new File(XMLfileName);
@@ -0,0 +1,556 @@
+/*--------------------------------------------------------
+IngestLog.java
+Durable, append-only log of back channel records.
+
+Joseph Sackett
+
+Developed and tested with JDK 1.7.0_40.
+
+MyWebServer appends every record received on the back channel (each line of a myDataArray, each line
+or block of a chunked transfer) before acknowledging it, so acknowledged data survives a restart.
+The log directory is set with -Dbc.log=[directory], default "ingest".
+
+Records are numbered from 0 by offset. The log is split into segments of about bc.log.segment bytes
+(default 64 MB), named by the offset of their first record:
+  [base offset, 20 digits].log  records: [length: 4 bytes][CRC32 of the data: 4 bytes][data]
+  [base offset, 20 digits].idx  sparse index, an entry about every 4 KB: [offset - base: 4 bytes][file position: 4 bytes]
+A record is durable once sync() covering its offset returns. Concurrent syncs share one fsync
+(group commit): the first caller forces everything appended so far while later callers wait for it.
+On open, the last segment is scanned & truncated after its last intact record, & its index is rebuilt.
+
+Readers memory map segments & use the index to start replay at any offset. To replay or tail a log,
+also while the server is appending to it:
+java -cp [path to IngestLog.class] IngestLog [directory] [from offset] [-f]
+
+----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented, checksummed, group committed append-only log. Thread safe.
+ * @author Joseph Sackett
+ */
+class IngestLog {
+	/** Segment size that triggers rolling to a new segment. */
+	static final int SEGMENT_BYTES = Integer.getInteger("bc.log.segment", 64 * 1024 * 1024);
+
+	/** Bytes of records between index entries. */
+	private static final int INDEX_INTERVAL = 4096;
+
+	/** Record header: length & checksum. */
+	private static final int HEADER = 8;
+
+	/** Largest record accepted. */
+	private static final int MAX_RECORD = BCCodec.MAX_FRAME;
+
+	/** Records buffered in memory before being written to the segment. */
+	private static final int WRITE_BUFFER = 64 * 1024;
+
+	/** Segment file suffix. */
+	private static final String LOG_SUFFIX = ".log";
+
+	/** Index file suffix. */
+	private static final String INDEX_SUFFIX = ".idx";
+
+	/** Character set of text records. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Log directory. */
+	private final File dir;
+
+	/** Active segment. Guarded by this. */
+	private FileChannel channel;
+
+	/** Index of the active segment. Guarded by this. */
+	private DataOutputStream index;
+
+	/** Offset of the active segment's first record. Guarded by this. */
+	private long base;
+
+	/** Bytes of the active segment, written or buffered. Guarded by this. */
+	private int position;
+
+	/** Position of the last index entry. Guarded by this. */
+	private int indexedPosition;
+
+	/** Appended records not yet written to the segment. Guarded by this. */
+	private ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER);
+
+	/** Checksum of the record being appended. Guarded by this. */
+	private CRC32 crc = new CRC32();
+
+	/** Offset the next record gets. Guarded by this. */
+	private long next;
+
+	/** Records below this offset are on disk. Guarded by this. */
+	private long durable;
+
+	/** True while a caller forces the segment outside the lock. Guarded by this. */
+	private boolean syncing;
+
+	private IngestLog(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Opens the log in the directory, creating it if needed & recovering the last segment after a crash.
+	 */
+	static IngestLog open(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create ingest log directory " + dir);
+		}
+		IngestLog log = new IngestLog(dir);
+		List<Long> bases = segments(dir);
+		if (bases.isEmpty()) {
+			log.openSegment(0);
+		}
+		else {
+			log.recover(bases.get(bases.size() - 1));
+		}
+		return log;
+	}
+
+	/**
+	 * Appends a text record.
+	 * @return its offset.
+	 */
+	long append(String line) throws IOException {
+		byte[] data = line.getBytes(UTF8);
+		return append(data, 0, data.length);
+	}
+
+	/**
+	 * Appends a record. It is durable only once sync() covering its offset returns.
+	 * @return its offset.
+	 */
+	synchronized long append(byte[] data, int start, int length) throws IOException {
+		if (length > MAX_RECORD) {
+			throw new IOException("Ingest record too large: " + length);
+		}
+		if (position > 0 && (long) position + HEADER + length > SEGMENT_BYTES) {
+			roll();
+		}
+		if (position - indexedPosition >= INDEX_INTERVAL) {
+			index.writeInt((int) (next - base));
+			index.writeInt(position);
+			indexedPosition = position;
+		}
+		crc.reset();
+		crc.update(data, start, length);
+		if (buffer.remaining() < HEADER + length) {
+			writeBuffer();
+		}
+		if (buffer.remaining() < HEADER + length) {
+			// Larger than the whole buffer: write it directly.
+			ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+			record.putInt(length).putInt((int) crc.getValue()).put(data, start, length).flip();
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+		}
+		else {
+			buffer.putInt(length).putInt((int) crc.getValue()).put(data, start, length);
+		}
+		position += HEADER + length;
+		return next++;
+	}
+
+	/**
+	 * Returns once every record up to & including the offset is on disk.
+	 * Concurrent callers share a single fsync.
+	 */
+	void sync(long offset) throws IOException {
+		while (true) {
+			FileChannel forcing;
+			long target;
+			synchronized (this) {
+				if (offset >= next) {
+					throw new IllegalArgumentException("Offset " + offset + " not yet appended.");
+				}
+				while (durable <= offset && syncing) {
+					try {
+						wait();
+					}
+					catch (InterruptedException ex) {
+						throw new InterruptedIOException("Interrupted waiting for ingest log sync.");
+					}
+				}
+				if (durable > offset) {
+					return;
+				}
+				// Lead this commit: everything appended so far goes in the same fsync.
+				writeBuffer();
+				syncing = true;
+				target = next;
+				forcing = channel;
+			}
+			boolean forced = false;
+			try {
+				forcing.force(false);
+				forced = true;
+			}
+			finally {
+				synchronized (this) {
+					syncing = false;
+					if (forced) {
+						durable = Math.max(durable, target);
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns once every record appended so far is on disk.
+	 */
+	void sync() throws IOException {
+		long last;
+		synchronized (this) {
+			last = next - 1;
+		}
+		sync(last);
+	}
+
+	/**
+	 * Offset after the last durable record.
+	 */
+	synchronized long durableEnd() {
+		return durable;
+	}
+
+	/**
+	 * Forces & closes the log.
+	 */
+	synchronized void close() throws IOException {
+		while (syncing) {
+			try {
+				wait();
+			}
+			catch (InterruptedException ex) {
+				throw new InterruptedIOException("Interrupted closing ingest log.");
+			}
+		}
+		try {
+			writeBuffer();
+			channel.force(false);
+			durable = next;
+		}
+		finally {
+			try {index.close();} catch (IOException ex) {}
+			try {channel.close();} catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Writes buffered records to the active segment. Caller holds the lock.
+	 */
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		index.flush();
+	}
+
+	/**
+	 * Seals the active segment & starts the next. Caller holds the lock.
+	 */
+	private void roll() throws IOException {
+		// A sync in progress still forces the sealed segment's channel.
+		while (syncing) {
+			try {
+				wait();
+			}
+			catch (InterruptedException ex) {
+				throw new InterruptedIOException("Interrupted rolling ingest log.");
+			}
+		}
+		writeBuffer();
+		channel.force(false);
+		durable = next;
+		notifyAll();
+		index.close();
+		channel.close();
+		openSegment(next);
+	}
+
+	/**
+	 * Creates & opens an empty segment. Caller holds the lock.
+	 */
+	private void openSegment(long newBase) throws IOException {
+		channel = new RandomAccessFile(segmentFile(dir, newBase, LOG_SUFFIX), "rw").getChannel();
+		channel.truncate(0);
+		index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile(dir, newBase, INDEX_SUFFIX))));
+		base = newBase;
+		next = newBase;
+		durable = newBase;
+		position = 0;
+		indexedPosition = 0;
+	}
+
+	/**
+	 * Reopens the last segment, truncating a torn record at its end & rebuilding its index.
+	 */
+	private void recover(long lastBase) throws IOException {
+		channel = new RandomAccessFile(segmentFile(dir, lastBase, LOG_SUFFIX), "rw").getChannel();
+		index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile(dir, lastBase, INDEX_SUFFIX))));
+		base = lastBase;
+		next = lastBase;
+		position = 0;
+		indexedPosition = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		while (position + HEADER <= size) {
+			header.clear();
+			channel.read(header, position);
+			header.flip();
+			int length = header.getInt();
+			int expectedCrc = header.getInt();
+			if (length < 0 || length > MAX_RECORD || position + HEADER + length > size) {
+				break;
+			}
+			ByteBuffer data = ByteBuffer.allocate(length);
+			while (data.hasRemaining() && channel.read(data, position + HEADER + data.position()) > 0) {}
+			crc.reset();
+			crc.update(data.array(), 0, length);
+			if ((int) crc.getValue() != expectedCrc) {
+				break;
+			}
+			if (position - indexedPosition >= INDEX_INTERVAL) {
+				index.writeInt((int) (next - base));
+				index.writeInt(position);
+				indexedPosition = position;
+			}
+			position += HEADER + length;
+			next++;
+		}
+		if (position < size) {
+			System.out.println("Ingest log: truncating " + (size - position) + " bytes of torn data after offset " + next + ".");
+			channel.truncate(position);
+		}
+		channel.position(position);
+		index.flush();
+		channel.force(true);
+		durable = next;
+	}
+
+	/**
+	 * Base offsets of the segments in the directory, ascending.
+	 */
+	private static List<Long> segments(File dir) {
+		List<Long> bases = new ArrayList<Long>();
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.endsWith(LOG_SUFFIX);
+			}
+		});
+		if (names != null) {
+			for (String name : names) {
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+				}
+				catch (NumberFormatException ex) {}
+			}
+		}
+		Collections.sort(bases);
+		return bases;
+	}
+
+	/**
+	 * File of a segment or its index.
+	 */
+	private static File segmentFile(File dir, long segmentBase, String suffix) {
+		return new File(dir, String.format("%020d", segmentBase) + suffix);
+	}
+
+	/**
+	 * Replays records from an offset through memory mapped segments. Not thread safe.
+	 * Reads what is on disk, so it works from another process too; records appended but not yet
+	 * synced may be read before they are durable.
+	 */
+	static class Reader {
+		/** Log directory. */
+		private final File dir;
+
+		/** Offset of the next record to read. */
+		private long next;
+
+		/** Base offset of the mapped segment. */
+		private long segmentBase = -1;
+
+		/** True when a later segment exists, so the mapped one is complete. */
+		private boolean sealed;
+
+		/** Mapped segment, positioned at the next record. */
+		private MappedByteBuffer map;
+
+		/** Checksum of the record read. */
+		private CRC32 crc = new CRC32();
+
+		Reader(File dir, long from) {
+			this.dir = dir;
+			this.next = from;
+		}
+
+		/**
+		 * Offset of the record the next call to next() returns.
+		 */
+		long offset() {
+			return next;
+		}
+
+		/**
+		 * Reads the next record.
+		 * @return the record, or null when the reader has caught up with the log.
+		 */
+		byte[] next() throws IOException {
+			if (!hasRecord()) {
+				seek();
+				if (!hasRecord()) {
+					return null;
+				}
+			}
+			int length = map.getInt();
+			int expectedCrc = map.getInt();
+			byte[] data = new byte[length];
+			map.get(data);
+			crc.reset();
+			crc.update(data, 0, length);
+			if ((int) crc.getValue() != expectedCrc) {
+				if (!sealed) {
+					// A record still being written; read it again once complete.
+					map.position(map.position() - HEADER - length);
+					return null;
+				}
+				throw new IOException("Ingest log corrupt at offset " + next + ".");
+			}
+			next++;
+			return data;
+		}
+
+		/**
+		 * True when the mapping holds a whole record at its position.
+		 */
+		private boolean hasRecord() {
+			if (map == null || map.remaining() < HEADER) {
+				return false;
+			}
+			int length = map.getInt(map.position());
+			return length >= 0 && length <= map.remaining() - HEADER;
+		}
+
+		/**
+		 * Maps the segment holding the next offset, as large as it now is, & positions at the next record.
+		 */
+		private void seek() throws IOException {
+			List<Long> bases = segments(dir);
+			int segment = -1;
+			for (int i = 0; i < bases.size() && bases.get(i) <= next; i++) {
+				segment = i;
+			}
+			if (segment < 0) {
+				map = null;
+				return;
+			}
+			segmentBase = bases.get(segment);
+			sealed = segment < bases.size() - 1;
+			RandomAccessFile file = new RandomAccessFile(segmentFile(dir, segmentBase, LOG_SUFFIX), "r");
+			try {
+				map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			}
+			finally {
+				file.close();
+			}
+
+			// Start from the last index entry at or before the offset & skip forward.
+			long at = segmentBase;
+			int target = (int) (next - segmentBase);
+			File indexFile = segmentFile(dir, segmentBase, INDEX_SUFFIX);
+			if (indexFile.exists()) {
+				DataInputStream entries = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+				try {
+					while (true) {
+						int relative = entries.readInt();
+						int entryPosition = entries.readInt();
+						if (relative > target || entryPosition > map.limit()) {
+							break;
+						}
+						at = segmentBase + relative;
+						map.position(entryPosition);
+					}
+				}
+				catch (EOFException ex) {}
+				finally {
+					entries.close();
+				}
+			}
+			while (at < next && hasRecord()) {
+				map.position(map.position() + HEADER + map.getInt(map.position()));
+				at++;
+			}
+			if (at < next) {
+				// The offset is not on disk yet; start over once it is.
+				map = null;
+			}
+		}
+	}
+
+	/**
+	 * Replays a log from an offset, printing each record as text, & optionally tails it.
+	 * Usage: java IngestLog [directory] [from offset] [-f]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		File dir = new File((args.length > 0) ? args[0] : System.getProperty("bc.log", "ingest"));
+		long from = (args.length > 1) ? Long.parseLong(args[1]) : 0;
+		boolean follow = args.length > 2 && "-f".equals(args[2]);
+		Reader reader = new Reader(dir, from);
+		long start = System.nanoTime();
+		long records = 0;
+		long bytes = 0;
+		StringBuilder out = new StringBuilder();
+		while (true) {
+			byte[] record = reader.next();
+			if (record == null) {
+				System.out.print(out);
+				System.out.flush();
+				out.setLength(0);
+				if (!follow) {
+					break;
+				}
+				Thread.sleep(100);
+				continue;
+			}
+			out.append(reader.offset() - 1).append(": ").append(new String(record, UTF8)).append('\n');
+			if (out.length() > WRITE_BUFFER) {
+				System.out.print(out);
+				out.setLength(0);
+			}
+			records++;
+			bytes += record.length;
+		}
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		System.err.println(String.format("Replayed %d records (%d bytes) from offset %d in %.3f s, %.0f records/sec.",
+			records, bytes, from, seconds, records / seconds));
+	}
+}
@@ -47,6 +47,15 @@ Included Files:
 - BCClient.java 
 - MyWebServer.java 
 - BCHandler.java
+- BCCodec.java
+- BCSerializer.java
+- BCSerializerBenchmark.java
+- BCStreamParser.java
+- BCTransfer.java
+- BCSession.java
+- BCBulk.java
+- IngestLog.java
+- BCBenchmark.java
 - serverlog.txt 
 - checklist-mimer.html
 - MimeTypes.txt <-- Necessary for configuring supported mime types at startup.
@@ -56,12 +65,31 @@ Notes:
 - Returns binary data (images, PDFs, etc.) 
 - Implements index.html to remove promiscuity of directories.
 - Supports favicon.ico.
+- Back channel accepts a compact binary format (see BCCodec.java) alongside XStream XML; clients fall back to XML automatically.
+- Back channel XML uses one shared, pre-configured XStream that only deserializes myDataArray (see BCSerializer.java).
+- Back channel XML is pull parsed straight from the socket, without building a document tree (see BCStreamParser.java).
+  Lines reach the ingest log only once the whole document has parsed, so a rejected document logs nothing.
+  Start with -Dbc.xml=buffered to read whole documents & deserialize them with XStream instead.
+- Back channel accepts chunked, checksummed & resumable transfers of whole MIME files of any size (see BCTransfer.java).
+- Back channel sessions carry many sequenced messages per connection with pipelined, batched acks (see BCSession.java).
+- Back channel sessions take deflated messages, used by BCClient bulk ingest (see BCBulk.java).
+- Back channel records are appended to a durable, segmented ingest log before being acknowledged (see IngestLog.java).
+  Set its directory with -Dbc.log=[directory], default "ingest"; replay or tail it with: java IngestLog [directory] [from offset] [-f]
+- Back channel connections run on a bounded pool of their own (-Dbc.threads, default 8) with a bounded queue
+  (-Dbc.queue, default 64), so ingest spikes leave the web server's threads alone. When the queue is full, clients
+  are told to back off & retry after -Dbc.retryAfter milliseconds (default 500).
+- Ports are set with -Dws.port & -Dbc.port, 0 for any free port; BCBenchmark runs the server in process this way
+  to measure back channel throughput, ack latency & allocation per message.
 - Has WML mime support but serving files to cell phone is not tested.
 - The addnums form must make a GET submit to: /cgi/addnums.fake-cgi
   with form fields: person=[string] num1=[integer] num2=[integer]
 
 ----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -70,16 +98,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.thoughtworks.xstream.XStream;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.thoughtworks.xstream.XStreamException;
 
 /**
  * This server listens for processes connections from web browser clients.
@@ -88,15 +131,45 @@ import com.thoughtworks.xstream.XStream;
  * @author Joseph Sackett
  */
 public class MyWebServer {
-	/** Web Server port to bind. */
-	private static final int WS_PORT = 2540;
+	/** Web Server port to bind, 0 for any free port. */
+	private static final int WS_PORT = Integer.getInteger("ws.port", 2540);
+	
+	/** Back channel port to bind, 0 for any free port. */
+	private static final int BC_PORT = Integer.getInteger("bc.port", 2570);
+	
+	/** Web Server port actually bound. */
+	private static volatile int wsPort;
+	
+	/** Back channel port actually bound. */
+	private static volatile int bcPort;
+	
+	/** Released once both listeners are bound, or once startup has failed. */
+	private static final CountDownLatch started = new CountDownLatch(1);
 	
-	/** Back channel port to bind. */
-	private static final int BC_PORT = 2570;
+	/** Why startup failed, null if it has not. */
+	private static volatile String startupFailure;
 	
 	/** Server thread timeout. */
 	private static final int TIMEOUT = 2000;
 	
+	/** Back channel worker threads, apart from the web server's. */
+	private static final int BC_THREADS = Integer.getInteger("bc.threads", 8);
+	
+	/** Back channel connections queued for a worker before clients are told to back off. */
+	private static final int BC_QUEUE = Integer.getInteger("bc.queue", 64);
+	
+	/** Milliseconds busy back channel clients are told to wait before retrying. */
+	private static final int BC_RETRY_AFTER = Integer.getInteger("bc.retryAfter", 500);
+	
+	/** Milliseconds a refused back channel client gets to send its header & take the busy reply. */
+	private static final int BC_REFUSE_TIMEOUT = 1000;
+	
+	/** Milliseconds a back channel connection may sit idle before it is closed, freeing its worker. */
+	private static final int BC_IDLE_TIMEOUT = Integer.getInteger("bc.idleTimeout", 30000);
+	
+	/** Milliseconds a disconnected back channel session is remembered, so its client can reconnect & resend. */
+	private static final long BC_SESSION_IDLE = Long.getLong("bc.sessionIdle", 60 * 60 * 1000L);
+	
 	/** Relative URL for CGI emulation. */
 	private static final String CGI_CALL = "/cgi/addnums.fake-cgi";
 		
@@ -154,6 +227,36 @@ public class MyWebServer {
 	/** Token ending XML from back channel. */
 	private static final String END_OF_XML = "end_of_xml";
 	
+	/** Back channel XML pull parsed from the socket (default) rather than buffered whole for XStream (-Dbc.xml=buffered). */
+	private static final boolean STREAM_XML = !"buffered".equalsIgnoreCase(System.getProperty("bc.xml"));
+	
+	/** Prints & logs the records of chunked back channel transfers. */
+	private static final BCTransfer.RecordHandler TRANSFER_PRINTER = new BCTransfer.RecordHandler() {
+		@Override
+		public void line(String line) throws IOException {
+			System.out.println(line);
+			ingestLog.append(line);
+		}
+		
+		@Override
+		public void block(long offset, byte[] data, int start, int length) throws IOException {
+			System.out.println("Block at offset " + offset + ": " + length + " bytes");
+			ingestLog.append(data, start, length);
+		}
+	};
+	
+	/** Durable log of back channel records; data is acknowledged only once logged (see IngestLog.java). */
+	private static IngestLog ingestLog;
+	
+	/** Back channel sessions by id. Connected sessions are never forgotten, whatever their number. */
+	private static final ConcurrentHashMap<Long,SessionState> sessions = new ConcurrentHashMap<Long,SessionState>();
+	
+	/** Time after which disconnected sessions are next checked for expiry. */
+	private static final AtomicLong nextSessionSweep = new AtomicLong();
+	
+	/** Acknowledgment returned for back channel data. */
+	private static final String ACK_TEXT = "Acknowledging Back Channel Data Receipt";
+	
 	/** File containing file extension to mime type mappings. */
 	private static final String MIME_INPUT_FILE = "MimeTypes.txt";
 	
@@ -189,14 +292,54 @@ public class MyWebServer {
 		// Load Initial Mime Types.
 		loadMimeTypesFile();
 		
-		// Initialize server state.
-		serverState = new ServerState();
+		// Whatever happens, release harnesses waiting on startup; on failure they find out why.
+		try {
+			// Configure & warm the shared back channel serializer.
+			BCSerializer.init();
 		
-		// Start Web Server listener thread.
-		new Thread(new Server(WS_PORT, WEB_SERVER_STRATEGY)).start();
+			// Open the back channel ingest log, recovering it after a crash.
+			File logDir = new File(System.getProperty("bc.log", "ingest"));
+			try {
+				ingestLog = IngestLog.open(logDir);
+			}
+			catch (IOException ex) {
+				startupFailure = "Cannot open the ingest log in " + logDir + ": " + ex;
+				System.out.println(startupFailure);
+				return;
+			}
+			System.out.println("Ingest log: " + logDir.getAbsolutePath() + ", next offset " + ingestLog.durableEnd());
 		
-		// Start Back Channel Server listener thread.
-		new Thread(new Server(BC_PORT, BACK_CHANNEL_SERVER_STRATEGY)).start();
+			// Initialize server state.
+			serverState = new ServerState();
+		
+			Server webServer;
+			Server backChannelServer;
+			try {
+				webServer = new Server(WS_PORT, WEB_SERVER_STRATEGY);
+				// The back channel gets a bounded pool of its own so ingest spikes cannot starve the web server.
+				ExecutorService bcWorkers = new ThreadPoolExecutor(BC_THREADS, BC_THREADS, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(BC_QUEUE), namedThreads("bc-worker"));
+				backChannelServer = new Server(BC_PORT, BACK_CHANNEL_SERVER_STRATEGY, bcWorkers);
+			}
+			catch (IOException ex) {
+				startupFailure = "Cannot bind listener: " + ex;
+				System.out.println(startupFailure);
+				return;
+			}
+			wsPort = webServer.portNum;
+			bcPort = backChannelServer.portNum;
+		
+			// Start Web Server & Back Channel Server listener threads.
+			new Thread(webServer).start();
+			new Thread(backChannelServer).start();
+		}
+		catch (RuntimeException | Error ex) {
+			startupFailure = "Startup failed: " + ex;
+			throw ex;
+		}
+		finally {
+			started.countDown();
+		}
 		
 		while (serverState.isControlSwitch()) {
 			try {
@@ -209,6 +352,19 @@ public class MyWebServer {
 		shutdownListeners();
 	}	
 
+	/**
+	 * Waits until main has bound both listeners, for harnesses running the server in process.
+	 * @return the back channel port actually bound.
+	 * @throws IOException if the server failed to start.
+	 */
+	static int awaitBackChannelPort() throws InterruptedException, IOException {
+		started.await();
+		if (startupFailure != null) {
+			throw new IOException(startupFailure);
+		}
+		return bcPort;
+	}
+	
 	/**
 	 * Generic server used for spawning both web server & back channel workers.
 	 * Behavior parameterized with different strategies.
@@ -217,27 +373,49 @@ public class MyWebServer {
 		/** Port bound to by this server. */
 		int portNum;
 		
+		/** Listening socket, bound on construction. */
+		ServerSocket serverSocket;
+		
 		/** Strategy executed by workers processing connections to this server (web server or back channel). */
 		ServerStrategy serverStrategy;
 		
-		public Server(int portNum, ServerStrategy serverStrategy) {
-			this.portNum = portNum;
+		/** Bounded worker pool, null for a thread per connection. */
+		ExecutorService workers;
+		
+		public Server(int portNum, ServerStrategy serverStrategy) throws IOException {
+			this(portNum, serverStrategy, null);
+		}
+		
+		public Server(int portNum, ServerStrategy serverStrategy, ExecutorService workers) throws IOException {
+			this.serverSocket = new ServerSocket(portNum);
+			// Port 0 binds any free port.
+			this.portNum = serverSocket.getLocalPort();
 			this.serverStrategy = serverStrategy;
+			this.workers = workers;
 		}
 
 		@Override
 		public void run() {
 			System.out.println("Starting " + serverStrategy.getTypeName() + " listener on port: " + portNum);
-			ServerSocket serverSocket = null;
 			try {
-				serverSocket = new ServerSocket(portNum);
 				while (serverState.isControlSwitch()) {
 					// Wait for the next client connection.
 					Socket socket = serverSocket.accept();
 					// Check for shutdown preceding client connection.
 					if (serverState.isControlSwitch()) {
-						// Spawn thread, along with Joke or Admin strategy.
-						new Thread(new Worker(socket, serverStrategy)).start();
+						if (workers == null) {
+							// Spawn thread, along with Joke or Admin strategy.
+							new Thread(new Worker(socket, serverStrategy)).start();
+						}
+						else {
+							// Queue for the pool; when it is full the client is told to back off.
+							try {
+								workers.execute(new Worker(socket, serverStrategy));
+							}
+							catch (RejectedExecutionException ex) {
+								serverStrategy.refuse(socket);
+							}
+						}
 					}
 				}
 			}
@@ -245,8 +423,9 @@ public class MyWebServer {
 				System.out.println(ex);
 			}
 			finally {
-				if (serverSocket != null) {
-					try { serverSocket.close(); } catch (IOException ex) {}
+				try { serverSocket.close(); } catch (IOException ex) {}
+				if (workers != null) {
+					workers.shutdown();
 				}
 			}
 			System.out.println(serverStrategy.getTypeName() + " listener exiting.");
@@ -289,6 +468,9 @@ public class MyWebServer {
 		
 		/** Processes a client request. */
 		public void processRequest(Socket socket);
+		
+		/** Turns a client away because every worker is busy. */
+		public void refuse(Socket socket);
 	}
 	
 	/**
@@ -302,6 +484,12 @@ public class MyWebServer {
 			return "Web Server";
 		}
 		
+		/** The web server spawns a thread per connection, so never refuses. */
+		@Override
+		public void refuse(Socket socket) {
+			try {socket.close();} catch (IOException ex) {}
+		}
+		
 		/** Processes a client request specific for the web server strategy. */
 		@Override
 		public void processRequest(Socket socket) {
@@ -595,14 +783,86 @@ public class MyWebServer {
 			return "Back Channel Server";
 		}
 		
+		/** Single thread answering refused clients, so the listener never waits on them. */
+		private final ExecutorService refusals = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(BC_QUEUE), namedThreads("bc-busy"));
+		
+		/**
+		 * Tells a client to back off: binary clients get a BUSY frame with the retry hint, XML clients a busy line.
+		 * When even the busy replies queue up, the connection is just closed.
+		 */
+		@Override
+		public void refuse(final Socket socket) {
+			try {
+				refusals.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendBusy(socket);
+					}
+				});
+			}
+			catch (RejectedExecutionException ex) {
+				try {socket.close();} catch (IOException ioe) {}
+			}
+		}
+		
+		/**
+		 * Answers a refused client in its own protocol, then waits briefly for it to close so it reads the reply.
+		 */
+		private void sendBusy(Socket socket) {
+			System.out.println("Back channel busy, refusing " + socket.getInetAddress());
+			try {
+				socket.setSoTimeout(BC_REFUSE_TIMEOUT);
+				BufferedInputStream stream = new BufferedInputStream(socket.getInputStream());
+				if (BCCodec.detect(stream)) {
+					DataInputStream in = new DataInputStream(stream);
+					int version = BCCodec.readHeader(in);
+					if (version >= 1) {
+						DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+						BCCodec.writeHeader(out, Math.min(version, BCCodec.VERSION));
+						BCCodec.writeBusy(out, version, BC_RETRY_AFTER, "Back Channel Busy");
+						out.flush();
+					}
+				}
+				else {
+					PrintStream writer = new PrintStream(socket.getOutputStream());
+					writer.println("Back Channel Busy, retry after " + BC_RETRY_AFTER + " ms");
+					writer.flush();
+				}
+				// Drain until the client closes, so closing here does not reset the connection before it reads the reply.
+				socket.shutdownOutput();
+				byte[] discard = new byte[4096];
+				while (stream.read(discard) != -1) {}
+			}
+			catch (IOException ex) {
+				// Client slow or gone; nothing more to tell it.
+			}
+			finally {
+				try {socket.close();} catch (IOException ex) {}
+			}
+		}
+		
 		/** Processes a client request specific for the back channel server strategy. */
 		@Override
 		public void processRequest(Socket socket) {
 			BufferedReader reader =  null;
 			PrintStream writer = null;
 			try {
+				// Persistent clients must not pin a worker while idle; they reconnect when they next need one.
+				socket.setSoTimeout(BC_IDLE_TIMEOUT);
+				// Binary clients open with the codec header; anything else is XML.
+				BufferedInputStream stream = new BufferedInputStream(socket.getInputStream());
+				if (BCCodec.detect(stream)) {
+					processBinary(stream, socket.getOutputStream());
+					return;
+				}
+				if (STREAM_XML) {
+					processStreaming(stream, socket.getOutputStream());
+					return;
+				}
+				
 				// Get I/O streams from the socket.
-				reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				reader = new BufferedReader(new InputStreamReader(stream));
 				writer = new PrintStream(socket.getOutputStream());
 
 				// Read all input from back channel browser via socket.
@@ -632,18 +892,29 @@ public class MyWebServer {
 				System.out.println("Serialized XML data: ");
 				System.out.println(xml);
 
-		  		// XStream library object for flattening to XML & deserializing back to symbolic form.
-		  		XStream xstream = new XStream();
-				// Call XStream library method to deserialize data from XML, back into symbolic form.
-				myDataArray result = (myDataArray) xstream.fromXML(xml);
+				// Deserialize data from XML, back into symbolic form, with the shared serializer.
+				myDataArray result;
+				try {
+					result = BCSerializer.fromXML(xml);
+				}
+				catch (XStreamException ex) {
+					System.out.println(ex.getMessage());
+					writer.println("Invalid Back Channel Data");
+					writer.flush();
+					return;
+				}
 				System.out.println("Deserialized data: ");
 				for(int i=0; i < result.num_lines; i++) {
 					System.out.println(result.lines[i]);
 				}
 				System.out.println();
 
-				writer.println("Acknowledging Back Channel Data Receipt");
+				// Acknowledge only once the lines are on disk.
+				ingestLog.sync(ingest(result));
+				writer.println(ACK_TEXT);
 				writer.flush();				
+			} catch (SocketTimeoutException ex) {
+				System.out.println("Back channel connection idle, closing.");
 			} catch (IOException ex) {
 				System.out.println(ex);
 				ex.printStackTrace();
@@ -659,7 +930,237 @@ public class MyWebServer {
 					try {socket.close();} catch (IOException ex) {}
 				}
 			}
-		}		
+		}
+		
+		/**
+		 * Pull parses XML straight from the socket, printing each line as it is parsed.
+		 * Lines are logged only once the whole document has parsed, so a document rejected partway leaves nothing
+		 * behind for the client's retry to duplicate.
+		 */
+		private void processStreaming(InputStream input, OutputStream output) throws IOException {
+			PrintStream writer = new PrintStream(output);
+			try {
+				System.out.println("Streamed data: ");
+				final List<String> parsed = new ArrayList<String>();
+				int lines = BCStreamParser.parse(new InputStreamReader(input), new BCStreamParser.RecordHandler() {
+					@Override
+					public void record(int index, String line) {
+						System.out.println(line);
+						parsed.add((line != null) ? line : "");
+					}
+				});
+				System.out.println(lines + " lines received.");
+				System.out.println();
+				long logged = -1;
+				for (String line : parsed) {
+					logged = ingestLog.append(line);
+				}
+				ingestLog.sync(logged);
+				writer.println(ACK_TEXT);
+			}
+			catch (XmlPullParserException ex) {
+				System.out.println(ex.getMessage());
+				writer.println("Invalid Back Channel Data");
+			}
+			writer.flush();
+		}
+		
+		/**
+		 * Serves a binary back channel connection: answers the header, then handles frames until the client closes.
+		 * Data arrays & completed transfers are acknowledged; a rejected chunk ends the connection so the client resumes.
+		 * Session messages are acknowledged cumulatively, in batches, once the client's pipeline drains.
+		 */
+		private void processBinary(BufferedInputStream input, OutputStream output) throws IOException {
+			DataInputStream in = new DataInputStream(input);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+			int version = BCCodec.readHeader(in);
+			if (version < 1) {
+				System.out.println("Invalid back channel header.");
+				return;
+			}
+			BCCodec.writeHeader(out, Math.min(version, BCCodec.VERSION));
+			
+			BCTransfer.Receiver transfer = null;
+			SessionState session = null;
+			long ackDue = 0;
+			int unacked = 0;
+			BCCodec.Frame frame;
+			try {
+				while ((frame = BCCodec.readFrame(in)) != null) {
+					if ((frame.type == BCCodec.MESSAGE || frame.type == BCCodec.DEFLATED_MESSAGE) && session != null) {
+						DataInputStream message = new DataInputStream(new ByteArrayInputStream(frame.payload));
+						long sequence = BCCodec.readVarlong(message);
+						// Held while processing, so a resend on a newer connection waits & is then dropped.
+						synchronized (session) {
+							if (sequence > session.lastProcessed) {
+								int start = frame.payload.length - message.available();
+								byte[] data = (frame.type == BCCodec.DEFLATED_MESSAGE)
+									? BCCodec.inflate(frame.payload, start)
+									: Arrays.copyOfRange(frame.payload, start, frame.payload.length);
+								myDataArray result = BCCodec.decode(data);
+								System.out.println("Deserialized session message " + sequence + " (" + data.length + " bytes): ");
+								for(int i=0; i < result.num_lines; i++) {
+									System.out.println(result.lines[i]);
+								}
+								System.out.println();
+								ingest(result);
+								// Only now is a resend a duplicate; had decoding or logging failed, it would be processed again.
+								session.lastProcessed = sequence;
+							}
+							else {
+								System.out.println("Dropped duplicate session message " + sequence + ".");
+							}
+						}
+						// One cumulative ack covers everything the client has sent so far, or each half window under steady load.
+						ackDue = Math.max(ackDue, sequence);
+						if (++unacked < BCSession.ACK_EVERY && in.available() > 0) {
+							continue;
+						}
+						// The batch is acknowledged with a single group committed sync, which also covers records
+						// logged by an earlier connection whose resends were dropped above.
+						ingestLog.sync();
+						ByteArrayOutputStream acked = new ByteArrayOutputStream();
+						BCCodec.writeVarlong(new DataOutputStream(acked), ackDue);
+						BCCodec.writeFrame(out, BCCodec.ACKED, acked.toByteArray());
+						unacked = 0;
+					}
+					else if (frame.type == BCCodec.SESSION) {
+						// Continue a session, possibly after a reconnect; the client resends whatever was not acknowledged.
+						long id = new DataInputStream(new ByteArrayInputStream(frame.payload)).readLong();
+						if (session != null) {
+							detachSession(session);
+						}
+						session = attachSession(id);
+						continue;
+					}
+					else if (frame.type == BCCodec.DATA_ARRAY) {
+						myDataArray result = BCCodec.decode(frame.payload);
+						System.out.println("Deserialized binary data (" + frame.payload.length + " bytes): ");
+						for(int i=0; i < result.num_lines; i++) {
+							System.out.println(result.lines[i]);
+						}
+						System.out.println();
+						ingestLog.sync(ingest(result));
+						BCCodec.writeFrame(out, BCCodec.ACK, ACK_TEXT.getBytes(BCCodec.UTF8));
+					}
+					else if (frame.type == BCCodec.OPEN) {
+						// Start or resume a transfer, telling the client where to continue.
+						transfer = BCTransfer.Receiver.open(frame.payload);
+						System.out.println("Receiving transfer " + transfer.id + " from offset " + transfer.offset + ": ");
+						ByteArrayOutputStream offset = new ByteArrayOutputStream();
+						BCCodec.writeVarlong(new DataOutputStream(offset), transfer.offset);
+						BCCodec.writeFrame(out, BCCodec.OFFSET, offset.toByteArray());
+					}
+					else if (frame.type == BCCodec.CHUNK && transfer != null) {
+						String error = transfer.chunk(frame.payload, TRANSFER_PRINTER);
+						if (error != null) {
+							System.out.println(error);
+							BCCodec.writeFrame(out, BCCodec.ERROR, error.getBytes(BCCodec.UTF8));
+							out.flush();
+							return;
+						}
+						// Chunks are not answered individually; the acknowledgment follows the END frame.
+						continue;
+					}
+					else if (frame.type == BCCodec.END && transfer != null) {
+						String error = transfer.end(frame.payload);
+						if (error != null) {
+							System.out.println(error);
+							BCCodec.writeFrame(out, BCCodec.ERROR, error.getBytes(BCCodec.UTF8));
+							out.flush();
+							return;
+						}
+						ingestLog.sync();
+						System.out.println("Transfer " + transfer.id + " complete, " + transfer.length + " bytes.");
+						System.out.println();
+						transfer = null;
+						BCCodec.writeFrame(out, BCCodec.ACK, ACK_TEXT.getBytes(BCCodec.UTF8));
+					}
+					else {
+						BCCodec.writeFrame(out, BCCodec.ERROR, ("Unexpected frame type: " + frame.type).getBytes(BCCodec.UTF8));
+					}
+					out.flush();
+				}
+			}
+			finally {
+				if (session != null) {
+					detachSession(session);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Connects to a back channel session, remembered or new, first forgetting sessions long disconnected.
+	 */
+	private static SessionState attachSession(long id) {
+		long now = System.currentTimeMillis();
+		long sweep = nextSessionSweep.get();
+		if (now >= sweep && nextSessionSweep.compareAndSet(sweep, now + BC_SESSION_IDLE / 4)) {
+			for (Map.Entry<Long,SessionState> entry : sessions.entrySet()) {
+				SessionState state = entry.getValue();
+				synchronized (state) {
+					if (state.connections == 0 && now - state.lastDetached > BC_SESSION_IDLE) {
+						state.forgotten = true;
+						sessions.remove(entry.getKey(), state);
+					}
+				}
+			}
+		}
+		while (true) {
+			SessionState state = sessions.get(id);
+			if (state == null) {
+				SessionState created = new SessionState();
+				state = sessions.putIfAbsent(id, created);
+				if (state == null) {
+					state = created;
+				}
+			}
+			synchronized (state) {
+				// Otherwise the sweep just forgot it; remember it afresh.
+				if (!state.forgotten) {
+					state.connections++;
+					return state;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Disconnects from a back channel session, which is remembered for a while in case the client reconnects.
+	 */
+	private static void detachSession(SessionState state) {
+		synchronized (state) {
+			state.connections--;
+			state.lastDetached = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Thread factory naming pool threads with a prefix & a number.
+	 */
+	private static ThreadFactory namedThreads(final String prefix) {
+		return new ThreadFactory() {
+			/** Threads created so far. */
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, prefix + "-" + count.incrementAndGet());
+			}
+		};
+	}
+	
+	/**
+	 * Appends the lines of a data array to the ingest log, nulls as empty records.
+	 * @return offset of the last line logged, -1 when there were none.
+	 */
+	private static long ingest(myDataArray data) throws IOException {
+		long last = -1;
+		for (int i = 0; i < data.num_lines; i++) {
+			last = ingestLog.append((data.lines[i] != null) ? data.lines[i] : "");
+		}
+		return last;
 	}
 	
 	/**
@@ -727,7 +1228,7 @@ public class MyWebServer {
 		ObjectOutputStream oWriter = null;
 		PrintStream pWriter = null;
 		try {
-			socket = new Socket("localhost", WS_PORT);
+			socket = new Socket("localhost", wsPort);
 			pWriter = new PrintStream(socket.getOutputStream());
 			// Send dummy input to Web Server listener to unblock it for shutdown.
 			pWriter.println("");
@@ -749,6 +1250,23 @@ public class MyWebServer {
 		}
 	}
 	
+	/**
+	 * Server side state of a back channel session, kept across its connections. Guarded by itself.
+	 */
+	private static class SessionState {
+		/** Last sequence processed, 0 before the first. */
+		private long lastProcessed;
+		
+		/** Connections currently open on the session. */
+		private int connections;
+		
+		/** When the last connection closed. */
+		private long lastDetached;
+		
+		/** Set once expired & removed from the session map. */
+		private boolean forgotten;
+	}
+	
 	/**
 	 * Encapsulates the state of the server.
 	 */
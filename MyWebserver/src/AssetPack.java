@@ -0,0 +1,380 @@
+/*--------------------------------------------------------
+AssetPack.java
+
+Memory-mapped pack of small static assets for MyWebServer.
+
+Developed and tested with JDK 1.7.0_40.
+
+At startup the document root is walked in parallel (ForkJoin) and every small file with a known mime type
+is copied into a single pack file, together with its pre-rendered response header.
+The pack is memory-mapped (off-heap) & an offset index is kept, so hot files are answered with no disk
+reads and almost no heap. The pack is reopened on the next start instead of being rebuilt.
+An entry is only served while the file on disk still has the packed size & modification time.
+
+Configuration (system properties):
+- assets.pack       Pack file (default [java.io.tmpdir]/MyWebServer-assets-[hash of the root].pack, one per document root).
+                    Set to "none" to disable.
+- assets.rebuild    true to rebuild the pack at startup even if a valid one exists.
+- assets.maxSize    Largest file packed, in bytes (default 65536).
+
+Pack file layout:
+  magic (8) | version (int) | root path (UTF) | entry count (int) | index offset (long)
+  entries: [pre-rendered header][file bytes] ...
+  index:   per entry: url path (UTF) | last modified (long) | file length (long) | offset (long) | length (int)
+
+----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Read-only, memory-mapped pack of pre-rendered static responses.
+ * @author Joseph Sackett
+ */
+class AssetPack {
+	/** Pack file magic. */
+	private static final byte[] MAGIC = {'M', 'W', 'S', 'P', 'A', 'C', 'K', '1'};
+
+	/** Pack format version. */
+	private static final int VERSION = 1;
+
+	/** Default largest file to pack. */
+	private static final int DEFAULT_MAX_SIZE = 65536;
+
+	/** Deepest directory level walked, guarding against link cycles. */
+	private static final int MAX_DEPTH = 32;
+
+	/** Largest total pack size. */
+	private static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+
+	/** Copy buffer size when writing an entry to a client. */
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	/** CRLF */
+	private static final String CRLF = "\r\n";
+
+	/** Mapped pack contents. Shared read-only; readers use duplicates. */
+	private MappedByteBuffer mapped;
+
+	/** Index of url path to entry. */
+	private Map<String,Entry> index;
+
+	/** Document root the pack was built from. */
+	private File root;
+
+	/**
+	 * Location of one pre-rendered response within the pack.
+	 */
+	private static class Entry {
+		/** Modification time of the packed file. */
+		long lastModified;
+		/** Length of the packed file. */
+		long fileLength;
+		/** Offset of the rendered response in the pack. */
+		long offset;
+		/** Length of the rendered response (header & body). */
+		int length;
+	}
+
+	/**
+	 * File found by the startup walk.
+	 */
+	private static class Asset {
+		String path;
+		File file;
+		String mimeType;
+		long lastModified;
+		long length;
+	}
+
+	private AssetPack(File root, MappedByteBuffer mapped, Map<String,Entry> index) {
+		this.root = root;
+		this.mapped = mapped;
+		this.index = index;
+	}
+
+	/**
+	 * Reopens the configured pack, building it first when missing, stale or requested.
+	 * Returns null when disabled or on failure, leaving all requests to the disk path.
+	 */
+	static AssetPack load(File root, Map<String,String> mimeTypes) {
+		String packName = System.getProperty("assets.pack");
+		if ("none".equalsIgnoreCase(packName)) {
+			return null;
+		}
+		try {
+			root = root.getCanonicalFile();
+			// Servers with different roots sharing the temporary directory each get their own pack, so neither invalidates the other's.
+			File packFile = (packName != null) ? new File(packName)
+					: new File(System.getProperty("java.io.tmpdir"), "MyWebServer-assets-" + Integer.toHexString(root.getPath().hashCode()) + ".pack");
+			long start = System.currentTimeMillis();
+			AssetPack pack = null;
+			if (packFile.exists() && !Boolean.getBoolean("assets.rebuild")) {
+				pack = open(root, packFile);
+				if (pack != null) {
+					System.out.println("Asset pack reopened: " + pack.index.size() + " assets, " + pack.mapped.capacity() + " bytes in "
+							+ (System.currentTimeMillis() - start) + " ms.");
+					return pack;
+				}
+			}
+			int assets = build(root, packFile, mimeTypes, Integer.getInteger("assets.maxSize", DEFAULT_MAX_SIZE));
+			pack = open(root, packFile);
+			if (pack != null) {
+				System.out.println("Asset pack built: " + assets + " assets, " + pack.mapped.capacity() + " bytes in "
+						+ (System.currentTimeMillis() - start) + " ms.");
+			}
+			return pack;
+		}
+		catch (IOException ex) {
+			System.out.println(ex);
+			System.out.println("Continuing without asset pack.");
+			return null;
+		}
+	}
+
+	/**
+	 * Reads an existing pack's header & index, then maps it. Returns null if it is not a valid pack for this root.
+	 * Nothing is mapped until the pack has checked out, so a rejected pack can be replaced at once, even on Windows.
+	 */
+	private static AssetPack open(File root, File packFile) throws IOException {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(packFile, "r");
+			if (file.length() > MAX_PACK_SIZE) {
+				return null;
+			}
+			byte[] magic = new byte[MAGIC.length];
+			file.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || file.readInt() != VERSION || !root.getPath().equals(file.readUTF())) {
+				System.out.println("Asset pack " + packFile + " is not valid for this server, rebuilding.");
+				return null;
+			}
+			int count = file.readInt();
+			long indexOffset = file.readLong();
+			if (indexOffset < 0 || indexOffset > file.length()) {
+				System.out.println("Asset pack " + packFile + " is corrupt, rebuilding.");
+				return null;
+			}
+
+			file.seek(indexOffset);
+			DataInputStream indexReader = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+			Map<String,Entry> index = new HashMap<String,Entry>(count * 2);
+			for (int ix = 0; ix < count; ix++) {
+				String path = indexReader.readUTF();
+				Entry entry = new Entry();
+				entry.lastModified = indexReader.readLong();
+				entry.fileLength = indexReader.readLong();
+				entry.offset = indexReader.readLong();
+				entry.length = indexReader.readInt();
+				index.put(path, entry);
+			}
+			// The mapping stays valid after the file is closed.
+			MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			return new AssetPack(root, mapped, index);
+		}
+		catch (IOException ex) {
+			System.out.println("Asset pack " + packFile + " unreadable (" + ex + "), rebuilding.");
+			return null;
+		}
+		finally {
+			if (file != null) {
+				try {file.close();} catch (IOException ex) {}
+			}
+		}
+	}
+
+	/**
+	 * Walks the root in parallel & writes a new pack. Returns the number of assets packed.
+	 */
+	private static int build(File root, File packFile, Map<String,String> mimeTypes, int maxSize) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool();
+		List<Asset> assets;
+		try {
+			assets = pool.invoke(new WalkTask(root, "", mimeTypes, maxSize, packFile.getCanonicalFile(), 0));
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		// Write to a temporary file, then replace the old pack.
+		File tempFile = new File(packFile.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+		List<Entry> entries = new ArrayList<Entry>();
+		List<String> paths = new ArrayList<String>();
+		try {
+			file.setLength(0);
+			file.write(MAGIC);
+			file.writeInt(VERSION);
+			file.writeUTF(root.getPath());
+			file.writeInt(0);
+			long countOffset = file.getFilePointer() - 4;
+			file.writeLong(0);
+
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			for (Asset asset : assets) {
+				if (file.getFilePointer() + asset.length + 256 > MAX_PACK_SIZE) {
+					break;
+				}
+				Entry entry = new Entry();
+				entry.offset = file.getFilePointer();
+				entry.lastModified = asset.lastModified;
+				entry.fileLength = asset.length;
+				// Pre-render the same header the disk path writes.
+				file.writeBytes("HTTP/1.1 200 OK" + CRLF + "Content-Length: " + asset.length + CRLF + "Content-Type: " + asset.mimeType + CRLF
+						+ "Connection: close" + CRLF + CRLF);
+				InputStream fileReader = new FileInputStream(asset.file);
+				try {
+					long copied = 0;
+					int read;
+					while (copied < asset.length && (read = fileReader.read(buffer, 0, (int) Math.min(buffer.length, asset.length - copied))) > 0) {
+						file.write(buffer, 0, read);
+						copied += read;
+					}
+					if (copied != asset.length) {
+						// File changed during the walk; drop it.
+						file.seek(entry.offset);
+						file.setLength(entry.offset);
+						continue;
+					}
+				}
+				finally {
+					fileReader.close();
+				}
+				entry.length = (int) (file.getFilePointer() - entry.offset);
+				entries.add(entry);
+				paths.add(asset.path);
+			}
+
+			// Append the index & patch the header.
+			long indexOffset = file.getFilePointer();
+			ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+			DataOutputStream indexWriter = new DataOutputStream(indexBytes);
+			for (int ix = 0; ix < entries.size(); ix++) {
+				Entry entry = entries.get(ix);
+				indexWriter.writeUTF(paths.get(ix));
+				indexWriter.writeLong(entry.lastModified);
+				indexWriter.writeLong(entry.fileLength);
+				indexWriter.writeLong(entry.offset);
+				indexWriter.writeInt(entry.length);
+			}
+			file.write(indexBytes.toByteArray());
+			file.seek(countOffset);
+			file.writeInt(entries.size());
+			file.writeLong(indexOffset);
+			file.getChannel().force(true);
+		}
+		finally {
+			file.close();
+		}
+		// Readers see the old pack or the new one, never neither.
+		Files.move(tempFile.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return entries.size();
+	}
+
+	/**
+	 * Writes the packed response for the url path if the pack holds a current copy.
+	 * Returns false when the caller should serve from disk.
+	 */
+	boolean serve(String path, DataOutputStream writer) throws IOException {
+		Entry entry = index.get(path);
+		if (entry == null) {
+			return false;
+		}
+		// Only serve while the file is unchanged since packing.
+		File file = new File(root, path);
+		if (file.lastModified() != entry.lastModified || file.length() != entry.fileLength) {
+			return false;
+		}
+		System.out.println("Returning packed file: " + path);
+		ByteBuffer response = mapped.duplicate();
+		response.position((int) entry.offset);
+		response.limit((int) entry.offset + entry.length);
+		byte[] buffer = new byte[Math.min(COPY_BUFFER_SIZE, entry.length)];
+		while (response.hasRemaining()) {
+			int chunk = Math.min(buffer.length, response.remaining());
+			response.get(buffer, 0, chunk);
+			writer.write(buffer, 0, chunk);
+		}
+		writer.flush();
+		return true;
+	}
+
+	/**
+	 * Walks one directory, forking a subtask per subdirectory.
+	 */
+	private static class WalkTask extends RecursiveTask<List<Asset>> {
+		private static final long serialVersionUID = 1L;
+
+		private File dir;
+		private String path;
+		private Map<String,String> mimeTypes;
+		private int maxSize;
+		private File packFile;
+		private int depth;
+
+		WalkTask(File dir, String path, Map<String,String> mimeTypes, int maxSize, File packFile, int depth) {
+			this.dir = dir;
+			this.path = path;
+			this.mimeTypes = mimeTypes;
+			this.maxSize = maxSize;
+			this.packFile = packFile;
+			this.depth = depth;
+		}
+
+		@Override
+		protected List<Asset> compute() {
+			List<Asset> assets = new ArrayList<Asset>();
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return assets;
+			}
+			List<WalkTask> subtasks = new ArrayList<WalkTask>();
+			for (File file : files) {
+				String filePath = path + '/' + file.getName();
+				if (file.isDirectory()) {
+					if (depth < MAX_DEPTH) {
+						WalkTask subtask = new WalkTask(file, filePath, mimeTypes, maxSize, packFile, depth + 1);
+						subtask.fork();
+						subtasks.add(subtask);
+					}
+				}
+				else if (file.isFile() && file.length() <= maxSize && !file.getAbsolutePath().startsWith(packFile.getPath())) {
+					String fileName = file.getName();
+					String mimeType = mimeTypes.get(fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase());
+					if (mimeType != null) {
+						Asset asset = new Asset();
+						asset.path = filePath;
+						asset.file = file;
+						asset.mimeType = mimeType;
+						asset.lastModified = file.lastModified();
+						asset.length = file.length();
+						assets.add(asset);
+					}
+				}
+			}
+			for (WalkTask subtask : subtasks) {
+				assets.addAll(subtask.join());
+			}
+			return assets;
+		}
+	}
+}
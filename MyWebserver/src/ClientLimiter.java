@@ -0,0 +1,218 @@
+/*--------------------------------------------------------
+ClientLimiter.java
+
+Per client IP admission control for MyWebServer.
+
+Developed and tested with JDK 1.7.0_40.
+
+Configuration (system properties, e.g. java -Dlimit.rate=50 MyWebServer):
+- limit.rate         Sustained requests per second allowed per client IP (default 20, 0 disables request limiting).
+- limit.burst        Requests a client may make back to back before the rate applies (default 40).
+- limit.connections  Concurrent connections allowed per client IP (default 16, 0 disables the cap).
+- limit.idle         Milliseconds an idle client entry is kept before eviction (default 60000).
+
+Connections over the cap are refused at accept. Requests over the rate are answered 429 Too Many Requests.
+Each HTTP/2 stream counts as one request.
+
+----------------------------------------------------------*/
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks a token bucket & open connection count for each client address.
+ * Entries are created on first contact & evicted once idle with no open connections.
+ * @author Joseph Sackett
+ */
+class ClientLimiter {
+	/** Default sustained requests per second. */
+	private static final int DEFAULT_RATE = 20;
+
+	/** Default request burst. */
+	private static final int DEFAULT_BURST = 40;
+
+	/** Default concurrent connections per client. */
+	private static final int DEFAULT_CONNECTIONS = 16;
+
+	/** Default idle time before eviction (ms). */
+	private static final int DEFAULT_IDLE = 60000;
+
+	/** Sustained requests per second per client, 0 when unlimited. */
+	private int rate;
+
+	/** Bucket capacity. */
+	private int burst;
+
+	/** Concurrent connection cap per client, 0 when unlimited. */
+	private int maxConnections;
+
+	/** Idle time before an unused entry is evicted (ms). */
+	private long idleMillis;
+
+	/** Client address to state. */
+	private ConcurrentHashMap<InetAddress,Client> clients = new ConcurrentHashMap<InetAddress,Client>();
+
+	/** Connections refused for exceeding the cap. */
+	private AtomicLong refusedConnections = new AtomicLong();
+
+	/** Requests answered 429. */
+	private AtomicLong limitedRequests = new AtomicLong();
+
+	/** Rejection totals at the previous report. */
+	private long lastReportRejections;
+
+	/**
+	 * Admission state for one client address.
+	 */
+	private static class Client {
+		/** Open connections. */
+		AtomicInteger connections = new AtomicInteger();
+
+		/** Tokens available, in thousandths of a request. */
+		long milliTokens;
+
+		/** Time tokens were last refilled (ms). */
+		long refillTime;
+
+		/** Time of the last connection or request (ms). */
+		volatile long lastSeen;
+
+		Client(int burst, long now) {
+			milliTokens = burst * 1000L;
+			refillTime = now;
+			lastSeen = now;
+		}
+	}
+
+	/**
+	 * Builds the limiter from system properties. Returns null when both limits are disabled.
+	 */
+	static ClientLimiter load() {
+		ClientLimiter limiter = new ClientLimiter();
+		limiter.rate = Math.max(0, Integer.getInteger("limit.rate", DEFAULT_RATE));
+		limiter.burst = Math.max(1, Integer.getInteger("limit.burst", Math.max(DEFAULT_BURST, limiter.rate)));
+		limiter.maxConnections = Math.max(0, Integer.getInteger("limit.connections", DEFAULT_CONNECTIONS));
+		limiter.idleMillis = Math.max(1000, Integer.getInteger("limit.idle", DEFAULT_IDLE));
+		if (limiter.rate == 0 && limiter.maxConnections == 0) {
+			return null;
+		}
+		return limiter;
+	}
+
+	/**
+	 * Finds or creates the entry for a client.
+	 */
+	private Client client(InetAddress address, long now) {
+		Client client = clients.get(address);
+		if (client == null) {
+			Client created = new Client(burst, now);
+			client = clients.putIfAbsent(address, created);
+			if (client == null) {
+				client = created;
+			}
+		}
+		client.lastSeen = now;
+		return client;
+	}
+
+	/**
+	 * Counts a newly accepted connection. Returns false, leaving nothing counted, when the client is at its cap.
+	 */
+	boolean openConnection(InetAddress address) {
+		Client client = client(address, System.currentTimeMillis());
+		int open = client.connections.incrementAndGet();
+		if (maxConnections > 0 && open > maxConnections) {
+			client.connections.decrementAndGet();
+			refusedConnections.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases a connection counted by openConnection.
+	 */
+	void closeConnection(InetAddress address) {
+		Client client = clients.get(address);
+		if (client != null) {
+			// An entry evicted & recreated while this connection was open must not go negative.
+			if (client.connections.decrementAndGet() < 0) {
+				client.connections.incrementAndGet();
+			}
+			client.lastSeen = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Takes one token from the client's bucket. Returns false when the bucket is empty.
+	 */
+	boolean allowRequest(InetAddress address) {
+		if (rate == 0) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		Client client = client(address, now);
+		synchronized (client) {
+			// Refill at rate tokens per second, i.e. rate thousandths per ms.
+			long elapsed = now - client.refillTime;
+			if (elapsed > 0) {
+				client.milliTokens = Math.min(burst * 1000L, client.milliTokens + elapsed * rate);
+				client.refillTime = now;
+			}
+			if (client.milliTokens >= 1000) {
+				client.milliTokens -= 1000;
+				return true;
+			}
+		}
+		limitedRequests.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Removes entries with no open connections that have been idle past the idle time.
+	 * An evicted client simply starts again with a full bucket.
+	 */
+	void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleMillis;
+		Iterator<Client> iter = clients.values().iterator();
+		while (iter.hasNext()) {
+			Client client = iter.next();
+			if (client.lastSeen < cutoff && client.connections.get() == 0) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Interval between eviction sweeps (ms).
+	 */
+	long sweepInterval() {
+		return idleMillis;
+	}
+
+	/**
+	 * Renders the rejection totals & table size.
+	 */
+	synchronized String report() {
+		long refused = refusedConnections.get();
+		long limited = limitedRequests.get();
+		lastReportRejections = refused + limited;
+		return String.format("Client limits: %d connections refused, %d requests limited (429), %d clients tracked",
+				refused, limited, clients.size());
+	}
+
+	/**
+	 * Whether anything was rejected since the last report.
+	 */
+	synchronized boolean hasActivity() {
+		return refusedConnections.get() + limitedRequests.get() != lastReportRejections;
+	}
+
+	@Override
+	public String toString() {
+		return "Client limits: " + ((rate == 0) ? "unlimited" : (rate + " requests/sec, burst " + burst)) + ", "
+				+ ((maxConnections == 0) ? "unlimited" : String.valueOf(maxConnections)) + " connections per client";
+	}
+}
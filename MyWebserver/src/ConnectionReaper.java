@@ -0,0 +1,318 @@
+/*--------------------------------------------------------
+ConnectionReaper.java
+
+Read & write deadlines for MyWebServer connections.
+
+Developed and tested with JDK 1.7.0_40.
+
+Configuration (system properties, e.g. java -Dtimeout.header=5000 MyWebServer), 0 disables a deadline:
+- timeout.header     Milliseconds allowed to receive the complete request line & headers (default 10000).
+- timeout.idle       Milliseconds an HTTP/2 connection may sit with no open streams (default 60000).
+- timeout.grace      Milliseconds of slack added to each throughput deadline (default 5000).
+- timeout.minRate    Minimum bytes per second for response writes & HTTP/2 frame payload reads (default 1024).
+
+Deadlines are kept on a hashed timer wheel, so arming & disarming cost the same however many connections are open.
+A connection past its deadline has its socket closed, which fails the worker's blocked read or write.
+
+----------------------------------------------------------*/
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes connections that miss their read or write deadlines & counts them by reason.
+ * @author Joseph Sackett
+ */
+class ConnectionReaper implements Runnable {
+	/** Wheel tick (ms). */
+	private static final int TICK = 100;
+
+	/** Slots on the wheel; one revolution covers WHEEL_SIZE * TICK ms. */
+	private static final int WHEEL_SIZE = 512;
+
+	/** Default header read deadline (ms). */
+	private static final int DEFAULT_HEADER_TIMEOUT = 10000;
+
+	/** Default idle HTTP/2 connection deadline (ms). */
+	private static final int DEFAULT_IDLE_TIMEOUT = 60000;
+
+	/** Default slack on throughput deadlines (ms). */
+	private static final int DEFAULT_GRACE = 5000;
+
+	/** Default minimum throughput (bytes/sec). */
+	private static final int DEFAULT_MIN_RATE = 1024;
+
+	/**
+	 * Why a connection was closed.
+	 */
+	enum Reason {
+		HEADER_TIMEOUT("header read timeout"),
+		SLOW_READ("slow request read"),
+		SLOW_WRITE("slow response write"),
+		IDLE("idle connection");
+
+		/** Description for reports. */
+		final String description;
+
+		Reason(String description) {
+			this.description = description;
+		}
+	}
+
+	/** Header read deadline (ms). */
+	private long headerTimeout;
+
+	/** Idle HTTP/2 connection deadline (ms). */
+	private long idleTimeout;
+
+	/** Slack on throughput deadlines (ms). */
+	private long grace;
+
+	/** Minimum throughput (bytes/sec), 0 when not enforced. */
+	private long minRate;
+
+	/** Wheel slots, each an intrusive list of armed watches. Guarded by this. */
+	private Watch[] wheel = new Watch[WHEEL_SIZE];
+
+	/** Slot the next tick expires. Guarded by this. */
+	private int cursor;
+
+	/** Connections closed, indexed by reason ordinal. */
+	private AtomicLong[] reaped = new AtomicLong[Reason.values().length];
+
+	/** Total reaped at the previous report. */
+	private long lastReportReaped;
+
+	/**
+	 * Builds the reaper from system properties & starts its tick thread.
+	 */
+	static ConnectionReaper start() {
+		ConnectionReaper reaper = new ConnectionReaper();
+		reaper.headerTimeout = Math.max(0, Integer.getInteger("timeout.header", DEFAULT_HEADER_TIMEOUT));
+		reaper.idleTimeout = Math.max(0, Integer.getInteger("timeout.idle", DEFAULT_IDLE_TIMEOUT));
+		reaper.grace = Math.max(0, Integer.getInteger("timeout.grace", DEFAULT_GRACE));
+		reaper.minRate = Math.max(0, Integer.getInteger("timeout.minRate", DEFAULT_MIN_RATE));
+		for (int i = 0; i < reaper.reaped.length; i++) {
+			reaper.reaped[i] = new AtomicLong();
+		}
+		Thread thread = new Thread(reaper, "reaper");
+		thread.setDaemon(true);
+		thread.start();
+		return reaper;
+	}
+
+	/**
+	 * Creates the deadline holder for one connection.
+	 */
+	Watch watch(Socket socket) {
+		return new Watch(socket);
+	}
+
+	/**
+	 * Deadline for transferring length bytes at the minimum rate, 0 when throughput is not enforced.
+	 */
+	private long transferTimeout(long length) {
+		return (minRate == 0) ? 0 : grace + length * 1000 / minRate;
+	}
+
+	/**
+	 * Tick loop: each tick expires the watches in the current slot whose rounds have run out.
+	 */
+	@Override
+	public void run() {
+		long nextTick = System.currentTimeMillis() + TICK;
+		while (true) {
+			try {
+				long sleep = nextTick - System.currentTimeMillis();
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+			nextTick += TICK;
+
+			List<Watch> expired = new ArrayList<Watch>();
+			synchronized (this) {
+				Watch watch = wheel[cursor];
+				while (watch != null) {
+					Watch next = watch.next;
+					if (watch.rounds-- <= 0) {
+						unlink(watch);
+						expired.add(watch);
+					}
+					watch = next;
+				}
+				cursor = (cursor + 1) % WHEEL_SIZE;
+			}
+
+			// Close outside the lock; a close can block on TLS.
+			for (Watch watch : expired) {
+				reaped[watch.reason.ordinal()].incrementAndGet();
+				System.out.println("Closing connection from " + watch.socket.getInetAddress().getHostAddress() + ": " + watch.reason.description + ".");
+				try {watch.socket.close();} catch (IOException ex) {}
+			}
+		}
+	}
+
+	/**
+	 * Places a watch delay ms ahead of the cursor. Caller holds the lock.
+	 */
+	private void link(Watch watch, long delay) {
+		long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+		// The next tick expires the cursor's slot, so a one tick delay lands on the cursor.
+		watch.slot = (int) ((cursor + ticks - 1) % WHEEL_SIZE);
+		watch.rounds = (ticks - 1) / WHEEL_SIZE;
+		watch.prev = null;
+		watch.next = wheel[watch.slot];
+		if (watch.next != null) {
+			watch.next.prev = watch;
+		}
+		wheel[watch.slot] = watch;
+		watch.armed = true;
+	}
+
+	/**
+	 * Removes a watch from its slot. Caller holds the lock.
+	 */
+	private void unlink(Watch watch) {
+		if (watch.prev != null) {
+			watch.prev.next = watch.next;
+		}
+		else {
+			wheel[watch.slot] = watch.next;
+		}
+		if (watch.next != null) {
+			watch.next.prev = watch.prev;
+		}
+		watch.prev = watch.next = null;
+		watch.armed = false;
+	}
+
+	/**
+	 * Renders the number of connections closed for each reason.
+	 */
+	synchronized String report() {
+		StringBuilder reportBuilder = new StringBuilder("Connections reaped:");
+		long total = 0;
+		for (Reason reason : Reason.values()) {
+			long count = reaped[reason.ordinal()].get();
+			total += count;
+			reportBuilder.append(' ').append(count).append(' ').append(reason.description).append(',');
+		}
+		reportBuilder.setLength(reportBuilder.length() - 1);
+		lastReportReaped = total;
+		return reportBuilder.toString();
+	}
+
+	/**
+	 * Whether any connection was reaped since the last report.
+	 */
+	synchronized boolean hasActivity() {
+		long total = 0;
+		for (AtomicLong count : reaped) {
+			total += count.get();
+		}
+		return total != lastReportReaped;
+	}
+
+	/**
+	 * The current deadline of one connection; at most one is armed at a time.
+	 */
+	class Watch {
+		/** Connection to close on expiry. */
+		final Socket socket;
+
+		/** Reason of the armed deadline. */
+		Reason reason;
+
+		/** Wheel position & remaining revolutions. Guarded by the reaper. */
+		int slot;
+		long rounds;
+
+		/** Slot list links. Guarded by the reaper. */
+		Watch prev, next;
+
+		/** Whether linked into the wheel. Guarded by the reaper. */
+		boolean armed;
+
+		Watch(Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Arms a deadline delay ms from now, replacing any armed deadline. A delay of 0 only disarms.
+		 */
+		void arm(Reason reason, long delay) {
+			synchronized (ConnectionReaper.this) {
+				if (armed) {
+					unlink(this);
+				}
+				if (delay > 0) {
+					this.reason = reason;
+					link(this, delay);
+				}
+			}
+		}
+
+		/**
+		 * Cancels the armed deadline.
+		 */
+		void disarm() {
+			synchronized (ConnectionReaper.this) {
+				if (armed) {
+					unlink(this);
+				}
+			}
+		}
+
+		/**
+		 * Arms the header read deadline.
+		 */
+		void armHeaderRead() {
+			arm(Reason.HEADER_TIMEOUT, headerTimeout);
+		}
+
+		/**
+		 * Arms the idle deadline.
+		 */
+		void armIdle() {
+			arm(Reason.IDLE, idleTimeout);
+		}
+
+		/**
+		 * Arms a deadline for reading length bytes at the minimum rate.
+		 */
+		void armRead(long length) {
+			arm(Reason.SLOW_READ, transferTimeout(length));
+		}
+
+		/**
+		 * Wraps a socket output stream so each write must complete at the minimum rate.
+		 */
+		OutputStream guard(OutputStream stream) {
+			return new FilterOutputStream(stream) {
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					arm(Reason.SLOW_WRITE, transferTimeout(length));
+					try {
+						out.write(bytes, offset, length);
+					}
+					finally {
+						disarm();
+					}
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*--------------------------------------------------------
+Hpack.java
+
+HPACK header compression (RFC 7541) for MyWebServer's HTTP/2 support.
+
+Developed and tested with JDK 1.7.0_40.
+
+Notes:
+- The decoder supports the full static & dynamic tables and Huffman coded strings.
+- The encoder never adds to the peer's dynamic table. It uses indexed static entries where possible
+  and otherwise emits literals without indexing, which is always valid for the peer to decode.
+
+----------------------------------------------------------*/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header block decoder & encoder.
+ * @author Joseph Sackett
+ */
+class Hpack {
+	/** Header octets are ISO-8859-1 on the wire. */
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** Per entry overhead counted against the dynamic table size. */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/** Static table (index 1 based). */
+	private static final String[][] STATIC_TABLE = {
+		{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+		{":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+		{":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+		{"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+		{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+		{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""},
+		{"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+		{"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+		{"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+		{"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+		{"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+		{"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+	};
+
+	/** Static table lookup by "name:value" & by name (first occurrence). */
+	private static final Map<String,Integer> STATIC_FIELDS = new HashMap<String,Integer>();
+	private static final Map<String,Integer> STATIC_NAMES = new HashMap<String,Integer>();
+
+	/** Huffman code table (RFC 7541 Appendix B), code values right aligned. */
+	private static final int[] HUFFMAN_CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+	};
+
+	/** Huffman code lengths in bits. */
+	private static final byte[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+	};
+
+	/** Huffman code of the end of string symbol. */
+	private static final int EOS_CODE = 0x3fffffff;
+
+	/** Length in bits of the end of string code. */
+	private static final int EOS_LENGTH = 30;
+
+	/** EOS symbol in the decoding tree. */
+	private static final int EOS = 256;
+
+	/** Root of the Huffman decoding tree. */
+	private static final Node HUFFMAN_ROOT = new Node();
+
+	/** Static block run when class loaded. */
+	static {
+		for (int ix = STATIC_TABLE.length - 1; ix >= 0; ix--) {
+			STATIC_FIELDS.put(STATIC_TABLE[ix][0] + ':' + STATIC_TABLE[ix][1], ix + 1);
+			STATIC_NAMES.put(STATIC_TABLE[ix][0], ix + 1);
+		}
+		for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			addHuffmanCode(symbol, HUFFMAN_CODES[symbol], HUFFMAN_LENGTHS[symbol]);
+		}
+		addHuffmanCode(EOS, EOS_CODE, EOS_LENGTH);
+	}
+
+	/**
+	 * Node of the Huffman decoding tree. Leaves hold a symbol.
+	 */
+	private static class Node {
+		Node zero;
+		Node one;
+		int symbol = -1;
+	}
+
+	private static void addHuffmanCode(int symbol, int code, int length) {
+		Node node = HUFFMAN_ROOT;
+		for (int bit = length - 1; bit >= 0; bit--) {
+			if (((code >>> bit) & 1) == 0) {
+				node = (node.zero == null) ? (node.zero = new Node()) : node.zero;
+			}
+			else {
+				node = (node.one == null) ? (node.one = new Node()) : node.one;
+			}
+		}
+		node.symbol = symbol;
+	}
+
+	/**
+	 * Indicates a malformed header block. The connection must be closed with COMPRESSION_ERROR.
+	 */
+	static class HpackException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		HpackException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Decodes header blocks. One decoder per connection, used by the connection's reader thread only.
+	 */
+	static class Decoder {
+		/** Dynamic table, newest entry first. */
+		private LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+
+		/** Current dynamic table size (octets). */
+		private int tableSize;
+
+		/** Maximum size the encoder may use, as advertised in our SETTINGS_HEADER_TABLE_SIZE. */
+		private int maxTableSize;
+
+		/** Current maximum set by the encoder's dynamic table size updates. */
+		private int currentMaxTableSize;
+
+		Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.currentMaxTableSize = maxTableSize;
+		}
+
+		/**
+		 * Decodes a complete header block into a list of name, value pairs.
+		 */
+		List<String[]> decode(byte[] block, int length) throws HpackException {
+			List<String[]> headers = new ArrayList<String[]>();
+			int[] pos = {0};
+			while (pos[0] < length) {
+				int b = block[pos[0]] & 0xff;
+				if ((b & 0x80) != 0) {
+					// Indexed header field.
+					int index = decodeInt(block, length, pos, 7);
+					headers.add(lookup(index));
+				}
+				else if ((b & 0x40) != 0) {
+					// Literal with incremental indexing.
+					String[] field = decodeLiteral(block, length, pos, 6);
+					add(field);
+					headers.add(field);
+				}
+				else if ((b & 0x20) != 0) {
+					// Dynamic table size update.
+					int size = decodeInt(block, length, pos, 5);
+					if (size > maxTableSize) {
+						throw new HpackException("Table size update exceeds limit: " + size);
+					}
+					currentMaxTableSize = size;
+					evict();
+				}
+				else {
+					// Literal without indexing or never indexed.
+					headers.add(decodeLiteral(block, length, pos, 4));
+				}
+			}
+			return headers;
+		}
+
+		private String[] lookup(int index) throws HpackException {
+			if (index <= 0) {
+				throw new HpackException("Invalid header index: " + index);
+			}
+			if (index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			int dynamicIndex = index - STATIC_TABLE.length - 1;
+			if (dynamicIndex >= dynamicTable.size()) {
+				throw new HpackException("Invalid header index: " + index);
+			}
+			return dynamicTable.get(dynamicIndex);
+		}
+
+		private String[] decodeLiteral(byte[] block, int length, int[] pos, int prefix) throws HpackException {
+			int index = decodeInt(block, length, pos, prefix);
+			String name = (index == 0) ? decodeString(block, length, pos) : lookup(index)[0];
+			String value = decodeString(block, length, pos);
+			return new String[] {name, value};
+		}
+
+		private void add(String[] field) {
+			dynamicTable.addFirst(field);
+			tableSize += entrySize(field);
+			evict();
+		}
+
+		private void evict() {
+			while (tableSize > currentMaxTableSize && !dynamicTable.isEmpty()) {
+				tableSize -= entrySize(dynamicTable.removeLast());
+			}
+		}
+
+		private static int entrySize(String[] field) {
+			return field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Decodes an integer with an N bit prefix, advancing pos.
+	 */
+	static int decodeInt(byte[] block, int length, int[] pos, int prefix) throws HpackException {
+		int mask = (1 << prefix) - 1;
+		int value = block[pos[0]++] & mask;
+		if (value < mask) {
+			return value;
+		}
+		int shift = 0;
+		int b;
+		do {
+			if (pos[0] >= length || shift > 21) {
+				throw new HpackException("Invalid integer encoding.");
+			}
+			b = block[pos[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Decodes a (possibly Huffman coded) string literal, advancing pos.
+	 */
+	static String decodeString(byte[] block, int length, int[] pos) throws HpackException {
+		if (pos[0] >= length) {
+			throw new HpackException("Truncated string literal.");
+		}
+		boolean huffman = (block[pos[0]] & 0x80) != 0;
+		int stringLength = decodeInt(block, length, pos, 7);
+		if (stringLength > length - pos[0]) {
+			throw new HpackException("Truncated string literal.");
+		}
+		int start = pos[0];
+		pos[0] += stringLength;
+		if (!huffman) {
+			return new String(block, start, stringLength, ISO_8859_1);
+		}
+
+		// Walk the decoding tree bit by bit.
+		StringBuilder builder = new StringBuilder(stringLength * 2);
+		Node node = HUFFMAN_ROOT;
+		int pendingBits = 0;
+		boolean pendingOnes = true;
+		for (int ix = start; ix < start + stringLength; ix++) {
+			int b = block[ix] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int value = (b >>> bit) & 1;
+				node = (value == 0) ? node.zero : node.one;
+				if (node == null) {
+					throw new HpackException("Invalid Huffman code.");
+				}
+				pendingBits++;
+				pendingOnes &= (value == 1);
+				if (node.symbol >= 0) {
+					if (node.symbol == EOS) {
+						throw new HpackException("EOS in Huffman string.");
+					}
+					builder.append((char) node.symbol);
+					node = HUFFMAN_ROOT;
+					pendingBits = 0;
+					pendingOnes = true;
+				}
+			}
+		}
+		// Padding must be a prefix of EOS (all ones) shorter than a byte.
+		if (pendingBits > 7 || !pendingOnes) {
+			throw new HpackException("Invalid Huffman padding.");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Encodes header blocks without using the dynamic table, so it needs no per connection state.
+	 */
+	static byte[] encode(List<String[]> headers) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String[] header : headers) {
+			Integer index = STATIC_FIELDS.get(header[0] + ':' + header[1]);
+			if (index != null) {
+				// Indexed header field.
+				encodeInt(out, index, 7, 0x80);
+				continue;
+			}
+			// Literal without indexing, with indexed name when available.
+			Integer nameIndex = STATIC_NAMES.get(header[0]);
+			if (nameIndex != null) {
+				encodeInt(out, nameIndex, 4, 0x00);
+			}
+			else {
+				out.write(0x00);
+				encodeString(out, header[0]);
+			}
+			encodeString(out, header[1]);
+		}
+		return out.toByteArray();
+	}
+
+	private static void encodeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(ISO_8859_1);
+		encodeInt(out, bytes.length, 7, 0x00);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Encodes an integer with an N bit prefix, OR-ing the flag bits into the first octet.
+	 */
+	static void encodeInt(ByteArrayOutputStream out, int value, int prefix, int flags) {
+		int mask = (1 << prefix) - 1;
+		if (value < mask) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | mask);
+		value -= mask;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+}
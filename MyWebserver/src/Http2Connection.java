@@ -0,0 +1,791 @@
+/*--------------------------------------------------------
+Http2Connection.java
+
+HTTP/2 (RFC 7540) connection handling for MyWebServer.
+
+Developed and tested with JDK 1.7.0_40.
+
+Supports:
+- h2c with prior knowledge (client starts with the connection preface).
+- h2c upgrade from an HTTP/1.1 request (Upgrade: h2c).
+- Prior knowledge over the HTTPS listener. Negotiating h2 through ALPN needs JDK 9 or later.
+
+Each request stream is dispatched concurrently into the existing file, directory & CGI handlers.
+Their HTTP/1.1 responses are translated into HEADERS & DATA frames, honoring per stream & connection flow control.
+
+To test: curl --http2-prior-knowledge http://localhost:2540/  or  curl --http2 http://localhost:2540/
+
+----------------------------------------------------------*/
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves one HTTP/2 connection. The calling worker thread reads frames; streams run on a shared pool.
+ * @author Joseph Sackett
+ */
+class Http2Connection {
+	/** First line of the client connection preface. */
+	static final String PREFACE_LINE = "PRI * HTTP/2.0";
+
+	/** Full client connection preface. */
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("ISO-8859-1"));
+
+	/** Frame types. */
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	/** Frame flags. */
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	/** Settings identifiers. */
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	/** Error codes. */
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int INTERNAL_ERROR = 0x2;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int STREAM_CLOSED = 0x5;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int COMPRESSION_ERROR = 0x9;
+
+	/** Protocol defaults. */
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_FRAME_SIZE = 16384;
+	private static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+	/** Concurrent streams allowed per connection. */
+	private static final int MAX_CONCURRENT_STREAMS = 100;
+
+	/** Largest header block accepted, across CONTINUATION frames. */
+	private static final int MAX_HEADER_BLOCK = 65536;
+
+	/** Headers that are specific to an HTTP/1.1 connection & must not be forwarded. */
+	private static final List<String> CONNECTION_HEADERS = Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+	/** CRLF */
+	private static final String CRLF = "\r\n";
+
+	/** Stream handler threads shared by all HTTP/2 connections. */
+	private static final int STREAM_THREADS = Integer.getInteger("h2.threads", 64);
+
+	/** Shared pool running stream handlers for all HTTP/2 connections. A stream arriving with every thread busy is refused. */
+	private static final ThreadPoolExecutor STREAM_EXECUTOR = new ThreadPoolExecutor(STREAM_THREADS, STREAM_THREADS, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "h2-stream");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		// Idle handler threads are let go.
+		STREAM_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	/** Connection socket. */
+	private Socket socket;
+
+	/** Frame input. */
+	private DataInputStream in;
+
+	/** Read deadlines: idle with no open streams & frame payload throughput. */
+	private ConnectionReaper.Watch watch;
+
+	/** Frame output. Guarded by itself. */
+	private DataOutputStream out;
+
+	/** Header block decoder, used by the reader thread only. */
+	private Hpack.Decoder decoder = new Hpack.Decoder(DEFAULT_HEADER_TABLE_SIZE);
+
+	/** Open streams by id. */
+	private Map<Integer,Stream> streams = new ConcurrentHashMap<Integer,Stream>();
+
+	/** Highest client stream id seen. */
+	private int lastStreamId;
+
+	/** Connection level send window. Guarded by this. */
+	private long sendWindow = DEFAULT_WINDOW_SIZE;
+
+	/** Initial stream send window from the peer's settings. Guarded by this. */
+	private int peerInitialWindow = DEFAULT_WINDOW_SIZE;
+
+	/** Largest frame payload the peer accepts. */
+	private volatile int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+
+	/** Connection closed, waiting writers must give up. Guarded by this. */
+	private boolean closed;
+
+	Http2Connection(Socket socket, InputStream in, ConnectionReaper reaper) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(in);
+		this.watch = reaper.watch(socket);
+		// Writes run on stream threads concurrently with reads, so they get their own deadline.
+		this.out = new DataOutputStream(new BufferedOutputStream(reaper.watch(socket).guard(socket.getOutputStream()), DEFAULT_FRAME_SIZE + 9));
+	}
+
+	/**
+	 * Whether the HTTP/1.1 request headers ask to upgrade to h2c.
+	 */
+	static boolean isUpgradeRequest(List<String> request) {
+		boolean upgrade = false, settings = false;
+		for (String header : request) {
+			String lower = header.toLowerCase(Locale.ENGLISH);
+			if (lower.startsWith("upgrade:") && lower.substring(8).trim().equals("h2c")) {
+				upgrade = true;
+			}
+			else if (lower.startsWith("http2-settings:")) {
+				settings = true;
+			}
+		}
+		return upgrade && settings;
+	}
+
+	/**
+	 * Serves a connection whose client sent the preface line; the rest of the preface follows.
+	 */
+	void servePriorKnowledge() throws IOException {
+		// The worker consumed "PRI * HTTP/2.0" & the empty line, leaving "SM" & an empty line.
+		byte[] rest = new byte[PREFACE.length - PREFACE_LINE.length() - 4];
+		watch.armHeaderRead();
+		in.readFully(rest);
+		if (!new String(rest, "ISO-8859-1").equals("SM\r\n\r\n")) {
+			throw new IOException("Invalid HTTP/2 connection preface.");
+		}
+		writeSettings();
+		serve();
+	}
+
+	/**
+	 * Serves a connection upgraded from HTTP/1.1. The original request becomes stream 1.
+	 */
+	void serveUpgrade(List<String> request) throws IOException {
+		// Apply the client's settings from the HTTP2-Settings header.
+		for (String header : request) {
+			if (header.toLowerCase(Locale.ENGLISH).startsWith("http2-settings:")) {
+				byte[] payload = decodeBase64Url(header.substring(header.indexOf(':') + 1).trim());
+				applySettings(payload, payload.length);
+			}
+		}
+		synchronized (out) {
+			out.writeBytes("HTTP/1.1 101 Switching Protocols" + CRLF);
+			out.writeBytes("Connection: Upgrade" + CRLF);
+			out.writeBytes("Upgrade: h2c" + CRLF + CRLF);
+		}
+		writeSettings();
+
+		// The client sends its preface after the 101 response.
+		byte[] preface = new byte[PREFACE.length];
+		watch.armHeaderRead();
+		in.readFully(preface);
+		if (!Arrays.equals(preface, PREFACE)) {
+			throw new IOException("Invalid HTTP/2 connection preface.");
+		}
+
+		// Upgraded request is half closed from the client side.
+		lastStreamId = 1;
+		Stream stream = new Stream(1);
+		streams.put(1, stream);
+		dispatch(stream, request.get(0));
+		serve();
+	}
+
+	/**
+	 * Reads & handles frames until the connection ends.
+	 */
+	private void serve() throws IOException {
+		byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+		try {
+			while (true) {
+				// Waiting for the next frame is only limited when no streams are open.
+				if (streams.isEmpty()) {
+					watch.armIdle();
+				}
+				else {
+					watch.disarm();
+				}
+
+				// Frame header: length (24), type (8), flags (8), stream id (31).
+				int length;
+				try {
+					length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+				}
+				catch (EOFException ex) {
+					break;
+				}
+				int type = in.readUnsignedByte();
+				int flags = in.readUnsignedByte();
+				int streamId = in.readInt() & 0x7fffffff;
+				if (length > DEFAULT_FRAME_SIZE) {
+					goAway(FRAME_SIZE_ERROR, "Frame exceeds maximum size: " + length);
+					break;
+				}
+				watch.armRead(length);
+				in.readFully(payload, 0, length);
+				watch.disarm();
+
+				if (type == HEADERS) {
+					if (!handleHeaders(streamId, flags, payload, length)) {
+						break;
+					}
+				}
+				else if (type == DATA) {
+					handleData(streamId, flags, length);
+				}
+				else if (type == SETTINGS) {
+					if (streamId != 0 || ((flags & FLAG_ACK) == 0 && length % 6 != 0)) {
+						goAway(PROTOCOL_ERROR, "Invalid SETTINGS frame.");
+						break;
+					}
+					if ((flags & FLAG_ACK) == 0) {
+						if (!applySettings(payload, length)) {
+							break;
+						}
+						writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+					}
+				}
+				else if (type == WINDOW_UPDATE) {
+					if (!handleWindowUpdate(streamId, payload, length)) {
+						break;
+					}
+				}
+				else if (type == PING) {
+					if ((flags & FLAG_ACK) == 0) {
+						writeFrame(PING, FLAG_ACK, 0, payload, 0, length);
+					}
+				}
+				else if (type == RST_STREAM) {
+					Stream stream = streams.remove(streamId);
+					if (stream != null) {
+						stream.reset();
+					}
+				}
+				else if (type == GOAWAY) {
+					// Keep reading so in flight streams can finish; the client closes when done.
+					System.out.println("HTTP/2 client going away.");
+				}
+				else if (type == CONTINUATION || type == PUSH_PROMISE) {
+					goAway(PROTOCOL_ERROR, "Unexpected frame type: " + type);
+					break;
+				}
+				// PRIORITY & unknown frame types are ignored.
+			}
+		}
+		finally {
+			watch.disarm();
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads a header block (with any CONTINUATION frames) & dispatches the request.
+	 * Returns false when the connection must be closed.
+	 */
+	private boolean handleHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+		// Strip padding & priority fields.
+		int offset = 0, end = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			end -= payload[offset++] & 0xff;
+		}
+		if ((flags & FLAG_PRIORITY) != 0) {
+			offset += 5;
+		}
+		if (offset > end) {
+			goAway(PROTOCOL_ERROR, "Invalid HEADERS padding.");
+			return false;
+		}
+		// Sized to the first frame's fragment, grown only as CONTINUATION frames arrive.
+		byte[] block = Arrays.copyOfRange(payload, offset, end);
+		int blockLength = block.length;
+
+		// Collect CONTINUATION frames until END_HEADERS.
+		while ((flags & FLAG_END_HEADERS) == 0) {
+			int continuationLength = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+			int type = in.readUnsignedByte();
+			flags = in.readUnsignedByte();
+			int continuationId = in.readInt() & 0x7fffffff;
+			if (type != CONTINUATION || continuationId != streamId || continuationLength > DEFAULT_FRAME_SIZE) {
+				goAway(PROTOCOL_ERROR, "Expected CONTINUATION frame.");
+				return false;
+			}
+			if (blockLength + continuationLength > MAX_HEADER_BLOCK) {
+				goAway(PROTOCOL_ERROR, "Header block too large.");
+				return false;
+			}
+			if (blockLength + continuationLength > block.length) {
+				block = Arrays.copyOf(block, Math.min(MAX_HEADER_BLOCK, Math.max(block.length * 2, blockLength + continuationLength)));
+			}
+			in.readFully(block, blockLength, continuationLength);
+			blockLength += continuationLength;
+		}
+
+		// Decode always, to keep the HPACK state in sync, even when the stream is refused.
+		List<String[]> headers;
+		try {
+			headers = decoder.decode(block, blockLength);
+		}
+		catch (Hpack.HpackException ex) {
+			goAway(COMPRESSION_ERROR, ex.getMessage());
+			return false;
+		}
+
+		if (streamId == 0 || streamId % 2 == 0 || streamId <= lastStreamId) {
+			if (streams.containsKey(streamId)) {
+				// Trailers on an open stream; requests handled here carry no body.
+				return true;
+			}
+			goAway(PROTOCOL_ERROR, "Invalid stream id: " + streamId);
+			return false;
+		}
+		lastStreamId = streamId;
+		if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+			writeRstStream(streamId, REFUSED_STREAM);
+			return true;
+		}
+
+		// Build the request line the HTTP/1.1 handlers expect.
+		String method = null, path = null;
+		for (String[] header : headers) {
+			if (":method".equals(header[0])) {
+				method = header[1];
+			}
+			else if (":path".equals(header[0])) {
+				path = header[1];
+			}
+		}
+		if (method == null || path == null) {
+			writeRstStream(streamId, PROTOCOL_ERROR);
+			return true;
+		}
+		Stream stream = new Stream(streamId);
+		streams.put(streamId, stream);
+		dispatch(stream, method + ' ' + path + " HTTP/2.0");
+		return true;
+	}
+
+	/**
+	 * Discards request body data, returning the flow control credit.
+	 */
+	private void handleData(int streamId, int flags, int length) throws IOException {
+		if (length > 0) {
+			writeWindowUpdate(0, length);
+			if ((flags & FLAG_END_STREAM) == 0 && streams.containsKey(streamId)) {
+				writeWindowUpdate(streamId, length);
+			}
+		}
+		if (!streams.containsKey(streamId) && streamId > lastStreamId) {
+			writeRstStream(streamId, STREAM_CLOSED);
+		}
+	}
+
+	/**
+	 * Applies a WINDOW_UPDATE. Returns false when the connection must be closed.
+	 */
+	private boolean handleWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+		if (length != 4) {
+			goAway(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame.");
+			return false;
+		}
+		int increment = readInt(payload, 0) & 0x7fffffff;
+		synchronized (this) {
+			if (streamId == 0) {
+				sendWindow += increment;
+				if (increment == 0 || sendWindow > MAX_WINDOW_SIZE) {
+					goAway(FLOW_CONTROL_ERROR, "Invalid connection window update.");
+					return false;
+				}
+			}
+			else {
+				Stream stream = streams.get(streamId);
+				if (stream != null) {
+					stream.sendWindow += increment;
+					if (increment == 0 || stream.sendWindow > MAX_WINDOW_SIZE) {
+						streams.remove(streamId);
+						stream.reset();
+						writeRstStream(streamId, FLOW_CONTROL_ERROR);
+					}
+				}
+			}
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the peer's settings. Returns false when the connection must be closed.
+	 */
+	private boolean applySettings(byte[] payload, int length) throws IOException {
+		for (int offset = 0; offset + 6 <= length; offset += 6) {
+			int id = (payload[offset] & 0xff) << 8 | (payload[offset + 1] & 0xff);
+			int value = readInt(payload, offset + 2);
+			if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+				if (value < 0) {
+					goAway(FLOW_CONTROL_ERROR, "Invalid initial window size.");
+					return false;
+				}
+				synchronized (this) {
+					// Adjust every open stream by the difference.
+					int delta = value - peerInitialWindow;
+					peerInitialWindow = value;
+					for (Stream stream : streams.values()) {
+						stream.sendWindow += delta;
+					}
+					notifyAll();
+				}
+			}
+			else if (id == SETTINGS_MAX_FRAME_SIZE) {
+				if (value < DEFAULT_FRAME_SIZE || value > 0xffffff) {
+					goAway(PROTOCOL_ERROR, "Invalid max frame size.");
+					return false;
+				}
+				// Our frames stay within our own buffer size.
+				peerMaxFrameSize = Math.min(value, DEFAULT_FRAME_SIZE);
+			}
+			// Other settings need no action: the encoder never uses the peer's dynamic table & we never push.
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the request through the HTTP/1.1 handlers on the stream pool, or refuses the stream when the pool is busy.
+	 */
+	private void dispatch(final Stream stream, final String requestLine) throws IOException {
+		try {
+			STREAM_EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println(requestLine + " [stream " + stream.id + "]");
+					ResponseStream response = new ResponseStream(stream);
+					try {
+						MyWebServer.dispatch(socket.getInetAddress(), requestLine, new DataOutputStream(response));
+						response.finish();
+					}
+					catch (IOException ex) {
+						System.out.println(ex);
+						try {writeRstStream(stream.id, INTERNAL_ERROR);} catch (IOException ignored) {}
+					}
+					finally {
+						streams.remove(stream.id);
+						// The reader may be blocked waiting for a frame with no deadline armed.
+						if (streams.isEmpty()) {
+							watch.armIdle();
+						}
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			// Safe for the client to retry, as nothing of the request was processed.
+			streams.remove(stream.id);
+			writeRstStream(stream.id, REFUSED_STREAM);
+			if (streams.isEmpty()) {
+				watch.armIdle();
+			}
+		}
+	}
+
+	/**
+	 * Waits for send credit on both the stream & connection windows, consuming up to max bytes of it.
+	 */
+	private synchronized int acquireWindow(Stream stream, int max) throws IOException {
+		while (!closed && !stream.reset && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+			try {
+				wait();
+			}
+			catch (InterruptedException ex) {
+				throw new IOException("Interrupted waiting for flow control window.");
+			}
+		}
+		if (closed || stream.reset) {
+			throw new IOException("Stream " + stream.id + " closed.");
+		}
+		int granted = (int) Math.min(max, Math.min(sendWindow, stream.sendWindow));
+		sendWindow -= granted;
+		stream.sendWindow -= granted;
+		return granted;
+	}
+
+	private void writeSettings() throws IOException {
+		byte[] payload = new byte[12];
+		putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		putSetting(payload, 6, SETTINGS_HEADER_TABLE_SIZE, DEFAULT_HEADER_TABLE_SIZE);
+		writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+
+	private void writeRstStream(int streamId, int errorCode) throws IOException {
+		byte[] payload = new byte[4];
+		putInt(payload, 0, errorCode);
+		writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) throws IOException {
+		byte[] payload = new byte[4];
+		putInt(payload, 0, increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+
+	private void goAway(int errorCode, String reason) throws IOException {
+		System.out.println("HTTP/2 connection error: " + reason);
+		byte[] payload = new byte[8];
+		putInt(payload, 0, lastStreamId);
+		putInt(payload, 4, errorCode);
+		writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+	}
+
+	/**
+	 * Writes one frame. Frames from concurrent streams interleave at frame boundaries.
+	 */
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+		synchronized (out) {
+			out.writeByte(length >>> 16);
+			out.writeShort(length & 0xffff);
+			out.writeByte(type);
+			out.writeByte(flags);
+			out.writeInt(streamId);
+			out.write(payload, offset, length);
+			out.flush();
+		}
+	}
+
+	private static void putSetting(byte[] payload, int offset, int id, int value) {
+		payload[offset] = (byte) (id >>> 8);
+		payload[offset + 1] = (byte) id;
+		putInt(payload, offset + 2, value);
+	}
+
+	private static void putInt(byte[] payload, int offset, int value) {
+		payload[offset] = (byte) (value >>> 24);
+		payload[offset + 1] = (byte) (value >>> 16);
+		payload[offset + 2] = (byte) (value >>> 8);
+		payload[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] payload, int offset) {
+		return (payload[offset] & 0xff) << 24 | (payload[offset + 1] & 0xff) << 16 | (payload[offset + 2] & 0xff) << 8 | (payload[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Decodes the unpadded base64url HTTP2-Settings header value.
+	 */
+	private static byte[] decodeBase64Url(String value) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		byte[] decoded = new byte[value.length() * 3 / 4];
+		int bits = 0, bitCount = 0, length = 0;
+		for (int ix = 0; ix < value.length(); ix++) {
+			int digit = alphabet.indexOf(value.charAt(ix));
+			if (digit < 0) {
+				break;
+			}
+			bits = bits << 6 | digit;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				decoded[length++] = (byte) (bits >>> bitCount);
+			}
+		}
+		return Arrays.copyOf(decoded, length);
+	}
+
+	/**
+	 * State of one request stream.
+	 */
+	private class Stream {
+		/** Stream id. */
+		final int id;
+
+		/** Stream level send window. Guarded by the connection. */
+		long sendWindow;
+
+		/** Reset by the client or on error. Guarded by the connection. */
+		boolean reset;
+
+		Stream(int id) {
+			this.id = id;
+			synchronized (Http2Connection.this) {
+				this.sendWindow = peerInitialWindow;
+			}
+		}
+
+		void reset() {
+			synchronized (Http2Connection.this) {
+				reset = true;
+				Http2Connection.this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Translates the HTTP/1.1 response written by the handlers into HEADERS & DATA frames.
+	 * Header bytes are buffered until the blank line; the body is sent in flow controlled DATA frames.
+	 */
+	private class ResponseStream extends OutputStream {
+		/** Target stream. */
+		private Stream stream;
+
+		/** Buffered response header, then buffered body data. */
+		private byte[] buffer = new byte[DEFAULT_FRAME_SIZE];
+
+		/** Bytes held in buffer. */
+		private int count;
+
+		/** Headers sent. */
+		private boolean headersSent;
+
+		/** Body bytes still expected from Content-Length; anything past it is discarded. */
+		private long remaining = -1;
+
+		/** END_STREAM sent. */
+		private boolean ended;
+
+		ResponseStream(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0 && !ended) {
+				if (!headersSent) {
+					// Buffer header bytes until the blank line terminating them.
+					if (count == buffer.length) {
+						throw new IOException("Response header too large.");
+					}
+					buffer[count++] = bytes[offset++];
+					length--;
+					if (count >= 4 && buffer[count - 4] == '\r' && buffer[count - 3] == '\n' && buffer[count - 2] == '\r' && buffer[count - 1] == '\n') {
+						sendHeaders();
+					}
+					continue;
+				}
+				int chunk = Math.min(length, buffer.length - count);
+				if (remaining >= 0) {
+					chunk = (int) Math.min(chunk, remaining);
+					remaining -= chunk;
+				}
+				System.arraycopy(bytes, offset, buffer, count, chunk);
+				count += chunk;
+				offset += chunk;
+				length -= chunk;
+				if (count == buffer.length) {
+					sendData(false);
+				}
+				if (remaining == 0) {
+					sendData(true);
+				}
+			}
+		}
+
+		/**
+		 * Completes the response once the handler returns.
+		 */
+		void finish() throws IOException {
+			if (!headersSent) {
+				throw new IOException("Handler produced no response header.");
+			}
+			if (!ended) {
+				sendData(true);
+			}
+		}
+
+		private void sendHeaders() throws IOException {
+			String header = new String(buffer, 0, count - 4, "ISO-8859-1");
+			count = 0;
+			headersSent = true;
+			String[] lines = header.split(CRLF);
+			List<String[]> headers = new ArrayList<String[]>();
+			// Status line: HTTP/1.1 code reason
+			String[] status = lines[0].split(" ");
+			headers.add(new String[] {":status", status[1]});
+			for (int ix = 1; ix < lines.length; ix++) {
+				int colon = lines[ix].indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				String name = lines[ix].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				String value = lines[ix].substring(colon + 1).trim();
+				if (CONNECTION_HEADERS.contains(name)) {
+					continue;
+				}
+				if ("content-length".equals(name)) {
+					remaining = Long.parseLong(value);
+				}
+				headers.add(new String[] {name, value});
+			}
+			byte[] block = Hpack.encode(headers);
+			boolean endStream = (remaining == 0);
+
+			// Split the block into HEADERS & CONTINUATION frames as needed, without interleaving other frames.
+			synchronized (out) {
+				int maxFrame = peerMaxFrameSize;
+				int offset = 0;
+				do {
+					int length = Math.min(maxFrame, block.length - offset);
+					boolean last = (offset + length == block.length);
+					int flags = (last ? FLAG_END_HEADERS : 0) | ((offset == 0 && endStream) ? FLAG_END_STREAM : 0);
+					writeFrame((offset == 0) ? HEADERS : CONTINUATION, flags, stream.id, block, offset, length);
+					offset += length;
+				} while (offset < block.length);
+			}
+			ended = endStream;
+		}
+
+		private void sendData(boolean endStream) throws IOException {
+			int offset = 0;
+			while (offset < count) {
+				int granted = acquireWindow(stream, Math.min(count - offset, peerMaxFrameSize));
+				boolean last = (offset + granted == count);
+				writeFrame(DATA, (last && endStream) ? FLAG_END_STREAM : 0, stream.id, buffer, offset, granted);
+				offset += granted;
+			}
+			if (count == 0 && endStream) {
+				writeFrame(DATA, FLAG_END_STREAM, stream.id, buffer, 0, 0);
+			}
+			count = 0;
+			ended = endStream;
+		}
+	}
+}
@@ -29,17 +29,34 @@ Included Files:
  c. http-streams.txt
  d. serverlog.txt
  e. MimeTypes.txt
+ f. TlsContext.java
+ g. Http2Connection.java
+ h. Hpack.java
+ i. AssetPack.java
+ j. ClientLimiter.java
+ k. ConnectionReaper.java
 
 Notes:
 - Dynamic mime-type mapping using input file (MimeTypes.txt) 
 - Returns binary data (images, PDFs, etc.) 
 - Implements index.html to remove promiscuity of directories.
 - Supports favicon.ico.
+- Supports HTTP/2: h2c with prior knowledge or Upgrade, and prior knowledge over HTTPS. Streams are served concurrently.
+- Small static files are served from a memory-mapped asset pack built at startup & reopened on restart.
+  See AssetPack.java for its configuration properties.
+- Per client IP request rate limits & connection caps, answered with 429 Too Many Requests.
+  See ClientLimiter.java for its configuration properties.
+- Header read deadlines, minimum response write rates & idle HTTP/2 connection reaping stop slow clients pinning workers.
+  See ConnectionReaper.java for its configuration properties.
+- Optional HTTPS listener (port 2543) with session resumption, enabled by: java -Dhttps.keystore=[keystore file] MyWebServer
+  See TlsContext.java for the TLS configuration properties.
 - Has WML mime support but serving files to cell phone is not tested.
 - The addnums form must make a GET submit to: /cgi/addnums.fake-cgi
   with form fields: person=[string] num1=[integer] num2=[integer]
 
 ----------------------------------------------------------*/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -48,6 +65,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -55,6 +73,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.net.ssl.SSLSocket;
 
 /**
  * This server listens for processes connections from web browser clients.
@@ -108,12 +130,36 @@ public class MyWebServer {
 	/** FORBIDDEN Response Code. */
 	private static final int FORBIDDEN = 403;
 			
+	/** TOO MANY REQUESTS Response Code. */
+	private static final int TOO_MANY_REQUESTS = 429;
+			
 	/** Buffer Size. */
 	private static final int BUFFER_SIZE = 1000;
 	
+	/** Longest request or header line kept. */
+	private static final int MAX_LINE = 8192;
+	
 	/** File containing file extension to mime type mappings. */
 	private static final String MIME_INPUT_FILE = "MimeTypes.txt";
 	
+	/** Interval between server statistics reports (ms). */
+	private static final int STATS_INTERVAL = 60000;
+	
+	/** TLS context for the HTTPS listener, null when HTTPS is not configured. */
+	private static TlsContext tlsContext;
+	
+	/** Memory-mapped pack of small static files, null when disabled. */
+	private static AssetPack assetPack;
+	
+	/** Per client rate & connection limits, null when disabled. */
+	private static ClientLimiter clientLimiter;
+	
+	/** Read & write deadlines for connections. */
+	private static ConnectionReaper reaper;
+	
+	/** Daemon timer for periodic statistics reports. */
+	private static Timer statsTimer = new Timer("stats", true);
+	
 	/** File extension to Mime type map. */
 	private static Map<String,String> mimeTypes = new HashMap<String,String>();
 		
@@ -128,11 +174,13 @@ public class MyWebServer {
 		responses.put(NO_RESPONSE, "No Response");
 		responses.put(BAD_REQUEST, "Bad Request");
 		responses.put(FORBIDDEN, "Forbidden");
+		responses.put(TOO_MANY_REQUESTS, "Too Many Requests");
 	}
 	
 	/**
 	 * Main Web Server Server program.
 	 * - Initializes global state
+	 * - Starts the HTTPS listener if a keystore is configured.
 	 * - Loop continually, spawning workers for each connection.
 	 */
 	public static void main(String[] args) {
@@ -142,27 +190,121 @@ public class MyWebServer {
 		// Load Initial Mime Types.
 		loadMimeTypesFile();
 		
-		ServerSocket serverSocket = null;
-		try {
-			serverSocket = new ServerSocket(PORT);
-			while (true) {
-				// Wait for the next browser connection.
-				Socket socket = serverSocket.accept();
-
-				// Spawn thread to process request.
-				new Thread(new Worker(socket)).start();
+		// Reopen or build the static asset pack.
+		assetPack = AssetPack.load(new File("."), mimeTypes);
+		
+		// Set up per client limits, sweeping idle clients & reporting rejections periodically.
+		clientLimiter = ClientLimiter.load();
+		if (clientLimiter != null) {
+			System.out.println(clientLimiter);
+			statsTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					clientLimiter.evictIdle();
+					if (clientLimiter.hasActivity()) {
+						System.out.println(clientLimiter.report());
+					}
+				}
+			}, clientLimiter.sweepInterval(), clientLimiter.sweepInterval());
+		}
+		
+		// Start enforcing connection deadlines, reporting reaped connections periodically.
+		reaper = ConnectionReaper.start();
+		statsTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (reaper.hasActivity()) {
+					System.out.println(reaper.report());
+				}
+			}
+		}, STATS_INTERVAL, STATS_INTERVAL);
+		
+		// Start HTTPS listener thread when TLS is configured.
+		tlsContext = TlsContext.load();
+		if (tlsContext != null) {
+			System.out.println("HTTPS Port: " + tlsContext.getPort());
+			try {
+				new Thread(new Listener(tlsContext.createServerSocket())).start();
+				statsTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						if (tlsContext.hasActivity()) {
+							System.out.println(tlsContext.report());
+						}
+					}
+				}, STATS_INTERVAL, STATS_INTERVAL);
 			}
+			catch (IOException ex) {
+				System.out.println(ex);
+				System.out.println("Continuing without HTTPS.");
+			}
+		}
+		
+		try {
+			new Listener(new ServerSocket(PORT)).run();
 		}
 		catch (IOException ex) {
 			System.out.println(ex);
 		}
-		finally {
-			if (serverSocket != null) {
+		System.out.println("My Web Server exiting.");
+	}	
+
+	/**
+	 * Listener accepts connections on a plaintext or TLS server socket, spawning workers for each.
+	 */
+	private static class Listener implements Runnable {
+		/** Bound listener socket. */
+		ServerSocket serverSocket;
+		
+		public Listener(ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					// Wait for the next browser connection.
+					Socket socket = serverSocket.accept();
+					if (clientLimiter != null && !clientLimiter.openConnection(socket.getInetAddress())) {
+						refuse(socket);
+						continue;
+					}
+					if (socket instanceof SSLSocket) {
+						// Track full versus resumed handshakes for this connection.
+						tlsContext.accepted((SSLSocket) socket);
+					}
+
+					// Spawn thread to process request.
+					new Thread(new Worker(socket)).start();
+				}
+			}
+			catch (IOException ex) {
+				System.out.println(ex);
+			}
+			finally {
 				try { serverSocket.close(); } catch (IOException ex) {}
 			}
 		}
-		System.out.println("My Web Server exiting.");
-	}	
+		
+		/**
+		 * Turns away a connection over its client's cap without spawning a worker.
+		 * Plaintext clients get a 429; TLS clients are closed, keeping the handshake off the accept thread.
+		 */
+		private void refuse(Socket socket) {
+			System.out.println("Refusing connection from " + socket.getInetAddress().getHostAddress() + ": too many connections.");
+			try {
+				if (!(socket instanceof SSLSocket)) {
+					// The short response fits the socket send buffer, so this does not block.
+					Worker.writeError(TOO_MANY_REQUESTS, "Too many connections from your address.", new DataOutputStream(socket.getOutputStream()));
+				}
+			}
+			catch (IOException ex) {}
+			finally {
+				try { socket.close(); } catch (IOException ex) {}
+			}
+		}
+	}
 
 	/**
 	 * Worker processes input requests from browser.
@@ -182,25 +324,38 @@ public class MyWebServer {
 		@Override
 		public void run() {
 			System.out.println("Spawning worker to process HTTP request.");
-			BufferedReader reader =  null;
+			InputStream reader =  null;
 			DataOutputStream writer = null;
+			ConnectionReaper.Watch watch = reaper.watch(socket);
 			try {
-				// Get I/O streams from the socket.
-				reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				writer = new DataOutputStream(socket.getOutputStream());
+				// Get I/O streams from the socket. Response writes must keep up the minimum rate.
+				reader = new BufferedInputStream(socket.getInputStream());
+				writer = new DataOutputStream(new BufferedOutputStream(watch.guard(socket.getOutputStream())));
 
-				// Read all input from web browser via socket.
+				// Read the request line & headers from web browser via socket, within the header deadline.
 				List<String> input = new ArrayList<String>();
-				do {
+				String line;
+				watch.armHeaderRead();
+				while ((line = readLine(reader)) != null && line.length() > 0) {
 					// Read line by line & save in list.
-					String line = reader.readLine();
 					input.add(line);
-				} while (reader.ready()) ;
+				}
+				watch.disarm();
 				
 				// Process request.
-				if (input.size() > 0) {
+				if (input.size() > 0 && Http2Connection.PREFACE_LINE.equals(input.get(0))) {
+					// HTTP/2 with prior knowledge.
+					System.out.println("HTTP/2 connection.");
+					new Http2Connection(socket, reader, reaper).servePriorKnowledge();
+				}
+				else if (input.size() > 0 && Http2Connection.isUpgradeRequest(input)) {
+					// HTTP/1.1 request upgrading to HTTP/2.
+					System.out.println(input.get(0) + " (upgrading to HTTP/2)");
+					new Http2Connection(socket, reader, reaper).serveUpgrade(input);
+				}
+				else if (input.size() > 0) {
 					System.out.println(input.get(0));
-					respondToRequest(input.get(0), writer);
+					dispatch(socket.getInetAddress(), input.get(0), writer);
 				}
 				else {
 		    		writeError(BAD_REQUEST, "No Request Received.", writer);
@@ -211,16 +366,35 @@ public class MyWebServer {
 				ex.printStackTrace();
 			}
 			finally {
-				if (reader != null) {
-					try {reader.close();} catch (IOException ex) {}
-				}
+				// Flush the writer before closing the reader, which closes the socket.
 				if (writer != null) {
 					try{writer.close();} catch (IOException ex) {}
 				}
+				if (reader != null) {
+					try {reader.close();} catch (IOException ex) {}
+				}
+				watch.disarm();
 				if (socket != null) {
 					try {socket.close();} catch (IOException ex) {}
+					if (clientLimiter != null) {
+						clientLimiter.closeConnection(socket.getInetAddress());
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Reads one CRLF or LF terminated header line. Returns null at end of stream.
+		 */
+		private static String readLine(InputStream reader) throws IOException {
+			StringBuilder lineBuilder = new StringBuilder();
+			int c;
+			while ((c = reader.read()) != -1 && c != '\n') {
+				if (c != '\r' && lineBuilder.length() < MAX_LINE) {
+					lineBuilder.append((char) c);
 				}
 			}
+			return (c == -1 && lineBuilder.length() == 0) ? null : lineBuilder.toString();
 		}
 		
 		/**
@@ -251,6 +425,11 @@ public class MyWebServer {
 	    		return;
 	    	}
 	    	
+	    	// Answer from the asset pack when it holds a current copy.
+	    	if (assetPack != null && assetPack.serve(tokens.get(1), writer)) {
+	    		return;
+	    	}
+	    	
 	    	// Does requested file exist?
 			File file = new File(url);
 			if (!file.exists()) {
@@ -461,6 +640,18 @@ public class MyWebServer {
 		}
 	}
 
+	/**
+	 * Runs a request line from the given client through the handlers, answering 429 when the client is over its rate.
+	 * Also the entry point for other protocols (HTTP/2 streams).
+	 */
+	static void dispatch(InetAddress client, String request, DataOutputStream writer) throws IOException {
+		if (clientLimiter != null && !clientLimiter.allowRequest(client)) {
+			Worker.writeError(TOO_MANY_REQUESTS, "Request rate limit exceeded, please slow down.", writer);
+			return;
+		}
+		Worker.respondToRequest(request, writer);
+	}
+
 	/**
 	 * This loads the MimeTypes.txt file containing all of the mappings between file extension & mime type.
 	 * If the input file does not exist or the file data are invalid, it uses default data so it can still proceed. 
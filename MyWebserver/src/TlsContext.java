@@ -0,0 +1,219 @@
+/*--------------------------------------------------------
+TlsContext.java
+
+TLS support for MyWebServer's HTTPS listener.
+
+Developed and tested with JDK 1.7.0_40.
+
+Configuration (system properties, e.g. java -Dhttps.keystore=server.jks MyWebServer):
+- https.port            HTTPS port to bind (default 2543).
+- https.keystore        Java keystore holding the server key & certificate. HTTPS is disabled without it.
+- https.password        Keystore & key password (default changeit).
+- https.ciphers         Comma separated cipher suites, in preference order. Defaults to AES-GCM first.
+- https.sessionCache    Maximum number of cached server sessions (default 10000).
+- https.sessionTimeout  Seconds a cached session may be resumed (default 86400).
+
+A test keystore can be generated with:
+keytool -genkeypair -alias mywebserver -keyalg RSA -keystore server.jks -storepass changeit -keypass changeit -dname CN=localhost
+
+----------------------------------------------------------*/
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Holds the server side SSL context for the HTTPS listener.
+ * Configures the session cache & cipher suites and counts full versus resumed handshakes.
+ * @author Joseph Sackett
+ */
+class TlsContext {
+	/** Default HTTPS port to bind. */
+	static final int DEFAULT_PORT = 2543;
+
+	/** Default keystore password. */
+	private static final String DEFAULT_PASSWORD = "changeit";
+
+	/** Default number of sessions held in the server session cache. */
+	private static final int DEFAULT_SESSION_CACHE = 10000;
+
+	/** Default session lifetime (seconds). */
+	private static final int DEFAULT_SESSION_TIMEOUT = 86400;
+
+	/** Cipher suite fragment marking AES-GCM suites (AES-NI & CLMUL accelerated in the JVM). */
+	private static final String GCM = "_GCM_";
+
+	/** Initialized SSL context. */
+	private SSLContext sslContext;
+
+	/** Port for the HTTPS listener. */
+	private int port;
+
+	/** Cipher suites enabled on accepted sockets, in preference order. */
+	private String[] cipherSuites;
+
+	/** Handshakes requiring a full key exchange. */
+	private AtomicLong fullHandshakes = new AtomicLong();
+
+	/** Handshakes resumed from the session cache or a session ticket. */
+	private AtomicLong resumedHandshakes = new AtomicLong();
+
+	/** Handshake totals at the previous report, for the rate. */
+	private long lastReportHandshakes;
+
+	/** Time of the previous report. */
+	private long lastReportTime = System.currentTimeMillis();
+
+	/**
+	 * Builds the TLS context from system properties.
+	 * Returns null when no keystore is configured, leaving the server plaintext only.
+	 */
+	static TlsContext load() {
+		String keystore = System.getProperty("https.keystore");
+		if (keystore == null) {
+			return null;
+		}
+
+		// Allow stateless session tickets on JDKs that support them; ignored elsewhere.
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+
+		TlsContext tlsContext = new TlsContext();
+		FileInputStream keystoreStream = null;
+		try {
+			char[] password = System.getProperty("https.password", DEFAULT_PASSWORD).toCharArray();
+			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			keystoreStream = new FileInputStream(keystore);
+			keyStore.load(keystoreStream, password);
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, password);
+
+			tlsContext.sslContext = SSLContext.getInstance("TLS");
+			tlsContext.sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+			// Size the server session cache so returning clients skip the full handshake.
+			SSLSessionContext sessionContext = tlsContext.sslContext.getServerSessionContext();
+			sessionContext.setSessionCacheSize(Integer.getInteger("https.sessionCache", DEFAULT_SESSION_CACHE));
+			sessionContext.setSessionTimeout(Integer.getInteger("https.sessionTimeout", DEFAULT_SESSION_TIMEOUT));
+
+			tlsContext.port = Integer.getInteger("https.port", DEFAULT_PORT);
+			tlsContext.cipherSuites = chooseCipherSuites(tlsContext.sslContext, System.getProperty("https.ciphers"));
+		}
+		catch (IOException | GeneralSecurityException ex) {
+			System.out.println(ex);
+			System.out.println("Continuing without HTTPS.");
+			return null;
+		}
+		finally {
+			if (keystoreStream != null) {
+				try {keystoreStream.close();} catch (IOException ex) {}
+			}
+		}
+
+		return tlsContext;
+	}
+
+	/**
+	 * Orders the cipher suites: the configured list if present, otherwise the JVM defaults with AES-GCM suites first.
+	 */
+	private static String[] chooseCipherSuites(SSLContext sslContext, String configured) {
+		List<String> supported = Arrays.asList(sslContext.getSupportedSSLParameters().getCipherSuites());
+		List<String> chosen = new ArrayList<String>();
+		if (configured != null) {
+			StringTokenizer toker = new StringTokenizer(configured, ", ");
+			while (toker.hasMoreTokens()) {
+				String suite = toker.nextToken();
+				if (supported.contains(suite)) {
+					chosen.add(suite);
+				}
+				else {
+					System.out.println("Ignoring unsupported cipher suite: " + suite);
+				}
+			}
+		}
+		if (chosen.isEmpty()) {
+			String[] defaults = sslContext.getDefaultSSLParameters().getCipherSuites();
+			for (String suite : defaults) {
+				if (suite.contains(GCM)) {
+					chosen.add(suite);
+				}
+			}
+			for (String suite : defaults) {
+				if (!suite.contains(GCM)) {
+					chosen.add(suite);
+				}
+			}
+		}
+		return chosen.toArray(new String[chosen.size()]);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Creates the listening socket for the HTTPS listener.
+	 */
+	ServerSocket createServerSocket() throws IOException {
+		SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+		serverSocket.setEnabledCipherSuites(cipherSuites);
+		return serverSocket;
+	}
+
+	/**
+	 * Prepares an accepted socket for handshake accounting. The handshake itself runs lazily on the worker's first read.
+	 */
+	void accepted(SSLSocket socket) {
+		final long acceptTime = System.currentTimeMillis();
+		socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				// A resumed session was created before this connection was accepted.
+				if (event.getSession().getCreationTime() < acceptTime) {
+					resumedHandshakes.incrementAndGet();
+				}
+				else {
+					fullHandshakes.incrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Renders handshake rate & resumption ratio since startup.
+	 */
+	synchronized String report() {
+		long now = System.currentTimeMillis();
+		long full = fullHandshakes.get();
+		long resumed = resumedHandshakes.get();
+		long total = full + resumed;
+		double seconds = Math.max(1, now - lastReportTime) / 1000.0;
+		double rate = (total - lastReportHandshakes) / seconds;
+		lastReportHandshakes = total;
+		lastReportTime = now;
+		return String.format("TLS handshakes: %d full, %d resumed, resumption ratio %.1f%%, %.2f handshakes/sec",
+				full, resumed, (total == 0) ? 0.0 : 100.0 * resumed / total, rate);
+	}
+
+	/**
+	 * Whether any handshakes occurred since the last report.
+	 */
+	synchronized boolean hasActivity() {
+		return fullHandshakes.get() + resumedHandshakes.get() != lastReportHandshakes;
+	}
+}